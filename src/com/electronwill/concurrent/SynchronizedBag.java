@@ -161,7 +161,7 @@ public class SynchronizedBag<E> extends Bag<E> {
 	
 	@Override
 	public synchronized boolean remove(Object o) {
-		for (int j = 0; j < array.length; j++) {
+		for (int j = 0; j < size; j++) {
 			Object element = array[j];
 			if (element.equals(o)) {
 				array[j] = array[--size];
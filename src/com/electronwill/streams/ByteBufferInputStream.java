@@ -9,12 +9,26 @@ import java.nio.ByteBuffer;
  */
 public final class ByteBufferInputStream extends EasyInputStream {
 	
-	private final ByteBuffer buff;
+	private ByteBuffer buff;
 	
 	public ByteBufferInputStream(ByteBuffer buff) {
 		this.buff = buff;
 	}
 	
+	/**
+	 * Gets the underlying ByteBuffer.
+	 */
+	public ByteBuffer getBuffer() {
+		return buff;
+	}
+	
+	/**
+	 * Sets the underlying ByteBuffer. This allows to reuse the same stream to read several buffers.
+	 */
+	public void setBuffer(ByteBuffer buff) {
+		this.buff = buff;
+	}
+	
 	@Override
 	public int available() throws IOException {
 		return buff.remaining();
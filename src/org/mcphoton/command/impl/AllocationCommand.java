@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.command.impl;
+
+import org.mcphoton.command.CommandExecutor;
+import org.mcphoton.command.CommandSender;
+import org.mcphoton.entity.impl.OnlinePlayer;
+import org.mcphoton.network.MovementAllocation;
+
+/**
+ * The allocation command, that measures the memory allocated to decode and handle the movement packets.
+ * <p>
+ * Usage: "allocation [batches]", where a batch is 999 packets (1000 batches by default).
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public class AllocationCommand extends CommandExecutor {
+	
+	public AllocationCommand() {
+		super("allocation", "measures the memory allocated to decode and handle the movement packets (allocation [batches])");
+	}
+	
+	@Override
+	public void onCommand(CommandSender sender, String... args) {
+		if (sender instanceof OnlinePlayer && !((OnlinePlayer) sender).hasPermission("allocation")) {
+			return;
+		}
+		int batches = 1000;
+		if (args.length > 0) {
+			try {
+				batches = Integer.parseInt(args[0]);
+			} catch (NumberFormatException ex) {
+				sender.sendMessage("Invalid number: " + args[0]);
+				return;
+			}
+			if (batches <= 0) {
+				sender.sendMessage("The number of batches must be positive");
+				return;
+			}
+		}
+		MovementAllocation.start(batches, sender);
+	}
+	
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.command.impl;
+
+import org.mcphoton.command.CommandExecutor;
+import org.mcphoton.command.CommandSender;
+import org.mcphoton.core.Photon;
+import org.mcphoton.entity.impl.OnlinePlayer;
+import org.mcphoton.network.BotSwarm;
+
+/**
+ * The bots command, that connects synthetic clients to this server until the tick time exceeds 50 milliseconds.
+ * <p>
+ * Usage: "bots &lt;max&gt; [step] [stepSeconds]" to start adding bots, 10 every 10 seconds by default, and "bots stop"
+ * to disconnect them.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public class BotsCommand extends CommandExecutor {
+	
+	public BotsCommand() {
+		super("bots", "connects synthetic clients to find the maximum number of players (bots <max> [step] [stepSeconds] / bots stop)");
+	}
+	
+	@Override
+	public void onCommand(CommandSender sender, String... args) {
+		if (sender instanceof OnlinePlayer && !((OnlinePlayer) sender).hasPermission("bots")) {
+			return;
+		}
+		if (args.length == 0) {
+			sender.sendMessage("Usage: bots <max> [step] [stepSeconds] / bots stop");
+			return;
+		}
+		if (args[0].equalsIgnoreCase("stop")) {
+			BotSwarm.stop();
+			return;
+		}
+		if (Photon.isOnlineMode()) {
+			sender.sendMessage("The bots need the server to be in offline mode");
+			return;
+		}
+		final int max, step, stepSeconds;
+		try {
+			max = Integer.parseInt(args[0]);
+			step = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+			stepSeconds = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+		} catch (NumberFormatException ex) {
+			sender.sendMessage("Invalid number: " + ex.getMessage());
+			return;
+		}
+		if (max <= 0 || step <= 0 || stepSeconds <= 0) {
+			sender.sendMessage("The numbers must be positive");
+			return;
+		}
+		if (!BotSwarm.start(max, step, stepSeconds, sender)) {
+			sender.sendMessage("The bots are already running, use \"bots stop\" first");
+		}
+	}
+	
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.command.impl;
+
+import java.io.File;
+import java.io.IOException;
+import org.mcphoton.command.CommandExecutor;
+import org.mcphoton.command.CommandSender;
+import org.mcphoton.core.Photon;
+import org.mcphoton.entity.impl.OnlinePlayer;
+import org.mcphoton.network.PacketCapture;
+
+/**
+ * The capture command, that records the packets received from the clients to a file, to replay them later with the
+ * replay command.
+ * <p>
+ * Usage: "capture start &lt;file&gt;" and "capture stop".
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public class CaptureCommand extends CommandExecutor {
+	
+	public CaptureCommand() {
+		super("capture", "records the packets received from the clients to a file (capture start <file> / capture stop)");
+	}
+	
+	@Override
+	public void onCommand(CommandSender sender, String... args) {
+		if (sender instanceof OnlinePlayer && !((OnlinePlayer) sender).hasPermission("capture")) {
+			return;
+		}
+		if (args.length == 2 && args[0].equalsIgnoreCase("start")) {
+			try {
+				PacketCapture.start(new File(args[1]));
+				sender.sendMessage("Capturing the received packets to " + args[1]);
+			} catch (IOException ex) {
+				Photon.log.error(ex, "Unable to start the packet capture");
+				sender.sendMessage("Unable to start the capture: " + ex);
+			}
+		} else if (args.length == 1 && args[0].equalsIgnoreCase("stop")) {
+			try {
+				PacketCapture.stop();
+				sender.sendMessage("Capture stopped: " + PacketCapture.capturedFrames() + " frames recorded, "
+						+ PacketCapture.droppedFrames() + " dropped");
+			} catch (IOException ex) {
+				Photon.log.error(ex, "Unable to close the packet capture");
+				sender.sendMessage("Unable to close the capture: " + ex);
+			}
+		} else {
+			sender.sendMessage("Usage: capture start <file> / capture stop");
+		}
+	}
+	
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.command.impl;
+
+import java.io.File;
+import org.mcphoton.command.CommandExecutor;
+import org.mcphoton.command.CommandSender;
+import org.mcphoton.core.Photon;
+import org.mcphoton.entity.impl.OnlinePlayer;
+import org.mcphoton.network.PacketReplay;
+
+/**
+ * The replay command, that replays a packet capture against this server and reports the ticks per second, the time
+ * per tick and the memory allocated.
+ * <p>
+ * Usage: "replay &lt;file&gt; [speed]", where the speed is a factor (1 by default), or "max" to replay as fast as
+ * possible.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public class ReplayCommand extends CommandExecutor {
+	
+	public ReplayCommand() {
+		super("replay", "replays a packet capture against this server (replay <file> [speed|max])");
+	}
+	
+	@Override
+	public void onCommand(CommandSender sender, String... args) {
+		if (sender instanceof OnlinePlayer && !((OnlinePlayer) sender).hasPermission("replay")) {
+			return;
+		}
+		if (args.length == 0) {
+			sender.sendMessage("Usage: replay <file> [speed|max]");
+			return;
+		}
+		if (Photon.isOnlineMode()) {
+			sender.sendMessage("The replay needs the server to be in offline mode");
+			return;
+		}
+		final File file = new File(args[0]);
+		if (!file.isFile()) {
+			sender.sendMessage("File not found: " + file);
+			return;
+		}
+		double speed = 1;
+		if (args.length > 1) {
+			if (args[1].equalsIgnoreCase("max")) {
+				speed = 0;
+			} else {
+				try {
+					speed = Double.parseDouble(args[1]);
+				} catch (NumberFormatException ex) {
+					sender.sendMessage("Invalid speed: " + args[1]);
+					return;
+				}
+			}
+		}
+		PacketReplay.start(file, speed, sender);
+	}
+	
+}
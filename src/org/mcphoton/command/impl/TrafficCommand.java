@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.command.impl;
+
+import java.util.List;
+import org.mcphoton.command.CommandExecutor;
+import org.mcphoton.command.CommandSender;
+import org.mcphoton.core.Photon;
+import org.mcphoton.entity.impl.OnlinePlayer;
+import org.mcphoton.network.PacketTelemetry;
+import org.mcphoton.network.PacketTelemetry.Entry;
+import org.mcphoton.network.PacketTelemetry.Latency;
+
+/**
+ * The traffic command, that displays the number of packets of each type, their sizes and the time spent processing
+ * them, globally or for one player.
+ * <p>
+ * Usage: "traffic" for the global statistics, "traffic &lt;player&gt;" for a player's statistics, and "traffic reset"
+ * to reset the global statistics.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public class TrafficCommand extends CommandExecutor {
+	
+	public TrafficCommand() {
+		super("traffic", "displays the traffic of each type of packet, globally or for one player");
+	}
+	
+	@Override
+	public void onCommand(CommandSender sender, String... args) {
+		if (sender instanceof OnlinePlayer && !((OnlinePlayer) sender).hasPermission("traffic")) {
+			return;
+		}
+		if (!PacketTelemetry.isEnabled()) {
+			sender.sendMessage("The packet telemetry is disabled: set packetTelemetry = true in server.properties");
+			return;
+		}
+		if (args.length == 0) {
+			sender.sendMessage("Traffic of all the clients:");
+			display(sender, PacketTelemetry.getGlobalEntries());
+		} else if (args[0].equalsIgnoreCase("reset")) {
+			PacketTelemetry.reset();
+			sender.sendMessage("The global traffic statistics have been reset.");
+		} else {
+			final OnlinePlayer[] found = new OnlinePlayer[1];
+			Photon.forEachPlayer(p -> {
+				if (p.getName().equalsIgnoreCase(args[0])) {
+					found[0] = p;
+				}
+			});
+			final List<Entry> entries = (found[0] == null) ? null : PacketTelemetry.getEntries(found[0].getClientInfos());
+			if (entries == null) {
+				sender.sendMessage("No traffic statistics for " + args[0]);
+				return;
+			}
+			sender.sendMessage("Traffic of " + found[0].getName() + ":");
+			display(sender, entries);
+		}
+	}
+	
+	private void display(CommandSender sender, List<Entry> entries) {
+		long packets = 0, wireBytes = 0, dataBytes = 0;
+		for (Entry e : entries) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(e.getDirection() == PacketTelemetry.Direction.INBOUND ? "IN  " : "OUT ").append(e.getState());
+			sb.append(String.format(" 0x%02X ", e.getId())).append(e.getName()).append(": ");
+			sb.append(e.getPackets()).append(" packets, ").append(formatBytes(e.getWireBytes()));
+			sb.append(" (").append(formatBytes(e.getDataBytes())).append(" uncompressed)");
+			appendLatency(sb, "decode", e.getDecodeLatency());
+			appendLatency(sb, "handle", e.getHandleLatency());
+			appendLatency(sb, "writeTo", e.getSerializeLatency());
+			sender.sendMessage(sb.toString());
+			packets += e.getPackets();
+			wireBytes += e.getWireBytes();
+			dataBytes += e.getDataBytes();
+		}
+		sender.sendMessage("Total: " + packets + " packets, " + formatBytes(wireBytes) + " (" + formatBytes(dataBytes)
+				+ " uncompressed)");
+	}
+	
+	private void appendLatency(StringBuilder sb, String name, Latency latency) {
+		if (latency == null || latency.getCount() == 0)
+			return;
+		sb.append(", ").append(name).append(" mean ").append(formatNanos(latency.getMeanNanos()));
+		sb.append(" p50 ").append(formatNanos(latency.getPercentileNanos(50)));
+		sb.append(" p99 ").append(formatNanos(latency.getPercentileNanos(99)));
+	}
+	
+	private String formatBytes(long bytes) {
+		if (bytes < 1024)
+			return bytes + " B";
+		if (bytes < 1024 * 1024)
+			return String.format("%.1f KiB", bytes / 1024.0);
+		return String.format("%.1f MiB", bytes / (1024.0 * 1024.0));
+	}
+	
+	private String formatNanos(long nanos) {
+		if (nanos < 1000)
+			return nanos + "ns";
+		if (nanos < 1000_000)
+			return String.format("%.1fus", nanos / 1000.0);
+		return String.format("%.1fms", nanos / 1000_000.0);
+	}
+	
+}
@@ -14,28 +14,49 @@ import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.util.Base64;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import org.mcphoton.Difficulty;
 import org.mcphoton.Gamemode;
 import org.mcphoton.command.CommandExecutor;
+import org.mcphoton.command.impl.AllocationCommand;
+import org.mcphoton.command.impl.BotsCommand;
+import org.mcphoton.command.impl.CaptureCommand;
 import org.mcphoton.command.impl.DebugCommand;
 import org.mcphoton.command.impl.ManCommand;
+import org.mcphoton.command.impl.ReplayCommand;
 import org.mcphoton.command.impl.StopCommand;
+import org.mcphoton.command.impl.TrafficCommand;
 import org.mcphoton.core.listeners.PlayerMoveListener;
 import org.mcphoton.entity.impl.OnlinePlayer;
 import org.mcphoton.event.Events;
 import org.mcphoton.event.ListenOrder;
 import org.mcphoton.event.impl.PlayerMoveEvent;
 import org.mcphoton.messaging.TextChatMessage;
+import org.mcphoton.network.Backpressure;
+import org.mcphoton.network.ConnectionAdmission;
+import org.mcphoton.network.ConnectionTimers;
+import org.mcphoton.network.InboundQueue;
+import org.mcphoton.network.LocalSessionService;
+import org.mcphoton.network.MojangSessionService;
+import org.mcphoton.network.MovementCoalescer;
+import org.mcphoton.network.PacketCapture;
+import org.mcphoton.network.PacketCompression;
+import org.mcphoton.network.PacketEncryption;
+import org.mcphoton.network.PacketTelemetry;
 import org.mcphoton.network.PacketsRegisterer;
-import org.mcphoton.network.PhotonPacketSender;
 import org.mcphoton.network.ReceiverThread;
+import org.mcphoton.network.SessionService;
+import org.mcphoton.network.StatusResponseCache;
 import org.mcphoton.plugin.GlobalPluginsManager;
 import org.mcphoton.plugin.PhotonPluginsManager;
 import org.mcphoton.plugin.Plugin;
@@ -64,6 +85,14 @@ public final class Photon {
 	private static final Bag<OnlinePlayer> players = new SynchronizedBag<>();
 	private static volatile int maxPlayers;
 	private static volatile int viewDistance;
+	private static volatile int networkThreads;
+	private static volatile boolean virtualThreadsNetwork;
+	private static volatile int updateThreads;
+	private static volatile boolean packetCorking;
+	private static volatile int compressionThreshold;
+	private static volatile boolean onlineMode;
+	private static volatile boolean packetsBeforeUpdates;
+	private static volatile SessionService sessionService;
 	private static volatile TextChatMessage description;
 	private static volatile String logoBase64;
 	private static volatile Location spawn;
@@ -117,13 +146,28 @@ public final class Photon {
 		log.info("Loading photon's commands...");
 		loadCommands();
 		
+		if (onlineMode) {
+			log.info("Generating the RSA key pair...");
+			try {
+				PacketEncryption.generateKeyPair();
+			} catch (GeneralSecurityException ex) {
+				log.error(ex, "Unable to generate the RSA key pair");
+			}
+		}
+		
 		log.info("Starting the working threads..");
 		consoleThread = new ConsoleThread();
 		consoleThread.start();
-		PhotonPacketSender.start();
+		UpdateThread.start(updateThreads);
 		try {
 			InetSocketAddress bindAddress = new InetSocketAddress(port.get());
-			receiverThread = ReceiverThread.createInstance(bindAddress);
+			if (virtualThreadsNetwork) {
+				if (!ReceiverThread.isVirtualThreadsSupported())
+					log.warning("The virtual threads aren't supported by this JVM: each client will use two platform threads.");
+				receiverThread = ReceiverThread.createVirtualThreadsInstance(bindAddress);
+			} else {
+				receiverThread = ReceiverThread.createInstance(bindAddress, networkThreads);
+			}
 			receiverThread.start();
 		} catch (Exception e) {
 			log.error(e, "Unable to start the ReceiverThread");
@@ -243,6 +287,92 @@ public final class Photon {
 			String executorThreadsSetting = props.getProperty("executorThreads");
 			int nThreads = Integer.parseInt(executorThreadsSetting);
 			executorService = Executors.newScheduledThreadPool(nThreads);
+			
+			String networkThreadsSetting = props.getProperty("networkThreads");
+			networkThreads = Integer.parseInt(networkThreadsSetting);
+			if (networkThreads <= 0)
+				networkThreads = Runtime.getRuntime().availableProcessors();
+			
+			String networkModeSetting = props.getProperty("networkMode");
+			virtualThreadsNetwork = networkModeSetting.trim().equalsIgnoreCase("virtualThreads");
+			
+			String updateThreadsSetting = props.getProperty("updateThreads");
+			updateThreads = Integer.parseInt(updateThreadsSetting);
+			
+			String packetCorkingSetting = props.getProperty("packetCorking");
+			packetCorking = Boolean.parseBoolean(packetCorkingSetting);
+			
+			String compressionThresholdSetting = props.getProperty("compressionThreshold");
+			compressionThreshold = Integer.parseInt(compressionThresholdSetting);
+			
+			String compressionLevelSetting = props.getProperty("compressionLevel");
+			String compressionThreadsSetting = props.getProperty("compressionThreads");
+			String compressionAsyncSizeSetting = props.getProperty("compressionAsyncSize");
+			PacketCompression.configure(Integer.parseInt(compressionLevelSetting), Integer.parseInt(compressionThreadsSetting),
+					Integer.parseInt(compressionAsyncSizeSetting));
+			
+			String packetHandlingPhaseSetting = props.getProperty("packetHandlingPhase");
+			packetsBeforeUpdates = !packetHandlingPhaseSetting.trim().equalsIgnoreCase("afterUpdates");
+			
+			String inboundQueueCapacitySetting = props.getProperty("inboundQueueCapacity");
+			String maxPacketsPerTickSetting = props.getProperty("maxPacketsPerTick");
+			InboundQueue.configure(Integer.parseInt(inboundQueueCapacitySetting), Integer.parseInt(maxPacketsPerTickSetting));
+			
+			String coalesceMovementsSetting = props.getProperty("coalesceMovements");
+			MovementCoalescer.configure(Boolean.parseBoolean(coalesceMovementsSetting));
+			
+			String packetTelemetrySetting = props.getProperty("packetTelemetry");
+			PacketTelemetry.configure(Boolean.parseBoolean(packetTelemetrySetting));
+			
+			String packetCaptureSetting = props.getProperty("packetCaptureFile", "").trim();
+			if (!packetCaptureSetting.isEmpty()) {
+				PacketCapture.start(new File(packetCaptureSetting));
+			}
+			
+			String highWatermarkSetting = props.getProperty("sendQueueHighWatermark");
+			String lowWatermarkSetting = props.getProperty("sendQueueLowWatermark");
+			String backpressurePoliciesSetting = props.getProperty("backpressurePolicies");
+			String slowClientGracePeriodSetting = props.getProperty("slowClientGracePeriod");
+			Set<Backpressure.Policy> policies = EnumSet.noneOf(Backpressure.Policy.class);
+			for (String policy : backpressurePoliciesSetting.split(",")) {
+				policy = policy.trim();
+				if (!policy.isEmpty()) {// pauseChunks -> PAUSE_CHUNKS
+					policies.add(Backpressure.Policy.valueOf(policy.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase()));
+				}
+			}
+			Backpressure.configure(Long.parseLong(highWatermarkSetting), Long.parseLong(lowWatermarkSetting), policies,
+					TimeUnit.SECONDS.toMillis(Long.parseLong(slowClientGracePeriodSetting)));
+			
+			String ipConnectionRateSetting = props.getProperty("ipConnectionRate");
+			String ipConnectionBurstSetting = props.getProperty("ipConnectionBurst");
+			String subnetConnectionRateSetting = props.getProperty("subnetConnectionRate");
+			String subnetConnectionBurstSetting = props.getProperty("subnetConnectionBurst");
+			String maxHalfOpenConnectionsSetting = props.getProperty("maxHalfOpenConnections");
+			String handshakeTimeoutSetting = props.getProperty("handshakeTimeout");
+			ConnectionAdmission.configure(Double.parseDouble(ipConnectionRateSetting), Double.parseDouble(ipConnectionBurstSetting),
+					Double.parseDouble(subnetConnectionRateSetting), Double.parseDouble(subnetConnectionBurstSetting),
+					Integer.parseInt(maxHalfOpenConnectionsSetting), Long.parseLong(handshakeTimeoutSetting));
+			
+			String keepAliveIntervalSetting = props.getProperty("keepAliveInterval");
+			String keepAliveTimeoutSetting = props.getProperty("keepAliveTimeout");
+			String loginTimeoutSetting = props.getProperty("loginTimeout");
+			String idleTimeoutSetting = props.getProperty("idleTimeout");
+			ConnectionTimers.configure(TimeUnit.SECONDS.toMillis(Long.parseLong(keepAliveIntervalSetting)),
+					TimeUnit.SECONDS.toMillis(Long.parseLong(keepAliveTimeoutSetting)),
+					TimeUnit.SECONDS.toMillis(Long.parseLong(loginTimeoutSetting)),
+					TimeUnit.MINUTES.toMillis(Long.parseLong(idleTimeoutSetting)));
+			
+			String statusCacheIntervalSetting = props.getProperty("statusCacheInterval");
+			StatusResponseCache.configure(Long.parseLong(statusCacheIntervalSetting));
+			
+			String onlineModeSetting = props.getProperty("onlineMode");
+			onlineMode = Boolean.parseBoolean(onlineModeSetting);
+			
+			String sessionServiceSetting = props.getProperty("sessionService");
+			if (sessionServiceSetting.trim().equalsIgnoreCase("local"))
+				sessionService = new LocalSessionService();
+			else
+				sessionService = new MojangSessionService();
 		} catch (IOException ex) {
 			ex.printStackTrace();
 		}
@@ -295,6 +425,21 @@ public final class Photon {
 		
 		ManCommand manCmd = new ManCommand();
 		CommandExecutor.register(manCmd, "help");
+		
+		TrafficCommand trafficCmd = new TrafficCommand();
+		CommandExecutor.register(trafficCmd);
+		
+		CaptureCommand captureCmd = new CaptureCommand();
+		CommandExecutor.register(captureCmd);
+		
+		ReplayCommand replayCmd = new ReplayCommand();
+		CommandExecutor.register(replayCmd);
+		
+		BotsCommand botsCmd = new BotsCommand();
+		CommandExecutor.register(botsCmd);
+		
+		AllocationCommand allocationCmd = new AllocationCommand();
+		CommandExecutor.register(allocationCmd);
 	}
 	
 	public static ScheduledExecutorService executorService() {
@@ -327,6 +472,50 @@ public final class Photon {
 		logoBase64 = Base64.getEncoder().encodeToString(bytesOutput.toByteArray());// encodes it in base64
 	}
 	
+	/**
+	 * Checks if the packets sent to the clients are corked until the end of the tick.
+	 */
+	public static boolean isPacketCorkingEnabled() {
+		return packetCorking;
+	}
+	
+	/**
+	 * Gets the size, in bytes, above which the packets are compressed. Returns a negative value if the compression is
+	 * disabled.
+	 */
+	public static int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+	
+	/**
+	 * Checks if the received packets are handled at the beginning of the tick, before the game updates. If false, they
+	 * are handled after the game updates.
+	 */
+	public static boolean isPacketHandlingBeforeUpdates() {
+		return packetsBeforeUpdates;
+	}
+	
+	/**
+	 * Checks if the players are authenticated, and their data encrypted.
+	 */
+	public static boolean isOnlineMode() {
+		return onlineMode;
+	}
+	
+	/**
+	 * Gets the service that authenticates the players in online mode.
+	 */
+	public static SessionService getSessionService() {
+		return sessionService;
+	}
+	
+	/**
+	 * Sets the service that authenticates the players in online mode.
+	 */
+	public static void setSessionService(SessionService sessionService) {
+		Photon.sessionService = sessionService;
+	}
+	
 	public static boolean isDebugEnabled() {
 		return debug;
 	}
@@ -343,6 +532,10 @@ public final class Photon {
 		return description;
 	}
 	
+	public static void setDescription(TextChatMessage description) {
+		Photon.description = description;
+	}
+	
 	public static Location getSpawn() {
 		return spawn;
 	}
@@ -414,7 +607,13 @@ public final class Photon {
 		log.info("Stopping Threads...");
 		consoleThread.stop();
 		receiverThread.stop();
-		PhotonPacketSender.stop();
+		UpdateThread.stopAll();
+		
+		try {
+			PacketCapture.stop();
+		} catch (IOException ex) {
+			log.error(ex, "Unable to close the packet capture");
+		}
 		
 		System.exit(0);
 	}
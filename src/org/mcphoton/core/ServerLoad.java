@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Measures the load of the server: the duration of the ticks of the first UpdateThread, which handles the received
+ * packets, and the memory allocated by all the threads. It's used by the load tools to compare the builds: take a
+ * {@link Sample} before and after the load, and call {@link Sample#until(Sample)}.
+ *
+ * @author ElectronWill
+ */
+public final class ServerLoad {
+	
+	private static final int HISTORY = 8192;// the number of tick durations kept for the percentiles
+	
+	private static final long[] durations = new long[HISTORY];
+	private static volatile long ticks;// written by the first UpdateThread only
+	private static volatile long totalNanos;
+	
+	/**
+	 * Records the duration of a tick of the first UpdateThread.
+	 */
+	static void tickEnded(long nanos) {
+		final long n = ticks;
+		durations[(int) (n % HISTORY)] = nanos;
+		totalNanos += nanos;
+		ticks = n + 1;// publishes the duration
+	}
+	
+	/**
+	 * Gets the number of bytes allocated by all the alive threads since their start, except the current thread, or -1
+	 * if the JVM can't measure it.
+	 */
+	private static long allocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+		if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled())
+			return -1;
+		long sum = 0;
+		for (long allocated : sunBean.getThreadAllocatedBytes(sunBean.getAllThreadIds())) {
+			if (allocated > 0) {
+				sum += allocated;
+			}
+		}
+		return sum - sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	/**
+	 * Takes a sample of the counters. The memory allocated by the calling thread, usually the thread of a load tool,
+	 * isn't counted.
+	 */
+	public static Sample sample() {
+		return new Sample(System.nanoTime(), ticks, totalNanos, allocatedBytes());
+	}
+	
+	/**
+	 * The state of the counters at some time.
+	 */
+	public static final class Sample {
+		
+		private final long time, ticks, tickNanos, allocatedBytes;
+		
+		private Sample(long time, long ticks, long tickNanos, long allocatedBytes) {
+			this.time = time;
+			this.ticks = ticks;
+			this.tickNanos = tickNanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+		
+		/**
+		 * Computes the load between this sample and a later one.
+		 */
+		public Report until(Sample end) {
+			final long n = end.ticks - ticks;
+			final int kept = (int) Math.min(n, HISTORY);
+			final long[] sorted = new long[kept];
+			for (int i = 0; i < kept; i++) {
+				sorted[i] = durations[(int) ((end.ticks - 1 - i) % HISTORY)];
+			}
+			Arrays.sort(sorted);
+			final long p99 = (kept == 0) ? 0 : sorted[Math.min(kept - 1, (int) Math.ceil(kept * 0.99) - 1)];
+			final long max = (kept == 0) ? 0 : sorted[kept - 1];
+			final long allocated = (allocatedBytes < 0 || end.allocatedBytes < 0) ? -1 : end.allocatedBytes - allocatedBytes;
+			return new Report(end.time - time, n, end.tickNanos - tickNanos, p99, max, allocated);
+		}
+		
+	}
+	
+	/**
+	 * The load of the server during some time.
+	 */
+	public static final class Report {
+		
+		private final long nanos, ticks, tickNanos, p99TickNanos, maxTickNanos, allocatedBytes;
+		
+		private Report(long nanos, long ticks, long tickNanos, long p99TickNanos, long maxTickNanos, long allocatedBytes) {
+			this.nanos = nanos;
+			this.ticks = ticks;
+			this.tickNanos = tickNanos;
+			this.p99TickNanos = p99TickNanos;
+			this.maxTickNanos = maxTickNanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+		
+		/**
+		 * Gets the duration of the measure, in nanoseconds.
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+		
+		public double getTicksPerSecond() {
+			return (nanos == 0) ? 0 : ticks * 1e9 / nanos;
+		}
+		
+		/**
+		 * Gets the mean duration of a tick, in nanoseconds, without the wait for the next tick.
+		 */
+		public long getMeanTickNanos() {
+			return (ticks == 0) ? 0 : tickNanos / ticks;
+		}
+		
+		/**
+		 * Gets the 99th percentile of the tick duration, in nanoseconds. Only the last 8192 ticks are taken into account.
+		 */
+		public long getP99TickNanos() {
+			return p99TickNanos;
+		}
+		
+		public long getMaxTickNanos() {
+			return maxTickNanos;
+		}
+		
+		/**
+		 * Gets the number of bytes allocated by the server's threads, or -1 if the JVM can't measure it.
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+		
+		@Override
+		public String toString() {
+			final double seconds = nanos / 1e9;
+			final StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%.1f s, %.2f ticks/s, tick mean %.2f ms, p99 %.2f ms, max %.2f ms", seconds,
+					getTicksPerSecond(), getMeanTickNanos() / 1e6, p99TickNanos / 1e6, maxTickNanos / 1e6));
+			if (allocatedBytes >= 0) {
+				sb.append(String.format(", allocated %.1f MiB (%.1f MiB/s)", allocatedBytes / 1048576.0,
+						allocatedBytes / 1048576.0 / Math.max(seconds, 1e-9)));
+			}
+			return sb.toString();
+		}
+		
+	}
+	
+	private ServerLoad() {}
+	
+}
@@ -17,6 +17,9 @@ package org.mcphoton.core;
 import java.util.Arrays;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.locks.LockSupport;
+import org.mcphoton.core.listeners.PlayerMoveListener;
+import org.mcphoton.network.InboundQueue;
+import org.mcphoton.network.PhotonPacketSender;
 import com.electronwill.collections.Bag;
 import com.electronwill.collections.SimpleBag;
 
@@ -60,6 +63,17 @@ public final class UpdateThread implements ThreadManager {
 		}
 	}
 	
+	/**
+	 * Stops all the UpdateThreads.
+	 */
+	public static synchronized void stopAll() {
+		if (threads == null)
+			return;
+		for (UpdateThread ut : threads) {
+			ut.stop();
+		}
+	}
+	
 	/**
 	 * Adds some new UpdateThreads.
 	 */
@@ -85,7 +99,7 @@ public final class UpdateThread implements ThreadManager {
 	
 	private final Bag<Updateable> toUpdate;
 	private final Thread t = new Consumer();
-	private boolean run = false;
+	private volatile boolean run = false;
 	private volatile long tickDuration = 0;// in ms
 	
 	private final RandomBoolean randomBoolean = new RandomBoolean();
@@ -105,8 +119,8 @@ public final class UpdateThread implements ThreadManager {
 	 */
 	@Override
 	public void start() {
-		t.start();
 		run = true;
+		t.start();
 	}
 	
 	@Override
@@ -189,8 +203,11 @@ public final class UpdateThread implements ThreadManager {
 		/**
 		 * Main game loop. Executes in the following order:
 		 * <li>Available plugin tasks
+		 * <li>Received packets, before or after the game updates depending on the configuration. Only the first
+		 * UpdateThread handles them, see {@link InboundQueue}.
 		 * <li>Game updates: entity, blocks or any other thing that need its {@link Updateable#update()} method to be
 		 * called.
+		 * <li>Flush of the corked clients, which sends the packets produced during the tick.
 		 * <li>If there is some remaining time, repeat the following things until the elapsed time is greater than or
 		 * equal to 50ms: <br>
 		 * if there is more than 10ms remaining: try to sleep for 5ms <br>
@@ -200,6 +217,13 @@ public final class UpdateThread implements ThreadManager {
 		public void run() {
 			while (run) {// Main loop. 1 tick = 50 ms = 50 000 000 ns
 				long t0 = System.nanoTime();// Initial time in nanoseconds.
+				final boolean handlesPackets = (id == 0);
+				final boolean packetsFirst = Photon.isPacketHandlingBeforeUpdates();
+				
+				// == Received packets ==
+				if (handlesPackets && packetsFirst) {
+					InboundQueue.handleQueued();
+				}
 				
 				// == Game update ==
 				boolean warned = false;
@@ -221,6 +245,22 @@ public final class UpdateThread implements ThreadManager {
 						Photon.log.error(t, "Error in update loop");
 					}
 				}
+				
+				// == Received packets ==
+				if (handlesPackets && !packetsFirst) {
+					InboundQueue.handleQueued();
+				}
+				
+				if (handlesPackets) {// in the same Thread as the moves, which use the loaded chunks too
+					PlayerMoveListener.sendResumedChunks();
+				}
+				
+				// == Network flush ==
+				PhotonPacketSender.flushCorkedClients();// sends the packets produced during this tick
+				
+				if (handlesPackets) {
+					ServerLoad.tickEnded(System.nanoTime() - t0);
+				}
 				if (warned) {
 					continue;
 				}
@@ -6,6 +6,8 @@ import org.mcphoton.core.Photon;
 import org.mcphoton.entity.impl.OnlinePlayer;
 import org.mcphoton.event.EventHandler;
 import org.mcphoton.event.impl.PlayerMoveEvent;
+import org.mcphoton.network.Backpressure;
+import org.mcphoton.network.ClientInfos;
 import org.mcphoton.network.clientbound.play.ChunkDataPacket;
 import org.mcphoton.security.AccessPermit;
 import org.mcphoton.security.RootPermit;
@@ -36,14 +38,35 @@ public class PlayerMoveListener implements EventHandler<PlayerMoveEvent> {
 		OnlinePlayer player = event.getPlayer();
 		int cx = (int) (event.getNewX() / 16);
 		int cz = (int) (event.getNewZ() / 16);
+		boolean sameChunk = (cx == (int) (event.getCurrentX() / 16) && cz == (int) (event.getCurrentZ() / 16));// before the move
 		
 		player.setX(event.getNewX());
 		player.setY(event.getNewY());
 		player.setZ(event.getNewZ());
 		
-		if (cx == event.getCurrentX() / 16 && cz == event.getCurrentZ() / 16)
+		if (sameChunk)
 			return;
-			
+		sendMissingChunks(player, cx, cz);
+	}
+	
+	/**
+	 * Sends the missing chunks to the players whose chunks have been paused by the {@link Backpressure}, and that
+	 * aren't congested anymore. Called at each tick, by the UpdateThread that handles the received packets.
+	 */
+	public static void sendResumedChunks() {
+		ClientInfos client;
+		while ((client = Backpressure.pollResumedChunks()) != null) {
+			final OnlinePlayer player = client.getPlayer();
+			if (player == null || client.isClosed())
+				continue;
+			sendMissingChunks(player, (int) (player.getX() / 16), (int) (player.getZ() / 16));
+		}
+	}
+	
+	/**
+	 * Unloads the chunks that are too far from the player, and sends the ones that are missing around him/her.
+	 */
+	private static void sendMissingChunks(OnlinePlayer player, int cx, int cz) {
 		Collection<Chunk> chunks = player.getLoadedChunks();
 		
 		// Cleans unused chunks:
@@ -55,6 +78,9 @@ public class PlayerMoveListener implements EventHandler<PlayerMoveEvent> {
 			}
 		}
 		
+		if (Backpressure.shouldPauseChunks(player.getClientInfos()))// the client can't take more data for now
+			return;// the missing chunks will be sent when the client isn't congested anymore
+		
 		// Looks for needed chunks:
 		for (int d = 0; d <= Photon.getViewDistance(); d++) {
 			for (int relativeX = -d; relativeX <= d; relativeX++) {
@@ -79,7 +105,6 @@ public class PlayerMoveListener implements EventHandler<PlayerMoveEvent> {
 				}
 			}
 		}
-		
 	}
 	
 }
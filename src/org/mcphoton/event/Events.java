@@ -14,26 +14,107 @@
  */
 package org.mcphoton.event;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
-import java.util.EnumMap;
-import java.util.HashMap;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
 import org.mcphoton.core.Photon;
-import com.electronwill.collections.Bag;
-import com.electronwill.collections.SimpleBag;
 
 /**
  * Utility class for managing events and their listeners.
+ * <p>
+ * A listener registered for a class or an interface is notified of the events of that type and of all its subtypes:
+ * for instance a listener of {@link CancellableEvent} is notified of all the cancellable events.
+ * </p>
+ * <p>
+ * Each event class has an array of handlers, that contains the handlers of the class and of its supertypes sorted by
+ * {@link ListenOrder}, then by registration order. The array is computed the first time the class is used, and
+ * rebuilt each time a handler of the class or of one of its supertypes is registered or unregistered. This way
+ * {@link #notifyListeners(PhotonEvent)} doesn't lock anything nor walk the class hierarchy: it just reads the current
+ * array. The registrations are rare, so they are synchronized.
+ * </p>
  *
  * @author ElectronWill
  */
 public final class Events {
 	
+	private static final EventHandler[] NO_HANDLERS = {};
+	
+	private static final ListenOrder[] ORDERS = ListenOrder.values();
+	
+	/**
+	 * A handler registered for a type of events.
+	 */
+	private static final class Registration {
+		
+		final Class<?> eventType;// a subclass of PhotonEvent, or an interface
+		final EventHandler handler;
+		final ListenOrder order;
+		
+		Registration(Class<?> eventType, EventHandler handler, ListenOrder order) {
+			this.eventType = eventType;
+			this.handler = handler;
+			this.order = order;
+		}
+		
+	}
+	
+	/**
+	 * Contains all the registrations, in registration order. Accessed with the Events' lock.
+	 */
+	private static final ArrayList<Registration> REGISTRATIONS = new ArrayList<>();
+	
 	/**
-	 * Contains listeners associated to events classes, by ListenOrder.
+	 * Contains the ListenerFlag of each event class, to update them when the handlers change. The keys are weak, so that
+	 * the event classes of the plugins, and their ClassLoaders, can be unloaded once their handlers are unregistered: a
+	 * flag only refers to the handlers of its chain. Accessed with the Events' lock.
 	 */
-	private static final HashMap<Class<? extends PhotonEvent>, EnumMap<ListenOrder, Bag<EventHandler>>> REGISTRATIONS = new HashMap<>();
+	private static final WeakHashMap<Class<?>, ListenerFlag> FLAGS_BY_CLASS = new WeakHashMap<>();
 	
+	/**
+	 * Gives a fast access to the ListenerFlag of each event class, without any lock.
+	 */
+	private static final ClassValue<ListenerFlag> FLAGS = new ClassValue<ListenerFlag>() {
+		@Override
+		protected ListenerFlag computeValue(Class<?> type) {
+			return flagOf(type);
+		}
+	};
+	
+	/**
+	 * Tells if some listeners are registered for an event class or for one of its supertypes, and holds the chain of
+	 * handlers of the class. The flag is updated when a handler is registered or unregistered, and reading it costs a
+	 * volatile read: the code that fires an event very often keeps the flag in a static field, and checks it to avoid
+	 * creating and dispatching the event when nobody listens to it.
+	 */
+	public static final class ListenerFlag {
+		
+		private volatile EventHandler[] chain = NO_HANDLERS;// the handlers, in the order they are notified
+		
+		private ListenerFlag() {}
+		
+		/**
+		 * @return true if some listeners are registered for the event class or for one of its supertypes
+		 */
+		public boolean isSet() {
+			return chain.length != 0;
+		}
+		
+	}
+	
+	/**
+	 * Registers all the public methods of the listener that have the {@link Listen} annotation. Each method is called
+	 * through an EventHandler generated by the {@link LambdaMetafactory}, as fast as a direct call. The parameter of a
+	 * method may be an event class, or an interface implemented by some events, like
+	 * {@link org.mcphoton.event.impl.PacketEvent}.
+	 */
 	public static void registerAll(Object listener) {
 		Method[] publicMethods = listener.getClass().getMethods();
 		for (Method method : publicMethods) {
@@ -49,93 +130,206 @@ public final class Events {
 			}
 			
 			Class<?> pClass = method.getParameterTypes()[0];
-			if (!PhotonEvent.class.isAssignableFrom(pClass)) {
-				throw new IllegalArgumentException("Method " + method.toGenericString() + " must take a PhotonEvent as parameter");
+			if (!PhotonEvent.class.isAssignableFrom(pClass) && !pClass.isInterface()) {
+				throw new IllegalArgumentException("Method " + method.toGenericString()
+						+ " must take a PhotonEvent, or an interface implemented by events, as parameter");
 			}
 			
 			ListenOrder order = listenAnnotation.order();
 			boolean ignoreCancelled = listenAnnotation.ignoreCancelled();
-			if (ignoreCancelled && CancellableEvent.class.isAssignableFrom(pClass)) {
-				Class<? extends CancellableEvent> eventClass = (Class<? extends CancellableEvent>) pClass;
+			EventHandler<PhotonEvent> invoker = createInvoker(listener, method);
+			if (ignoreCancelled && CancellableEvent.class.isAssignableFrom(pClass)) {// always cancellable
 				EventHandler<CancellableEvent> handler = (CancellableEvent e) -> {
-					try {
-						if (!e.isCancelled()) {
-							method.invoke(listener, e);
-						}
-					} catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
-						Photon.log.errorFrom(ex, "EventHandler");
+					if (!e.isCancelled()) {
+						invoker.handle(e);
 					}
 				};
-				register(eventClass, handler, order);
-			} else {
-				Class<? extends PhotonEvent> eventClass = (Class<? extends PhotonEvent>) pClass;
+				addRegistration(pClass, handler, order);
+			} else if (ignoreCancelled && (pClass.isAssignableFrom(CancellableEvent.class) || pClass.isInterface())) {// maybe cancellable
 				EventHandler<PhotonEvent> handler = (PhotonEvent e) -> {
-					try {
-						method.invoke(listener, e);
-					} catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
-						Photon.log.errorFrom(ex, "EventHandler");
+					if (!(e instanceof CancellableEvent) || !((CancellableEvent) e).isCancelled()) {
+						invoker.handle(e);
 					}
 				};
-				register(eventClass, handler, order);
+				addRegistration(pClass, handler, order);
+			} else {
+				addRegistration(pClass, invoker, order);
 			}
 		}
 	}
 	
-	public static synchronized <E extends PhotonEvent> void register(Class<E> eventClass, EventHandler<? super E> eventHandler,
-			ListenOrder listenOrder) {
-		EnumMap<ListenOrder, Bag<EventHandler>> handlersMap = REGISTRATIONS.get(eventClass);
-		if (handlersMap == null) {
-			handlersMap = new EnumMap(ListenOrder.class);
-			REGISTRATIONS.put(eventClass, handlersMap);
+	/**
+	 * Creates an EventHandler that calls a method of the listener. The handler is generated by the
+	 * {@link LambdaMetafactory} if the listener's class is public and visible from the Events' ClassLoader, or else it
+	 * calls a MethodHandle.
+	 */
+	private static EventHandler<PhotonEvent> createInvoker(Object listener, Method method) {
+		final Class<?> declaringClass = method.getDeclaringClass();
+		final Class<?> eventClass = method.getParameterTypes()[0];
+		final boolean isStatic = Modifier.isStatic(method.getModifiers());
+		final MethodType eventType = MethodType.methodType(void.class, eventClass);
+		if (isLinkable(declaringClass) && isLinkable(eventClass)) {
+			try {
+				final MethodHandles.Lookup lookup = MethodHandles.lookup();
+				final MethodHandle target = lookup.unreflect(method);
+				final MethodType factoryType = isStatic ? MethodType.methodType(EventHandler.class) : MethodType.methodType(
+						EventHandler.class, declaringClass);
+				final CallSite site = LambdaMetafactory.metafactory(lookup, "handle", factoryType, MethodType.methodType(
+						void.class, PhotonEvent.class), target, eventType);
+				return (EventHandler<PhotonEvent>) (isStatic ? site.getTarget().invoke() : site.getTarget().invoke(listener));
+			} catch (Throwable t) {
+				Photon.log.debug("Unable to generate the EventHandler of " + method + ", a MethodHandle is used instead: " + t);
+			}
+		}
+		try {
+			method.setAccessible(true);
+			final MethodHandle handle = MethodHandles.lookup().unreflect(method);
+			final MethodHandle target = (isStatic ? handle : handle.bindTo(listener)).asType(eventType.changeParameterType(0,
+					PhotonEvent.class));
+			return (PhotonEvent e) -> {
+				try {
+					target.invokeExact(e);
+				} catch (RuntimeException | Error ex) {
+					throw ex;
+				} catch (Throwable ex) {
+					throw new RuntimeException(ex);
+				}
+			};
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			throw new IllegalArgumentException("Method " + method.toGenericString() + " isn't accessible", ex);
 		}
-		Bag<EventHandler> handlersBag = handlersMap.get(listenOrder);
-		if (handlersBag == null) {
-			handlersBag = new SimpleBag<>();
-			handlersMap.put(listenOrder, handlersBag);
+	}
+	
+	/**
+	 * Checks if a generated EventHandler can refer to a class: the class must be public, and be the class that the
+	 * Events' ClassLoader finds with that name. The classes of the plugins, loaded by other ClassLoaders, aren't.
+	 */
+	private static boolean isLinkable(Class<?> c) {
+		for (Class<?> outer = c; outer != null; outer = outer.getEnclosingClass()) {
+			if (!Modifier.isPublic(outer.getModifiers()))
+				return false;
+		}
+		try {
+			return Class.forName(c.getName(), false, Events.class.getClassLoader()) == c;
+		} catch (ClassNotFoundException ex) {
+			return false;
 		}
-		handlersBag.add(eventHandler);
+	}
+	
+	public static <E extends PhotonEvent> void register(Class<E> eventClass, EventHandler<? super E> eventHandler,
+			ListenOrder listenOrder) {
+		addRegistration(eventClass, eventHandler, listenOrder);
+	}
+	
+	private static synchronized void addRegistration(Class<?> eventType, EventHandler eventHandler, ListenOrder listenOrder) {
+		REGISTRATIONS.add(new Registration(eventType, eventHandler, listenOrder));
+		updateChains(eventType);
 	}
 	
 	public static synchronized <E extends PhotonEvent> void unregister(Class<E> eventClass, EventHandler<? super E> eventHandler,
 			ListenOrder listenOrder) {
-		EnumMap<ListenOrder, Bag<EventHandler>> handlersMap = REGISTRATIONS.get(eventClass);
-		if (handlersMap == null)
-			return;
-		Bag<EventHandler> handlersBag = handlersMap.get(listenOrder);
-		if (handlersBag == null)
-			return;
-		handlersBag.remove(eventHandler);
+		if (remove(eventClass, eventHandler, listenOrder)) {
+			updateChains(eventClass);
+		}
 	}
 	
 	public static synchronized <E extends PhotonEvent> void unregister(Class<E> eventClass, EventHandler<? super E> eventHandler) {
-		EnumMap<ListenOrder, Bag<EventHandler>> handlersMap = REGISTRATIONS.get(eventClass);
-		if (handlersMap == null)
-			return;
-		for (ListenOrder order : ListenOrder.values()) {
-			Bag<EventHandler> handlersBag = handlersMap.get(order);
-			if (handlersBag == null)
-				return;
-			handlersBag.remove(eventHandler);
-		}
-	}
-	
-	public static synchronized void notifyListeners(PhotonEvent event) {
-		Class<? extends PhotonEvent> eventClass = event.getClass();
-		EnumMap<ListenOrder, Bag<EventHandler>> handlersMap = REGISTRATIONS.get(eventClass);
-		if (handlersMap == null)
-			return;
-		for (ListenOrder order : ListenOrder.values()) {
-			Bag<EventHandler> handlersBag = handlersMap.get(order);
-			if (handlersBag == null)
-				continue;
-			for (EventHandler handler : handlersBag) {
-				try {
-					handler.handle(event);
-				} catch (Throwable t) {
-					Photon.log.errorFrom(t, "EventHandler", "An error occured while handling event on this handler");
+		boolean removed = false;
+		for (ListenOrder order : ORDERS) {
+			removed |= remove(eventClass, eventHandler, order);
+		}
+		if (removed) {
+			updateChains(eventClass);
+		}
+	}
+	
+	/**
+	 * Removes the first registration that matches the parameters. Called with the Events' lock.
+	 *
+	 * @return true if a registration has been removed
+	 */
+	private static boolean remove(Class<?> eventType, EventHandler eventHandler, ListenOrder listenOrder) {
+		for (Iterator<Registration> it = REGISTRATIONS.iterator(); it.hasNext();) {
+			final Registration r = it.next();
+			if (r.eventType == eventType && r.order == listenOrder && r.handler.equals(eventHandler)) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Rebuilds and publishes the chains of handlers of the known event classes that are affected by a modification of
+	 * the handlers of the given type, that is to say the classes that are the type or one of its subtypes. Called with
+	 * the Events' lock.
+	 */
+	private static void updateChains(Class<?> eventType) {
+		for (Map.Entry<Class<?>, ListenerFlag> entry : FLAGS_BY_CLASS.entrySet()) {
+			if (eventType.isAssignableFrom(entry.getKey())) {
+				entry.getValue().chain = computeChain(entry.getKey());
+			}
+		}
+	}
+	
+	/**
+	 * Computes the chain of handlers of an event class: the handlers of the class and of its supertypes, sorted by
+	 * ListenOrder, then by registration order. Called with the Events' lock.
+	 */
+	private static EventHandler[] computeChain(Class<?> eventClass) {
+		final ArrayList<EventHandler> chain = new ArrayList<>();
+		for (ListenOrder order : ORDERS) {
+			for (Registration r : REGISTRATIONS) {
+				if (r.order == order && r.eventType.isAssignableFrom(eventClass)) {
+					chain.add(r.handler);
 				}
 			}
 		}
+		return chain.isEmpty() ? NO_HANDLERS : chain.toArray(NO_HANDLERS);
+	}
+	
+	/**
+	 * Gets or creates the ListenerFlag of a class. Only one ListenerFlag is created per class, even if the ClassValue
+	 * computes its value several times.
+	 */
+	private static synchronized ListenerFlag flagOf(Class<?> eventClass) {
+		ListenerFlag flag = FLAGS_BY_CLASS.get(eventClass);
+		if (flag == null) {
+			flag = new ListenerFlag();
+			flag.chain = computeChain(eventClass);
+			FLAGS_BY_CLASS.put(eventClass, flag);
+		}
+		return flag;
+	}
+	
+	/**
+	 * Gets the ListenerFlag of an event class. It's always the same object for a given class.
+	 */
+	public static ListenerFlag listenerFlag(Class<? extends PhotonEvent> eventClass) {
+		return FLAGS.get(eventClass);
+	}
+	
+	/**
+	 * Checks if some listeners are registered for the given event class or for one of its supertypes. If there is none,
+	 * the event doesn't need to be created. This method doesn't lock anything, see {@link ListenerFlag}.
+	 */
+	public static boolean hasListeners(Class<? extends PhotonEvent> eventClass) {
+		return FLAGS.get(eventClass).isSet();
+	}
+	
+	/**
+	 * Notifies the listeners of an event, in their ListenOrder. This method doesn't lock anything and can be called
+	 * from any Thread.
+	 */
+	public static void notifyListeners(PhotonEvent event) {
+		final EventHandler[] chain = FLAGS.get(event.getClass()).chain;
+		for (EventHandler handler : chain) {
+			try {
+				handler.handle(event);
+			} catch (Throwable t) {
+				Photon.log.errorFrom(t, "EventHandler", "An error occured while handling event on this handler");
+			}
+		}
 	}
 	
 	private Events() {}
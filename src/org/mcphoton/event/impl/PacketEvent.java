@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.event.impl;
+
+import org.mcphoton.network.ClientInfos;
+import org.mcphoton.network.MCPacket;
+
+/**
+ * An event about a packet, received or sent. Listen to this interface to be notified of all the packets.
+ *
+ * @author ElectronWill
+ */
+public interface PacketEvent {
+	
+	/**
+	 * Gets the packet.
+	 */
+	MCPacket getPacket();
+	
+	/**
+	 * Gets the client who sent or will receive the packet.
+	 */
+	ClientInfos getClient();
+	
+}
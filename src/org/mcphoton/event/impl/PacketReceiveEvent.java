@@ -20,10 +20,14 @@ import org.mcphoton.network.ReceivablePacket;
 
 /**
  * When a packet is received and is going to be processed, just before its {@link ReceivablePacket#handle()} is called.
+ * <p>
+ * The movement packets and their events are reused for the next packets of the client, so the listeners must not keep
+ * a reference to them.
+ * </p>
  *
  * @author ElectronWill
  */
-public class PacketReceiveEvent extends PhotonEvent {
+public class PacketReceiveEvent extends PhotonEvent implements PacketEvent {
 	
 	private ReceivablePacket packet;
 	private final ClientInfos source;
@@ -36,6 +40,7 @@ public class PacketReceiveEvent extends PhotonEvent {
 	/**
 	 * Gets the packet received from the client. It will be processed if the event is not cancelled.
 	 */
+	@Override
 	public ReceivablePacket getPacket() {
 		return packet;
 	}
@@ -47,6 +52,11 @@ public class PacketReceiveEvent extends PhotonEvent {
 		return source;
 	}
 	
+	@Override
+	public ClientInfos getClient() {
+		return source;
+	}
+	
 	/**
 	 * Sets the packet that will be processed (if this event is not cancelled).
 	 */
@@ -23,7 +23,7 @@ import org.mcphoton.network.SendablePacket;
  *
  * @author ElectronWill
  */
-public final class PacketSendEvent extends CancellableEvent {
+public final class PacketSendEvent extends CancellableEvent implements PacketEvent {
 	
 	private SendablePacket packet;
 	private ClientInfos destination;
@@ -40,11 +40,17 @@ public final class PacketSendEvent extends CancellableEvent {
 		return destination;
 	}
 	
+	@Override
+	public ClientInfos getClient() {
+		return destination;
+	}
+	
 	/**
 	 * Returns the packet that will be sent to the client (if this event is not cancelled).
 	 *
 	 * @return the packet
 	 */
+	@Override
 	public SendablePacket getPacket() {
 		return packet;
 	}
@@ -26,6 +26,18 @@ public class PlayerMoveEvent extends CancellableEvent {
 		this(player, player.getX(), player.getY(), player.getZ(), newYaw, newPitch);
 	}
 	
+	/**
+	 * Reinitializes this event with new values, so that the same object can be fired again.
+	 */
+	public void reset(double newX, double newY, double newZ, float newYaw, float newPitch) {
+		this.newX = newX;
+		this.newY = newY;
+		this.newZ = newZ;
+		this.newYaw = newYaw;
+		this.newPitch = newPitch;
+		this.cancelled = false;
+	}
+	
 	public float getCurrentPitch() {
 		return player.getPitch();
 	}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Protects the server against the slow clients. Each PacketWriter counts the bytes waiting to be sent to its client:
+ * above the high watermark the client is <i>congested</i>, and it stays congested until the number of queued bytes
+ * goes below the low watermark. While a client is congested, the enabled {@link Policy policies} are applied to the
+ * packets sent to it.
+ *
+ * @author ElectronWill
+ */
+public final class Backpressure {
+	
+	/**
+	 * What to do with a congested client.
+	 */
+	public static enum Policy {
+		/**
+		 * Drops the packets that are droppable, see {@link SendablePacket#isDroppable()}.
+		 */
+		DROP,
+		/**
+		 * Replaces the pending packets by the newer ones with the same key, see
+		 * {@link SendablePacket#coalescingKey()}.
+		 */
+		COALESCE,
+		/**
+		 * Stops sending new chunks to the player.
+		 */
+		PAUSE_CHUNKS,
+		/**
+		 * Disconnects the client if it stays congested for longer than the grace period.
+		 */
+		DISCONNECT;
+	}
+	
+	private static volatile long highWatermark = 1024 * 1024;
+	private static volatile long lowWatermark = 256 * 1024;
+	private static volatile Set<Policy> policies = EnumSet.allOf(Policy.class);
+	private static volatile long gracePeriodNanos = TimeUnit.SECONDS.toNanos(30);
+	
+	// Counters:
+	private static final AtomicLong totalQueuedBytes = new AtomicLong();
+	private static final AtomicLong congestionCount = new AtomicLong();
+	private static final AtomicLong droppedCount = new AtomicLong();
+	private static final AtomicLong coalescedCount = new AtomicLong();
+	private static final AtomicLong disconnectedCount = new AtomicLong();
+	
+	/**
+	 * The clients whose chunks have been paused, and that aren't congested anymore.
+	 */
+	private static final ConcurrentLinkedQueue<ClientInfos> resumedChunks = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * Configures the backpressure.
+	 *
+	 * @param highWatermark the number of queued bytes above which a client is congested
+	 * @param lowWatermark the number of queued bytes below which a client isn't congested anymore
+	 * @param policies the policies applied to the congested clients
+	 * @param gracePeriodMillis the time after which a congested client is disconnected, if the DISCONNECT policy is
+	 *        enabled
+	 */
+	public static synchronized void configure(long highWatermark, long lowWatermark, Set<Policy> policies, long gracePeriodMillis) {
+		if (lowWatermark > highWatermark)
+			throw new IllegalArgumentException("The low watermark must be less than or equal to the high watermark");
+		Backpressure.highWatermark = highWatermark;
+		Backpressure.lowWatermark = lowWatermark;
+		Backpressure.policies = policies.isEmpty() ? EnumSet.noneOf(Policy.class) : EnumSet.copyOf(policies);
+		Backpressure.gracePeriodNanos = TimeUnit.MILLISECONDS.toNanos(gracePeriodMillis);
+	}
+	
+	public static long getHighWatermark() {
+		return highWatermark;
+	}
+	
+	public static long getLowWatermark() {
+		return lowWatermark;
+	}
+	
+	public static boolean isEnabled(Policy policy) {
+		return policies.contains(policy);
+	}
+	
+	/**
+	 * Checks if a packet shouldn't be sent to a client. If the client has been congested for too long, it is
+	 * disconnected and this method returns true. The urgent packets are never dropped, but they check the grace period
+	 * too: the keep-alives are sent regularly, even when all the other packets are dropped or paused.
+	 */
+	static boolean shouldDrop(ClientInfos client, SendablePacket packet) {
+		final PacketWriter writer = client.getPacketWriter();
+		if (!writer.isCongested())
+			return false;
+		if (isEnabled(Policy.DISCONNECT) && System.nanoTime() - writer.getCongestedSince() > gracePeriodNanos) {
+			if (client.close()) {
+				disconnectedCount.incrementAndGet();
+			}
+			return true;
+		}
+		if (packet.isUrgent())
+			return false;
+		if (isEnabled(Policy.DROP) && packet.isDroppable()) {
+			droppedCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Checks if a packet should replace the pending packet with the same coalescing key.
+	 */
+	static boolean shouldCoalesce(ClientInfos client, SendablePacket packet) {
+		return packet.coalescingKey() != -1 && isEnabled(Policy.COALESCE) && client.getPacketWriter().isCongested();
+	}
+	
+	/**
+	 * Checks if the new chunks shouldn't be sent to a client for now. If so, the client is given by
+	 * {@link #pollResumedChunks()} when it isn't congested anymore, so that its missing chunks can be sent.
+	 */
+	public static boolean shouldPauseChunks(ClientInfos client) {
+		if (!isEnabled(Policy.PAUSE_CHUNKS))
+			return false;
+		final PacketWriter writer = client.getPacketWriter();
+		if (!writer.isCongested())
+			return false;
+		client.chunksPaused.set(true);
+		if (writer.isCongested())
+			return true;
+		// The congestion may have ended before chunksPaused was set, in which case the client hasn't been resumed:
+		return !client.chunksPaused.compareAndSet(true, false);
+	}
+	
+	/**
+	 * Called by a PacketWriter when its client isn't congested anymore.
+	 */
+	static void congestionEnded(ClientInfos client) {
+		if (client.chunksPaused.compareAndSet(true, false)) {
+			resumedChunks.offer(client);
+		}
+	}
+	
+	/**
+	 * Gets and removes a client whose chunks have been paused, and that isn't congested anymore.
+	 *
+	 * @return the client, or null if there is none
+	 */
+	public static ClientInfos pollResumedChunks() {
+		return resumedChunks.poll();
+	}
+	
+	static void addTotalQueuedBytes(long delta) {
+		totalQueuedBytes.addAndGet(delta);
+	}
+	
+	static void congestionStarted() {
+		congestionCount.incrementAndGet();
+	}
+	
+	static void coalesced() {
+		coalescedCount.incrementAndGet();
+	}
+	
+	/**
+	 * Gets the number of bytes waiting to be sent, for all the clients.
+	 */
+	public static long totalQueuedBytes() {
+		return totalQueuedBytes.get();
+	}
+	
+	/**
+	 * Gets the number of times a client has become congested.
+	 */
+	public static long congestionCount() {
+		return congestionCount.get();
+	}
+	
+	/**
+	 * Gets the number of packets dropped because their client was congested.
+	 */
+	public static long droppedCount() {
+		return droppedCount.get();
+	}
+	
+	/**
+	 * Gets the number of pending packets replaced by a newer one.
+	 */
+	public static long coalescedCount() {
+		return coalescedCount.get();
+	}
+	
+	/**
+	 * Gets the number of clients disconnected because they stayed congested for too long.
+	 */
+	public static long disconnectedCount() {
+		return disconnectedCount.get();
+	}
+	
+	private Backpressure() {}
+	
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.mcphoton.core.Photon;
+import org.mcphoton.entity.impl.OnlinePlayer;
+
+/**
+ * Serves one client with blocking reads and writes, in the virtual-thread network mode. Each connection has two
+ * threads: one reads and decodes the packets, the other writes the data queued in the PacketWriter. They are virtual
+ * threads if the JVM supports them (Java 21+), or else platform daemon threads, which is only reasonable with a few
+ * clients.
+ * <p>
+ * The packets are read, decoded and handled exactly like in the selector mode: the PLAY packets are put in the
+ * {@link InboundQueue}, the others are handled immediately by the reading thread.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+final class BlockingConnection implements ConnectionHandler {
+	
+	/**
+	 * Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), null if the virtual threads aren't supported.
+	 */
+	private static final Object VIRTUAL_BUILDER;
+	private static final Method UNSTARTED;
+	
+	static {
+		Object builder;
+		Method unstarted;
+		try {
+			builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		} catch (ReflectiveOperationException | RuntimeException ex) {// before Java 21
+			builder = null;
+			unstarted = null;
+		}
+		VIRTUAL_BUILDER = builder;
+		UNSTARTED = unstarted;
+	}
+	
+	private static final AtomicInteger connectionCount = new AtomicInteger();
+	
+	/**
+	 * Checks if the JVM supports the virtual threads.
+	 */
+	static boolean isVirtualThreadsSupported() {
+		return VIRTUAL_BUILDER != null;
+	}
+	
+	/**
+	 * Gets the number of clients currently served by BlockingConnections.
+	 */
+	static int connectionCount() {
+		return connectionCount.get();
+	}
+	
+	/**
+	 * Creates a new thread, virtual if possible. Called by the ReceiverThread only, because the Thread.Builder isn't
+	 * thread-safe.
+	 */
+	private static Thread newThread(String name, Runnable task) {
+		Thread t = null;
+		if (VIRTUAL_BUILDER != null) {
+			try {
+				t = (Thread) UNSTARTED.invoke(VIRTUAL_BUILDER, task);
+			} catch (ReflectiveOperationException ex) {
+				Photon.log.errorFrom(ex, "ReceiverThread", "Unable to create a virtual thread");
+			}
+		}
+		if (t == null) {
+			t = new Thread(task);
+			t.setDaemon(true);
+		}
+		t.setName(name);
+		return t;
+	}
+	
+	/**
+	 * Starts serving a newly accepted channel.
+	 *
+	 * @param channel the channel, admitted by the {@link ConnectionAdmission}
+	 */
+	static void start(SocketChannel channel) {
+		try {
+			channel.configureBlocking(true);
+			final ClientInfos client = ClientInfos.init(ConnectionState.INIT, channel);
+			final BlockingConnection connection = new BlockingConnection(client);
+			client.attach(connection);
+			client.getPacketWriter().setCorked(Photon.isPacketCorkingEnabled());
+			client.markHalfOpen();
+			connectionCount.incrementAndGet();
+			final String name = "Connection-" + client.getAddress();
+			connection.writingThread = newThread(name + "-writer", connection::writeLoop);
+			connection.readingThread = newThread(name + "-reader", connection::readLoop);
+			connection.writingThread.start();
+			connection.readingThread.start();
+		} catch (IOException ex) {
+			Photon.log.errorFrom(ex, "ReceiverThread", "Unable to start the connection of a new client");
+			ConnectionAdmission.handshakeDone();
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	private final ClientInfos client;
+	private final MovementCoalescer movements = new MovementCoalescer();// used by the reading thread only
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private volatile Thread readingThread, writingThread;
+	
+	private BlockingConnection(ClientInfos client) {
+		this.client = client;
+	}
+	
+	@Override
+	public void requestFlush(ClientInfos client) {
+		if (client.markFlushRequested()) {// not already requested
+			LockSupport.unpark(writingThread);
+		}
+	}
+	
+	@Override
+	public void requestClose(ClientInfos client) {
+		close();
+	}
+	
+	/**
+	 * Reads and decodes the packets of the client, until the end of the stream. Executed by the reading thread.
+	 */
+	private void readLoop() {
+		final PacketReader reader = client.getPacketReader();
+		try {
+			while (!closed.get()) {
+				if (!reader.hasPendingPacket()) {// the next read may block: the movements received so far are merged
+					enqueue(movements.flush());
+				}
+				final ReceivablePacket packet = reader.readNext();
+				if (packet == null) {
+					if (reader.isEndOfStream())
+						break;
+					continue;
+				}
+				if (client.getState() == ConnectionState.PLAY) {// handled by the game
+					if (movements.add(packet))// kept until the next packet that isn't a movement
+						continue;
+					enqueue(movements.flush());
+					enqueue(packet);
+				} else {// may change how the next packets are decoded: handled now
+					InboundQueue.handle(packet);
+				}
+			}
+			Photon.log.debug(Thread.currentThread().getName() + ": END OF STREAM -> remove");
+		} catch (ClosedChannelException ex) {
+			// closed by another thread
+		} catch (Exception ex) {
+			if (!closed.get()) {
+				Photon.log.errorFrom(ex, Thread.currentThread().getName(), "Unable to read the packets of " + client.getAddress());
+			}
+		} finally {
+			close();
+			movements.clear();
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Puts a packet in the InboundQueue. If the queue is full, waits for some free space: the client isn't read
+	 * meanwhile. Executed by the reading thread.
+	 */
+	private void enqueue(ReceivablePacket packet) {
+		if (packet == null)
+			return;
+		while (!InboundQueue.offer(packet)) {
+			if (closed.get())
+				return;
+			LockSupport.parkNanos(1000000);
+		}
+	}
+	
+	/**
+	 * Writes the data queued in the PacketWriter when it's requested. Executed by the writing thread.
+	 */
+	private void writeLoop() {
+		final PacketWriter writer = client.getPacketWriter();
+		try {
+			while (!closed.get()) {
+				client.clearFlushRequested();// before flushing, so that no request is lost
+				writer.flush();
+				LockSupport.park(this);
+			}
+		} catch (ClosedChannelException ex) {
+			// closed by another thread
+		} catch (Exception ex) {
+			if (!closed.get()) {
+				Photon.log.errorFrom(ex, Thread.currentThread().getName(), "Unable to write the data of " + client.getAddress());
+			}
+		} finally {
+			close();
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Disconnects the client and removes it. The blocked reading and writing threads are woken up by the closing of
+	 * the channel, and release the PacketReader and PacketWriter before they stop.
+	 */
+	private void close() {
+		if (!closed.compareAndSet(false, true))
+			return;
+		try {
+			client.getSocketChannel().close();
+		} catch (IOException ex) {}
+		LockSupport.unpark(writingThread);
+		ClientInfos.remove(client);
+		client.leaveHalfOpen();
+		connectionCount.decrementAndGet();
+		OnlinePlayer p = client.getPlayer();
+		if (p != null)
+			Photon.removePlayer(p);
+	}
+	
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.mcphoton.core.Photon;
+import org.mcphoton.core.ServerLoad;
+import org.mcphoton.messaging.Messageable;
+import org.mcphoton.network.serverbound.play.PlayerDiggingPacket;
+import org.mcphoton.util.ProtocolData;
+import com.electronwill.streams.ByteArrayOutputStream;
+
+/**
+ * Connects synthetic clients to this server over the loopback interface, to find the number of players it can handle
+ * and to catch the performance regressions. The bots speak the protocol 47: they log in (in offline mode), walk
+ * randomized paths around their spawn point, and sometimes chat, dig and place blocks. They answer the keep-alives.
+ * <p>
+ * The bots are added step by step. The load of each step is measured with {@link ServerLoad} and reported, and the
+ * swarm stops when the mean tick time exceeds 50 milliseconds, or when the maximum number of bots is reached. All the
+ * bots are driven by a single Thread, so that the swarm itself costs little CPU. The random paths are seeded, so two
+ * runs with the same parameters send the same packets.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public final class BotSwarm implements Runnable {
+	
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final int CONNECT_TIMEOUT = 5000;// in milliseconds
+	private static final long MAX_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final double SPEED = 0.215;// walking speed, in blocks per tick
+	private static final double RADIUS = 48;// maximum distance from the spawn point
+	
+	private static BotSwarm running;
+	
+	/**
+	 * Starts a swarm in a new Thread, if no swarm is running.
+	 *
+	 * @param max the maximum number of bots
+	 * @param step the number of bots added at each step
+	 * @param stepSeconds the duration of each step, in seconds
+	 * @param output where the results are reported
+	 * @return true if the swarm has been started, false if another swarm is running
+	 */
+	public static synchronized boolean start(int max, int step, int stepSeconds, Messageable output) {
+		if (running != null)
+			return false;
+		running = new BotSwarm(max, step, stepSeconds, output);
+		Thread t = new Thread(running, "BotSwarm");
+		t.setDaemon(true);
+		t.start();
+		return true;
+	}
+	
+	/**
+	 * Disconnects the bots of the running swarm, if any.
+	 */
+	public static synchronized void stop() {
+		if (running != null) {
+			running.stopped = true;
+			running.selector.wakeup();
+		}
+	}
+	
+	private final int max, step;
+	private final long stepNanos;
+	private final Messageable output;
+	private final Selector selector;
+	private final List<Bot> bots = new ArrayList<>();
+	private final Random random = new Random(47);
+	private volatile boolean stopped;
+	
+	private BotSwarm(int max, int step, int stepSeconds, Messageable output) {
+		this.max = max;
+		this.step = step;
+		this.stepNanos = TimeUnit.SECONDS.toNanos(stepSeconds);
+		this.output = output;
+		try {
+			this.selector = Selector.open();
+		} catch (IOException ex) {
+			throw new RuntimeException("Unable to open a Selector", ex);
+		}
+	}
+	
+	@Override
+	public void run() {
+		try {
+			long now = System.nanoTime();
+			long nextTick = now, nextStep = now, measureAt = Long.MAX_VALUE;
+			ServerLoad.Sample stepStart = null;
+			int lastPlaying = 0;
+			while (!stopped) {
+				now = System.nanoTime();
+				if (now - nextStep >= 0) {
+					if (stepStart != null) {// reports the load of the step
+						final ServerLoad.Report report = stepStart.until(ServerLoad.sample());
+						output.sendMessage("Bots: " + lastPlaying + " playing: " + report);
+						if (report.getMeanTickNanos() > MAX_TICK_NANOS) {
+							output.sendMessage("Bots: the mean tick time exceeds 50 ms with " + lastPlaying + " players");
+							break;
+						}
+					}
+					if (bots.size() >= max) {
+						output.sendMessage("Bots: " + max + " bots reached without exceeding 50 ms per tick");
+						break;
+					}
+					for (int i = Math.min(step, max - bots.size()); i > 0; i--) {
+						bots.add(new Bot(bots.size()));
+					}
+					stepStart = null;
+					measureAt = now + stepNanos / 4;// the new bots log in during the first quarter of the step
+					nextStep = now + stepNanos;
+				}
+				if (stepStart == null && now - measureAt >= 0) {
+					stepStart = ServerLoad.sample();
+				}
+				if (now - nextTick >= 0) {
+					lastPlaying = 0;
+					for (Bot bot : bots) {
+						if (bot.tick()) {
+							lastPlaying++;
+						}
+					}
+					nextTick = (now - nextTick > TICK) ? now + TICK : nextTick + TICK;
+				}
+				selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTick - System.nanoTime())));
+				final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					final SelectionKey key = it.next();
+					it.remove();
+					final Bot bot = (Bot) key.attachment();
+					if (key.isValid() && key.isWritable()) {
+						bot.flush();
+					}
+					if (key.isValid() && key.isReadable()) {
+						bot.read();
+					}
+				}
+			}
+		} catch (Exception ex) {
+			Photon.log.error(ex, "Error in the bot swarm");
+			output.sendMessage("Bots: failed: " + ex);
+		} finally {
+			for (Bot bot : bots) {
+				bot.close();
+			}
+			try {
+				selector.close();
+			} catch (IOException ex) {
+				// ignored
+			}
+			synchronized (BotSwarm.class) {
+				running = null;
+			}
+			output.sendMessage("Bots: " + bots.size() + " bots disconnected");
+		}
+	}
+	
+	/**
+	 * A synthetic client.
+	 */
+	private final class Bot {
+		
+		final String name;
+		final SocketChannel channel;
+		final SelectionKey key;
+		ByteBuffer in = ByteBuffer.allocate(16384);
+		final ByteBuffer out = ByteBuffer.allocate(65536);
+		ConnectionState state = ConnectionState.LOGIN;
+		int threshold = -1;
+		boolean spawned, closed;
+		double x, y, z, spawnX, spawnZ;
+		float yaw, pitch;
+		int ticks;
+		
+		Bot(int number) throws IOException {
+			name = "Bot" + number;
+			channel = SocketChannel.open();
+			channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			ConnectionAdmission.trust((InetSocketAddress) channel.getLocalAddress());
+			channel.socket().connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Photon.getPort()), CONNECT_TIMEOUT);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+			
+			ByteArrayOutputStream handshake = packet(0x00);// HandshakePacket
+			handshake.writeVarInt(47);
+			handshake.writeString("localhost");
+			handshake.writeShort((short) Photon.getPort());
+			handshake.writeVarInt(2);// next state: LOGIN
+			send(handshake);
+			ByteArrayOutputStream loginStart = packet(0x00);// LoginStartPacket
+			loginStart.writeString(name);
+			send(loginStart);
+			flush();
+		}
+		
+		/**
+		 * Creates a buffer for a packet, with some space reserved for the frame's header.
+		 */
+		ByteArrayOutputStream packet(int id) throws IOException {
+			ByteArrayOutputStream data = new ByteArrayOutputStream(64);
+			data.skip(PacketCompression.RESERVED_HEADER);
+			data.writeVarInt(id);
+			return data;
+		}
+		
+		/**
+		 * Frames a packet and queues it. The packet is dropped if the server doesn't read the previous ones.
+		 */
+		void send(ByteArrayOutputStream data) {
+			final ByteBuffer frame = PacketCompression.frame(data, threshold);
+			if (out.remaining() >= frame.remaining()) {
+				out.put(frame);
+			}
+		}
+		
+		void flush() {
+			if (closed)
+				return;
+			out.flip();
+			try {
+				channel.write(out);
+			} catch (IOException ex) {
+				close();
+				return;
+			} finally {
+				out.compact();
+			}
+			key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+		
+		void read() {
+			try {
+				int read;
+				while ((read = channel.read(in)) > 0) {
+					parse();
+				}
+				if (read == -1) {
+					close();
+				}
+			} catch (IOException ex) {
+				close();
+			}
+		}
+		
+		/**
+		 * Handles the complete frames that have been received.
+		 */
+		private void parse() throws IOException {
+			in.flip();
+			while (in.hasRemaining()) {
+				final int start = in.position();
+				final int length;
+				try {
+					length = ProtocolData.readVarInt(in);
+				} catch (BufferUnderflowException ex) {// incomplete length
+					in.position(start);
+					break;
+				}
+				if (in.remaining() < length) {
+					if (in.capacity() < length + 5) {// the buffer is too small for the frame
+						ByteBuffer bigger = ByteBuffer.allocate(length + 5);
+						in.position(start);
+						bigger.put(in);
+						in = bigger;
+						return;
+					}
+					in.position(start);
+					break;
+				}
+				final ByteBuffer frame = in.slice();
+				frame.limit(length);
+				in.position(in.position() + length);
+				handle(frame);
+			}
+			in.compact();
+		}
+		
+		private void handle(ByteBuffer frame) throws IOException {
+			if (threshold >= 0 && ProtocolData.readVarInt(frame) != 0)
+				return;// compressed packets are big, and the bots react only to small ones
+			final int id = ProtocolData.readVarInt(frame);
+			if (state == ConnectionState.LOGIN) {
+				if (id == 0x03) {// SetCompressionPacket
+					threshold = ProtocolData.readVarInt(frame);
+				} else if (id == 0x02) {// LoginSuccessPacket
+					state = ConnectionState.PLAY;
+				} else if (id == 0x00) {// DisconnectPacket
+					close();
+				}
+			} else if (id == 0x00) {// KeepAlivePacket
+				ByteArrayOutputStream keepAlive = packet(0x00);
+				keepAlive.writeVarInt(ProtocolData.readVarInt(frame));
+				send(keepAlive);
+				flush();
+			} else if (id == 0x08) {// PlayerPositionAndLookPacket: the server moves the bot
+				x = frame.getDouble();
+				y = frame.getDouble();
+				z = frame.getDouble();
+				if (!spawned) {
+					spawned = true;
+					spawnX = x;
+					spawnZ = z;
+					yaw = random.nextFloat() * 360;
+				}
+			} else if (id == 0x40) {// DisconnectPacket
+				close();
+			}
+		}
+		
+		/**
+		 * Sends the packets of one tick: the movement, and sometimes a chat message, a digging or a block placement.
+		 *
+		 * @return true if the bot is playing
+		 */
+		boolean tick() throws IOException {
+			if (closed || !spawned)
+				return false;
+			ticks++;
+			
+			// Walks, and turns back when too far from the spawn point:
+			yaw += (random.nextFloat() - 0.5f) * 30;
+			if ((x - spawnX) * (x - spawnX) + (z - spawnZ) * (z - spawnZ) > RADIUS * RADIUS) {
+				yaw = (float) Math.toDegrees(Math.atan2(x - spawnX, spawnZ - z));
+			}
+			final double radians = Math.toRadians(yaw);
+			x -= Math.sin(radians) * SPEED;
+			z += Math.cos(radians) * SPEED;
+			ByteArrayOutputStream position = packet(0x04);// PlayerPositionPacket
+			position.writeDouble(x);
+			position.writeDouble(y);
+			position.writeDouble(z);
+			position.writeBoolean(true);
+			send(position);
+			if (ticks % 5 == 0) {
+				pitch = (random.nextFloat() - 0.5f) * 60;
+				ByteArrayOutputStream look = packet(0x05);// PlayerLookPacket
+				look.writeFloat(yaw);
+				look.writeFloat(pitch);
+				look.writeBoolean(true);
+				send(look);
+			}
+			
+			// Sometimes chats, digs and places blocks:
+			final int action = random.nextInt(600);
+			if (action == 0) {
+				ByteArrayOutputStream chat = packet(0x01);// ChatMessagePacket
+				chat.writeString("Hello from " + name + " at tick " + ticks);
+				send(chat);
+			} else if (action <= 15) {
+				final long block = ProtocolData.encodePosition((int) Math.floor(x), (int) Math.floor(y) - 1, (int) Math.floor(z));
+				for (byte status : new byte[] { PlayerDiggingPacket.START_DIGGING, PlayerDiggingPacket.FINISH_DIGGING }) {
+					ByteArrayOutputStream digging = packet(0x07);// PlayerDiggingPacket
+					digging.write(status);
+					digging.writeLong(block);
+					digging.write(PlayerDiggingPacket.FACE_PLUS_Y);
+					send(digging);
+				}
+			} else if (action <= 30) {
+				ByteArrayOutputStream placement = packet(0x08);// PlayerBlockPlacementPacket
+				placement.writeLong(ProtocolData.encodePosition((int) Math.floor(x), (int) Math.floor(y) - 1, (int) Math.floor(z)));
+				placement.write(PlayerDiggingPacket.FACE_PLUS_Y);
+				placement.writeShort((short) -1);// no held item
+				placement.write((byte) 8);// cursor position
+				placement.write((byte) 16);
+				placement.write((byte) 8);
+				send(placement);
+			}
+			flush();
+			return true;
+		}
+		
+		void close() {
+			if (closed)
+				return;
+			closed = true;
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				// ignored
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Thread-safe pool of direct ByteBuffers. The buffers are organized in size classes: each class contains buffers of
+ * the same capacity, which is a power of two between 256 bytes and 2 MiB (the maximum size of a minecraft packet).
+ * Bigger buffers are not pooled.
+ * <p>
+ * A buffer obtained with {@link #acquire(int)} should be given back with {@link #release(ByteBuffer)} when it isn't
+ * used anymore. The counters of this class allow to detect the buffers that are never released.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public final class BufferPool {
+	
+	private static final int MIN_SHIFT = 8;// 256 bytes
+	private static final int MAX_SHIFT = 21;// 2 MiB
+	
+	/**
+	 * Maximum number of bytes kept by each size class.
+	 */
+	private static final int MAX_POOLED_BYTES = 4 * 1024 * 1024;
+	
+	private static final class SizeClass {
+		
+		final int capacity;
+		final int maxPooled;// maximum number of buffers kept in the pool
+		final ArrayBlockingQueue<ByteBuffer> buffers;// an array, so that releasing a buffer doesn't allocate a node
+		
+		SizeClass(int capacity) {
+			this.capacity = capacity;
+			this.maxPooled = Math.max(2, MAX_POOLED_BYTES / capacity);
+			this.buffers = new ArrayBlockingQueue<>(maxPooled);
+		}
+		
+	}
+	
+	private static final SizeClass[] CLASSES = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+	
+	static {
+		for (int i = 0; i < CLASSES.length; i++) {
+			CLASSES[i] = new SizeClass(1 << (MIN_SHIFT + i));
+		}
+	}
+	
+	// Counters:
+	private static final AtomicLong acquired = new AtomicLong();
+	private static final AtomicLong released = new AtomicLong();
+	private static final AtomicLong allocated = new AtomicLong();
+	private static final AtomicLong allocatedBytes = new AtomicLong();
+	private static final AtomicLong discarded = new AtomicLong();
+	
+	/**
+	 * Gets the index of the smallest size class that can contain <code>capacity</code> bytes.
+	 *
+	 * @return the index, or -1 if the capacity is too big to be pooled
+	 */
+	private static int classIndex(int capacity) {
+		if (capacity <= (1 << MIN_SHIFT)) {
+			return 0;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);// ceil(log2(capacity))
+		if (shift > MAX_SHIFT) {
+			return -1;
+		}
+		return shift - MIN_SHIFT;
+	}
+	
+	/**
+	 * Gets a direct ByteBuffer with a capacity greater than or equal to <code>minCapacity</code>. The buffer is cleared
+	 * and ready to be written.
+	 *
+	 * @param minCapacity the minimum capacity
+	 * @return a direct ByteBuffer
+	 */
+	public static ByteBuffer acquire(int minCapacity) {
+		acquired.incrementAndGet();
+		final int index = classIndex(minCapacity);
+		if (index == -1) {// too big for the pool
+			return allocate(minCapacity);
+		}
+		final SizeClass sc = CLASSES[index];
+		final ByteBuffer buffer = sc.buffers.poll();
+		if (buffer == null) {
+			return allocate(sc.capacity);
+		}
+		buffer.clear();
+		return buffer;
+	}
+	
+	/**
+	 * Gives back a buffer obtained with {@link #acquire(int)}. The buffer must not be used anymore after this call.
+	 *
+	 * @param buffer the buffer to release
+	 */
+	public static void release(ByteBuffer buffer) {
+		released.incrementAndGet();
+		final int capacity = buffer.capacity();
+		final int index = classIndex(capacity);
+		if (index == -1 || !buffer.isDirect()) {
+			discarded.incrementAndGet();
+			return;
+		}
+		final SizeClass sc = CLASSES[index];
+		if (sc.capacity != capacity || !sc.buffers.offer(buffer)) {// not from the pool, or pool full
+			discarded.incrementAndGet();
+		}
+	}
+	
+	private static ByteBuffer allocate(int capacity) {
+		allocated.incrementAndGet();
+		allocatedBytes.addAndGet(capacity);
+		return ByteBuffer.allocateDirect(capacity);
+	}
+	
+	/**
+	 * Gets the number of calls to {@link #acquire(int)}.
+	 */
+	public static long acquiredCount() {
+		return acquired.get();
+	}
+	
+	/**
+	 * Gets the number of calls to {@link #release(ByteBuffer)}.
+	 */
+	public static long releasedCount() {
+		return released.get();
+	}
+	
+	/**
+	 * Gets the number of buffers that are currently acquired and not released yet. If it always grows, some buffers
+	 * are leaked.
+	 */
+	public static long inUseCount() {
+		return acquired.get() - released.get();
+	}
+	
+	/**
+	 * Gets the number of direct buffers that have been allocated because the pool couldn't provide one.
+	 */
+	public static long allocatedCount() {
+		return allocated.get();
+	}
+	
+	/**
+	 * Gets the total capacity of the direct buffers that have been allocated because the pool couldn't provide one.
+	 */
+	public static long allocatedBytes() {
+		return allocatedBytes.get();
+	}
+	
+	/**
+	 * Gets the number of released buffers that haven't been kept by the pool.
+	 */
+	public static long discardedCount() {
+		return discarded.get();
+	}
+	
+	/**
+	 * Gets the number of buffers currently available in the pool.
+	 */
+	public static int pooledCount() {
+		int count = 0;
+		for (SizeClass sc : CLASSES) {
+			count += sc.buffers.size();
+		}
+		return count;
+	}
+	
+	private BufferPool() {}
+	
+}
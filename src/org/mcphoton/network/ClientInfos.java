@@ -16,43 +16,43 @@ package org.mcphoton.network;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.crypto.Cipher;
 import org.mcphoton.entity.impl.OnlinePlayer;
 
 /**
  * Stores informations about a connected client.
+ * <p>
+ * The NetworkThreads get the ClientInfos of a channel from the attachment of its SelectionKey. The other lookups,
+ * which are rare, use an index by remote address. No global lock is involved.
+ * </p>
  *
  * @author ElectronWill
  */
 public final class ClientInfos {
 	
-	private static final Map<SocketChannel, ClientInfos> INFOS = Collections.synchronizedMap(new HashMap<>());
+	private static final ConcurrentHashMap<InetSocketAddress, ClientInfos> INFOS = new ConcurrentHashMap<>();
 	
-	static ClientInfos get(InetSocketAddress address) throws IOException {
-		synchronized (INFOS) {// sync needed because we use the map's iterator
-			for (Entry<SocketChannel, ClientInfos> entry : INFOS.entrySet()) {
-				SocketChannel sc = entry.getKey();
-				if (sc.getRemoteAddress().equals(address)) {
-					return entry.getValue();
-				}
-			}
-		}
-		return null;
+	static ClientInfos get(InetSocketAddress address) {
+		return INFOS.get(address);
 	}
 	
-	static ClientInfos get(SocketChannel sc) {
-		return INFOS.get(sc);
+	/**
+	 * Gets the ClientInfos attached to a SelectionKey.
+	 */
+	static ClientInfos get(SelectionKey key) {
+		return (ClientInfos) key.attachment();
 	}
 	
 	static ClientInfos init(ConnectionState state, SocketChannel channel) throws IOException {
 		ClientInfos infos = new ClientInfos(state, channel);
 		infos.packetReader = new SimplePacketReader(infos, channel);
 		infos.packetWriter = new SimplePacketWriter(infos, channel);
-		INFOS.put(channel, infos);
+		INFOS.put(infos.address, infos);
 		return infos;
 	}
 	
@@ -61,12 +61,27 @@ public final class ClientInfos {
 		ClientInfos infos = new ClientInfos(state, channel);
 		infos.packetReader = packetReader;
 		infos.packetWriter = packetWriter;
-		INFOS.put(channel, infos);
+		INFOS.put(infos.address, infos);
 		return infos;
 	}
 	
-	static ClientInfos remove(SocketChannel sc) {
-		return INFOS.remove(sc);
+	/**
+	 * Removes a disconnected client, and cancels its timers.
+	 */
+	static void remove(ClientInfos infos) {
+		INFOS.remove(infos.address, infos);
+		infos.removed = true;// before cancelling, see ConnectionTimers
+		cancel(infos.handshakeTimer);
+		cancel(infos.loginTimer);
+		cancel(infos.keepAliveTimer);
+		cancel(infos.keepAliveTimeout);
+		cancel(infos.idleTimer);
+	}
+	
+	private static void cancel(TimingWheel.Timeout timer) {
+		if (timer != null) {
+			timer.cancel();
+		}
 	}
 	
 	// Infos/state fields:
@@ -74,11 +89,39 @@ public final class ClientInfos {
 	private volatile OnlinePlayer player = null;// the corresponding player. May be null!
 	private final InetSocketAddress address;// the client's ip address
 	private volatile int compressionThreshold = -1;// the size limit above which packets are compressed
+	private volatile boolean encrypted = false;// true if the data is encrypted
+	private volatile String loginName;// the name sent by the client in the LoginStartPacket
+	private volatile byte[] verifyToken;// the token sent in the EncryptionRequestPacket
 	
 	// Network IO fields:
 	private final SocketChannel channel;// the channel connected to the client
 	private volatile PacketReader packetReader;// the packet reader used to read incoming packets
 	private volatile PacketWriter packetWriter;// the packet writer used to write outgoing packets
+	private volatile ConnectionHandler handler;// the NetworkThread or BlockingConnection that owns the channel
+	private volatile SelectionKey key;// the key of the channel, registered to the NetworkThread's selector
+	private final AtomicBoolean flushRequested = new AtomicBoolean();// true if waiting for the NetworkThread to flush
+	private final AtomicBoolean dirty = new AtomicBoolean();// true if some corked data waits for the end of the tick
+	private final AtomicBoolean closed = new AtomicBoolean();// true if close() has been called
+	private final AtomicBoolean halfOpen = new AtomicBoolean();// true if counted as half-open by ConnectionAdmission
+	final AtomicBoolean chunksPaused = new AtomicBoolean();// true if some chunks haven't been sent, see Backpressure
+	private volatile boolean removed = false;// true if the client has been removed
+	ReceivablePacket pausedPacket;// the packet that didn't fit in the InboundQueue, used by the NetworkThread only
+	ReceivablePacket pausedNextPacket;// the packet read after pausedPacket, if any, used by the NetworkThread only
+	final ReusedPackets reusedPackets = new ReusedPackets(this);// the objects reused to decode the movements
+	volatile PacketTelemetry.Counters traffic;// the player's traffic, null until the player joins
+	
+	// Timers, see ConnectionTimers:
+	private volatile TimingWheel.Timeout handshakeTimer;// closes the connection if the handshake isn't completed in time
+	private volatile TimingWheel.Timeout loginTimer;// disconnects the client if the login isn't completed in time
+	private volatile TimingWheel.Timeout keepAliveTimer;// sends the next KeepAlivePacket
+	private volatile TimingWheel.Timeout keepAliveTimeout;// disconnects the player if the KeepAlivePacket isn't answered
+	private volatile TimingWheel.Timeout idleTimer;// checks the activity of the player
+	private volatile int pendingKeepAlive = 0;// the id of the KeepAlivePacket that hasn't been answered yet, or 0
+	private volatile boolean active = false;// true if the player has sent a packet since the last idle check
+	
+	// Packet handling fields, used by the InboundQueue's consumer only:
+	long handledTick = -1;// the last tick in which a packet of this client has been handled
+	int handledInTick;// the number of packets handled in that tick
 	
 	private ClientInfos(ConnectionState state, SocketChannel channel) throws IOException {
 		this.state = state;
@@ -96,6 +139,91 @@ public final class ClientInfos {
 	
 	public void setState(ConnectionState state) {
 		this.state = state;
+		if (state != ConnectionState.INIT) {
+			leaveHalfOpen();
+		}
+		if (state == ConnectionState.LOGIN) {
+			loginTimer = ConnectionTimers.loginStarted(this);
+		} else if (state == ConnectionState.PLAY) {
+			cancel(loginTimer);
+			keepAliveTimer = ConnectionTimers.keepAliveStarted(this);
+			idleTimer = ConnectionTimers.idleCheckStarted(this);
+		}
+	}
+	
+	/**
+	 * Marks this client as half-open: it must complete the handshake before the timeout, or it is disconnected.
+	 */
+	void markHalfOpen() {
+		halfOpen.set(true);
+		handshakeTimer = ConnectionTimers.handshakeStarted(this);
+	}
+	
+	/**
+	 * Marks this client as not half-open anymore, because it has completed the handshake or it is disconnected.
+	 */
+	void leaveHalfOpen() {
+		if (halfOpen.compareAndSet(true, false)) {
+			ConnectionAdmission.handshakeDone();
+			cancel(handshakeTimer);
+		}
+	}
+	
+	boolean isHalfOpen() {
+		return halfOpen.get();
+	}
+	
+	boolean isRemoved() {
+		return removed;
+	}
+	
+	/**
+	 * Called when the client answers a KeepAlivePacket.
+	 *
+	 * @param keepAliveId the id sent back by the client
+	 */
+	public void keepAliveReceived(int keepAliveId) {
+		if (keepAliveId != 0 && keepAliveId == pendingKeepAlive) {
+			pendingKeepAlive = 0;
+			cancel(keepAliveTimeout);
+		}
+	}
+	
+	int getPendingKeepAlive() {
+		return pendingKeepAlive;
+	}
+	
+	void keepAliveSent(int keepAliveId, TimingWheel.Timeout timeout) {
+		this.pendingKeepAlive = keepAliveId;
+		this.keepAliveTimeout = timeout;
+	}
+	
+	void keepAliveScheduled(TimingWheel.Timeout timer) {
+		this.keepAliveTimer = timer;
+	}
+	
+	/**
+	 * Marks the player as active, for the idle check. Called by the InboundQueue's consumer.
+	 */
+	void markActive() {
+		if (!active) {// avoids a volatile write per packet
+			active = true;
+		}
+	}
+	
+	/**
+	 * Clears the activity flag of the player.
+	 *
+	 * @return true if the player has been active since the last call
+	 */
+	boolean clearActive() {
+		final boolean wasActive = active;
+		active = false;
+		return wasActive;
+	}
+	
+	void idleCheckScheduled(TimingWheel.Timeout timer) {
+		this.idleTimer = timer;
 	}
 	
 	PacketReader getPacketReader() {
@@ -120,6 +248,9 @@ public final class ClientInfos {
 	
 	public void setPlayer(OnlinePlayer p) {
 		this.player = p;
+		if (p != null && traffic == null) {
+			traffic = PacketTelemetry.newPlayerCounters();
+		}
 	}
 	
 	public boolean isClientOnline() {
@@ -134,8 +265,126 @@ public final class ClientInfos {
 		this.compressionThreshold = compressionThreshold;
 	}
 	
+	public boolean isEncrypted() {
+		return encrypted;
+	}
+	
+	/**
+	 * Enables the encryption of the data, in both directions. Must be called by the client's NetworkThread, just after
+	 * the EncryptionResponsePacket has been read.
+	 *
+	 * @param sharedSecret the secret shared with the client
+	 */
+	public void enableEncryption(byte[] sharedSecret) throws GeneralSecurityException, IOException {
+		packetWriter.enableEncryption(PacketEncryption.createCipher(Cipher.ENCRYPT_MODE, sharedSecret));
+		packetReader.enableDecryption(PacketEncryption.createCipher(Cipher.DECRYPT_MODE, sharedSecret));
+		encrypted = true;
+	}
+	
+	public String getLoginName() {
+		return loginName;
+	}
+	
+	public void setLoginName(String loginName) {
+		this.loginName = loginName;
+	}
+	
+	public byte[] getVerifyToken() {
+		return verifyToken;
+	}
+	
+	public void setVerifyToken(byte[] verifyToken) {
+		this.verifyToken = verifyToken;
+	}
+	
+	/**
+	 * Closes the connection with the client, which is then removed by its NetworkThread. The data that hasn't been
+	 * written yet is lost: to close the connection after a packet, call this method when the packet's sending is
+	 * completed. This method can be safely called from any Thread.
+	 *
+	 * @return true if the connection has been closed by this call, false if it was already closed
+	 */
+	public boolean close() {
+		if (!closed.compareAndSet(false, true))
+			return false;
+		final ConnectionHandler h = handler;
+		if (h != null) {
+			try {
+				h.requestClose(this);
+				return true;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		remove(this);
+		leaveHalfOpen();
+		try {
+			channel.close();
+		} catch (IOException ex) {}
+		return true;
+	}
+	
+	/**
+	 * Checks if the connection has been closed, by {@link #close()} or by its NetworkThread, or if the client has been
+	 * removed.
+	 */
+	public boolean isClosed() {
+		return closed.get() || removed;
+	}
+	
 	SocketChannel getSocketChannel() {
 		return channel;
 	}
 	
+	/**
+	 * Attaches this client to its NetworkThread, and to the SelectionKey of its channel.
+	 */
+	void attach(NetworkThread networkThread, SelectionKey key) {
+		this.handler = networkThread;
+		this.key = key;
+		key.attach(this);
+	}
+	
+	/**
+	 * Attaches this client to its BlockingConnection, in the virtual-thread network mode. There is no SelectionKey in
+	 * that mode.
+	 */
+	void attach(BlockingConnection connection) {
+		this.handler = connection;
+	}
+	
+	ConnectionHandler getConnectionHandler() {
+		return handler;
+	}
+	
+	SelectionKey getSelectionKey() {
+		return key;
+	}
+	
+	/**
+	 * Marks this client as waiting for a flush.
+	 * 
+	 * @return true if it wasn't already marked, false otherwise
+	 */
+	boolean markFlushRequested() {
+		return flushRequested.compareAndSet(false, true);
+	}
+	
+	void clearFlushRequested() {
+		flushRequested.set(false);
+	}
+	
+	/**
+	 * Marks this client as having some corked data to flush at the end of the tick.
+	 * 
+	 * @return true if it wasn't already marked, false otherwise
+	 */
+	boolean markDirty() {
+		return dirty.compareAndSet(false, true);
+	}
+	
+	void clearDirty() {
+		dirty.set(false);
+	}
+	
 }
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides if a newly accepted connection is kept, before any state is allocated for it. The connections are limited by
+ * a token bucket per IP address and a token bucket per subnet (/24 for IPv4, /48 for IPv6), and by a global maximum
+ * number of half-open connections, i.e. connections that haven't completed the handshake. The half-open connections
+ * that don't complete the handshake before the deadline are closed by the {@link ConnectionTimers}.
+ * <p>
+ * The buckets are only used by the ReceiverThread, so they don't need to be Thread-safe.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public final class ConnectionAdmission {
+	
+	/**
+	 * A token bucket: it contains up to <code>burst</code> tokens, and gets <code>rate</code> new tokens per second.
+	 * A connection takes one token.
+	 */
+	private static final class Bucket {
+		
+		double tokens;
+		long lastRefill;// System.nanoTime()
+		
+		Bucket(double burst, long now) {
+			this.tokens = burst;
+			this.lastRefill = now;
+		}
+		
+		/**
+		 * Adds the tokens gained since the last refill.
+		 *
+		 * @return true if the bucket is full
+		 */
+		boolean refill(long now, double rate, double burst) {
+			tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+			lastRefill = now;
+			return tokens >= burst;
+		}
+		
+	}
+	
+	/**
+	 * The time between two removals of the full buckets, which are useless.
+	 */
+	private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+	
+	private static volatile double ipRate = 4, ipBurst = 16;
+	private static volatile double subnetRate = 32, subnetBurst = 128;
+	private static volatile int maxHalfOpen = 512;
+	private static volatile long handshakeTimeoutMillis = 5000;
+	
+	private static final HashMap<Long, Bucket> ipBuckets = new HashMap<>();
+	private static final HashMap<Long, Bucket> subnetBuckets = new HashMap<>();
+	private static long lastSweep = System.nanoTime();
+	private static final AtomicInteger halfOpen = new AtomicInteger();
+	private static final Set<InetSocketAddress> trusted = ConcurrentHashMap.newKeySet();
+	
+	// Counters:
+	private static final AtomicLong admittedCount = new AtomicLong();
+	private static final AtomicLong ipRejectedCount = new AtomicLong();
+	private static final AtomicLong subnetRejectedCount = new AtomicLong();
+	private static final AtomicLong halfOpenRejectedCount = new AtomicLong();
+	private static final AtomicLong timedOutCount = new AtomicLong();
+	
+	/**
+	 * Configures the admission of the connections.
+	 *
+	 * @param ipRate the number of connections per second allowed for an IP address
+	 * @param ipBurst the maximum number of connections allowed at once for an IP address
+	 * @param subnetRate the number of connections per second allowed for a subnet
+	 * @param subnetBurst the maximum number of connections allowed at once for a subnet
+	 * @param maxHalfOpen the maximum number of connections that haven't completed the handshake
+	 * @param handshakeTimeoutMillis the time given to the clients to complete the handshake
+	 */
+	public static void configure(double ipRate, double ipBurst, double subnetRate, double subnetBurst, int maxHalfOpen,
+			long handshakeTimeoutMillis) {
+		ConnectionAdmission.ipRate = ipRate;
+		ConnectionAdmission.ipBurst = ipBurst;
+		ConnectionAdmission.subnetRate = subnetRate;
+		ConnectionAdmission.subnetBurst = subnetBurst;
+		ConnectionAdmission.maxHalfOpen = maxHalfOpen;
+		ConnectionAdmission.handshakeTimeoutMillis = handshakeTimeoutMillis;
+	}
+	
+	/**
+	 * Checks if a new connection is kept. If it isn't, the channel is closed. If it is, the connection is counted as
+	 * half-open until {@link #handshakeDone()} is called. Called by the ReceiverThread only.
+	 *
+	 * @param channel the accepted channel
+	 * @return true if the connection is kept
+	 */
+	static boolean admit(SocketChannel channel) {
+		final long now = System.nanoTime();
+		if (now - lastSweep > SWEEP_INTERVAL) {
+			sweep(now);
+		}
+		final InetSocketAddress remote;
+		try {
+			remote = (InetSocketAddress) channel.getRemoteAddress();
+		} catch (IOException ex) {
+			reject(channel);
+			return false;
+		}
+		if (remote == null) {// already disconnected
+			reject(channel);
+			return false;
+		}
+		if (!trusted.isEmpty() && trusted.remove(remote)) {// opened by a local tool, not rate-limited
+			halfOpen.incrementAndGet();
+			admittedCount.incrementAndGet();
+			return true;
+		}
+		final InetAddress address = remote.getAddress();
+		final byte[] bytes = address.getAddress();
+		final Bucket ipBucket = bucket(ipBuckets, ipKey(bytes), ipBurst, now);
+		final Bucket subnetBucket = bucket(subnetBuckets, subnetKey(bytes), subnetBurst, now);
+		ipBucket.refill(now, ipRate, ipBurst);
+		subnetBucket.refill(now, subnetRate, subnetBurst);
+		if (ipBucket.tokens < 1) {
+			ipRejectedCount.incrementAndGet();
+			reject(channel);
+			return false;
+		}
+		if (subnetBucket.tokens < 1) {
+			subnetRejectedCount.incrementAndGet();
+			reject(channel);
+			return false;
+		}
+		if (halfOpen.incrementAndGet() > maxHalfOpen) {
+			halfOpen.decrementAndGet();
+			halfOpenRejectedCount.incrementAndGet();
+			reject(channel);
+			return false;
+		}
+		ipBucket.tokens--;
+		subnetBucket.tokens--;
+		admittedCount.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Lets the next connection from the given address (and port) skip the rate limits. This is used by the local load
+	 * tools, like {@link PacketReplay}, which open many connections from the loopback address.
+	 */
+	static void trust(InetSocketAddress localAddress) {
+		trusted.add(localAddress);
+	}
+	
+	/**
+	 * Closes a rejected connection. The connection is reset, so that the server doesn't keep it in the TIME_WAIT
+	 * state.
+	 */
+	private static void reject(SocketChannel channel) {
+		try {
+			channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+		} catch (IOException ex) {}
+		try {
+			channel.close();
+		} catch (IOException ex) {}
+	}
+	
+	private static Bucket bucket(HashMap<Long, Bucket> buckets, long key, double burst, long now) {
+		Bucket bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = new Bucket(burst, now);
+			buckets.put(key, bucket);
+		}
+		return bucket;
+	}
+	
+	/**
+	 * Gets the key of an IP address. For IPv6, the /64 prefix is used, because it usually belongs to one host.
+	 */
+	private static long ipKey(byte[] address) {
+		if (address.length == 4) {
+			return (1L << 32) | (toInt(address, 0) & 0xFFFFFFFFL);// 1 << 32 distinguishes IPv4 from IPv6
+		}
+		return ((long) toInt(address, 0) << 32) | (toInt(address, 4) & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Gets the key of the subnet of an IP address: /24 for IPv4, /48 for IPv6.
+	 */
+	private static long subnetKey(byte[] address) {
+		if (address.length == 4) {
+			return (1L << 32) | (toInt(address, 0) & 0xFFFFFF00L);
+		}
+		return ((long) toInt(address, 0) << 32) | (toInt(address, 4) & 0xFFFF0000L);
+	}
+	
+	private static int toInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8
+				| (bytes[offset + 3] & 0xFF);
+	}
+	
+	/**
+	 * Removes the buckets that are full, since they behave like new buckets.
+	 */
+	private static void sweep(long now) {
+		lastSweep = now;
+		for (Iterator<Bucket> it = ipBuckets.values().iterator(); it.hasNext();) {
+			if (it.next().refill(now, ipRate, ipBurst))
+				it.remove();
+		}
+		for (Iterator<Bucket> it = subnetBuckets.values().iterator(); it.hasNext();) {
+			if (it.next().refill(now, subnetRate, subnetBurst))
+				it.remove();
+		}
+	}
+	
+	/**
+	 * Called when an admitted connection isn't half-open anymore: it has completed the handshake, or it has been
+	 * closed.
+	 */
+	static void handshakeDone() {
+		halfOpen.decrementAndGet();
+	}
+	
+	/**
+	 * Called when a half-open connection is closed because it didn't complete the handshake in time.
+	 */
+	static void timedOut() {
+		timedOutCount.incrementAndGet();
+	}
+	
+	/**
+	 * Gets the time given to the clients to complete the handshake, in milliseconds.
+	 */
+	static long handshakeTimeoutMillis() {
+		return handshakeTimeoutMillis;
+	}
+	
+	/**
+	 * Gets the number of connections that haven't completed the handshake.
+	 */
+	public static int halfOpenCount() {
+		return halfOpen.get();
+	}
+	
+	/**
+	 * Gets the number of admitted connections.
+	 */
+	public static long admittedCount() {
+		return admittedCount.get();
+	}
+	
+	/**
+	 * Gets the number of connections rejected because their IP address connected too often.
+	 */
+	public static long ipRejectedCount() {
+		return ipRejectedCount.get();
+	}
+	
+	/**
+	 * Gets the number of connections rejected because their subnet connected too often.
+	 */
+	public static long subnetRejectedCount() {
+		return subnetRejectedCount.get();
+	}
+	
+	/**
+	 * Gets the number of connections rejected because there were too many half-open connections.
+	 */
+	public static long halfOpenRejectedCount() {
+		return halfOpenRejectedCount.get();
+	}
+	
+	/**
+	 * Gets the number of connections closed because they didn't complete the handshake in time.
+	 */
+	public static long timedOutCount() {
+		return timedOutCount.get();
+	}
+	
+	private ConnectionAdmission() {}
+	
+}
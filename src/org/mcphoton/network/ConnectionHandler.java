@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+/**
+ * Owns the channel of a client, and does its I/O: a {@link NetworkThread} in the selector network mode, or a
+ * {@link BlockingConnection} in the virtual-thread network mode.
+ *
+ * @author ElectronWill
+ */
+interface ConnectionHandler {
+	
+	/**
+	 * Asks the handler to flush the client's PacketWriter as soon as possible. This method can be safely called from
+	 * any Thread.
+	 *
+	 * @param client a client owned by this handler
+	 * @throws InterruptedException
+	 */
+	void requestFlush(ClientInfos client) throws InterruptedException;
+	
+	/**
+	 * Asks the handler to disconnect the client and to remove it. This method can be safely called from any Thread.
+	 *
+	 * @param client a client owned by this handler
+	 * @throws InterruptedException
+	 */
+	void requestClose(ClientInfos client) throws InterruptedException;
+	
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.mcphoton.core.Photon;
+import org.mcphoton.messaging.TextChatMessage;
+import org.mcphoton.network.clientbound.play.DisconnectPacket;
+import org.mcphoton.network.clientbound.play.KeepAlivePacket;
+
+/**
+ * The timers of the connections: handshake and login deadlines, keep-alives, and idle players. They are all run by
+ * one {@link TimingWheel}, so there is no per-connection task in an executor, and a timer is added and cancelled in
+ * O(1). The timers of a client are cancelled when it is removed.
+ *
+ * @author ElectronWill
+ */
+public final class ConnectionTimers {
+	
+	private static final TimingWheel wheel = new TimingWheel("ConnectionTimers", 50, TimeUnit.MILLISECONDS, 512);
+	private static final int IDLE_CHECKS = 4;// the number of checks per idle timeout, for a precision of 25%
+	
+	private static volatile long keepAliveIntervalMillis = 15000;
+	private static volatile long keepAliveTimeoutMillis = 30000;
+	private static volatile long loginTimeoutMillis = 30000;
+	private static volatile long idleTimeoutMillis = 0;
+	
+	/**
+	 * Configures the timers of the connections.
+	 *
+	 * @param keepAliveInterval the time between two KeepAlivePackets sent to a player, in milliseconds
+	 * @param keepAliveTimeout the time given to a player to answer a KeepAlivePacket, in milliseconds
+	 * @param loginTimeout the time given to a client to log in after the handshake, in milliseconds
+	 * @param idleTimeout the time after which an inactive player is kicked, in milliseconds, or 0 to never kick them
+	 */
+	public static void configure(long keepAliveInterval, long keepAliveTimeout, long loginTimeout, long idleTimeout) {
+		ConnectionTimers.keepAliveIntervalMillis = keepAliveInterval;
+		ConnectionTimers.keepAliveTimeoutMillis = keepAliveTimeout;
+		ConnectionTimers.loginTimeoutMillis = loginTimeout;
+		ConnectionTimers.idleTimeoutMillis = idleTimeout;
+	}
+	
+	/**
+	 * Schedules a timer of a client. The task isn't run if the client has been removed meanwhile.
+	 */
+	private static TimingWheel.Timeout schedule(ClientInfos client, Runnable task, long delayMillis) {
+		return wheel.schedule(() -> {
+			if (!client.isRemoved()) {
+				task.run();
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Starts the handshake deadline of a new client: the connection is closed if it is still half-open when the
+	 * deadline is reached.
+	 */
+	static TimingWheel.Timeout handshakeStarted(ClientInfos client) {
+		return schedule(client, () -> {
+			if (client.isHalfOpen()) {
+				ConnectionAdmission.timedOut();
+				Photon.log.debug("HANDSHAKE TIMEOUT (" + client.getAddress() + ") -> remove");
+				client.close();
+			}
+		}, ConnectionAdmission.handshakeTimeoutMillis());
+	}
+	
+	/**
+	 * Starts the login deadline of a client that has entered the LOGIN state.
+	 */
+	static TimingWheel.Timeout loginStarted(ClientInfos client) {
+		final long timeout = loginTimeoutMillis;
+		if (timeout <= 0)
+			return null;
+		return schedule(client, () -> {
+			if (client.getState() == ConnectionState.LOGIN) {
+				Photon.log.debug("LOGIN TIMEOUT (" + client.getAddress() + ") -> remove");
+				disconnect(client, new org.mcphoton.network.clientbound.login.DisconnectPacket(new TextChatMessage(
+						"Login timed out")));
+			}
+		}, timeout);
+	}
+	
+	/**
+	 * Starts the keep-alives of a client that has entered the PLAY state. The first KeepAlivePacket is sent after one
+	 * interval, so that it's queued after the JoinPacket, which is a barrier.
+	 */
+	static TimingWheel.Timeout keepAliveStarted(ClientInfos client) {
+		return schedule(client, () -> sendKeepAlive(client), keepAliveIntervalMillis);
+	}
+	
+	/**
+	 * Sends a KeepAlivePacket to a player, if the previous one has been answered, and schedules the next one.
+	 */
+	private static void sendKeepAlive(ClientInfos client) {
+		if (client.getPendingKeepAlive() == 0) {
+			int id;
+			do {
+				id = ThreadLocalRandom.current().nextInt();
+			} while (id == 0);// 0 means "no pending KeepAlive"
+			final int keepAliveId = id;
+			client.keepAliveSent(keepAliveId, schedule(client, () -> {
+				if (client.getPendingKeepAlive() == keepAliveId) {
+					Photon.log.debug("KEEP-ALIVE TIMEOUT (" + client.getAddress() + ") -> remove");
+					disconnect(client, new DisconnectPacket(new TextChatMessage("Timed out")));
+				}
+			}, keepAliveTimeoutMillis));
+			try {
+				new KeepAlivePacket(keepAliveId).sendTo(client);
+			} catch (IOException ex) {
+				Photon.log.errorFrom(ex, "ConnectionTimers", "Unable to send a KeepAlivePacket to " + client.getAddress());
+			}
+		}
+		client.keepAliveScheduled(schedule(client, () -> sendKeepAlive(client), keepAliveIntervalMillis));
+	}
+	
+	/**
+	 * Starts the idle check of a client that has entered the PLAY state.
+	 */
+	static TimingWheel.Timeout idleCheckStarted(ClientInfos client) {
+		final long timeout = idleTimeoutMillis;
+		if (timeout <= 0)
+			return null;
+		return schedule(client, () -> checkIdle(client, timeout, 0), timeout / IDLE_CHECKS);
+	}
+	
+	/**
+	 * Kicks a player that hasn't been active since the last {@link #IDLE_CHECKS} checks, or schedules the next check.
+	 *
+	 * @param inactiveChecks the number of consecutive checks that have found the player inactive
+	 */
+	private static void checkIdle(ClientInfos client, long timeout, int inactiveChecks) {
+		final int inactive = client.clearActive() ? 0 : inactiveChecks + 1;
+		if (inactive >= IDLE_CHECKS) {
+			Photon.log.debug("IDLE TIMEOUT (" + client.getAddress() + ") -> remove");
+			disconnect(client, new DisconnectPacket(new TextChatMessage("You have been idle for too long")));
+			return;
+		}
+		client.idleCheckScheduled(schedule(client, () -> checkIdle(client, timeout, inactive), timeout / IDLE_CHECKS));
+	}
+	
+	/**
+	 * Sends a DisconnectPacket to a client, then closes its connection.
+	 */
+	private static void disconnect(ClientInfos client, SendablePacket disconnectPacket) {
+		try {
+			disconnectPacket.sendTo(client, client::close);
+		} catch (IOException ex) {
+			client.close();
+		}
+	}
+	
+	private ConnectionTimers() {}
+	
+}
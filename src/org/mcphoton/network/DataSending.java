@@ -4,8 +4,15 @@ import java.nio.ByteBuffer;
 
 public final class DataSending {
 	
-	private final ByteBuffer buffer;
-	private final Runnable onCompletedRunnable;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	
+	private volatile ByteBuffer buffer;// null until the data is ready
+	private Runnable onCompletedRunnable;
+	private int size;// the number of bytes counted in the PacketWriter's queued bytes
+	private long coalescingKey = -1;
+	private PacketLane lane = PacketLane.INTERACTIVE;
+	private long sequence;// the order in which the data has been queued
+	private long orderedAfter;// the data queued before this sequence number must be sent first
 	
 	public DataSending(ByteBuffer buffer) {
 		this.buffer = buffer;
@@ -21,6 +28,68 @@ public final class DataSending {
 		return buffer;
 	}
 	
+	/**
+	 * Sets the data to send, when it has been prepared asynchronously.
+	 */
+	void setBuffer(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+	
+	/**
+	 * Checks if the data is ready to be sent.
+	 */
+	public boolean isReady() {
+		return buffer != null;
+	}
+	
+	/**
+	 * Cancels the sending, when the data is replaced by some newer data queued after it. The data becomes empty, and
+	 * the Runnable is removed: the caller must run it.
+	 */
+	void cancel() {
+		this.buffer = EMPTY;
+		this.onCompletedRunnable = null;
+		this.coalescingKey = -1;
+		this.size = 0;
+	}
+	
+	int getSize() {
+		return size;
+	}
+	
+	void setSize(int size) {
+		this.size = size;
+	}
+	
+	long getCoalescingKey() {
+		return coalescingKey;
+	}
+	
+	void setCoalescingKey(long coalescingKey) {
+		this.coalescingKey = coalescingKey;
+	}
+	
+	PacketLane getLane() {
+		return lane;
+	}
+	
+	void setLane(PacketLane lane) {
+		this.lane = lane;
+	}
+	
+	long getSequence() {
+		return sequence;
+	}
+	
+	long getOrderedAfter() {
+		return orderedAfter;
+	}
+	
+	void setOrder(long sequence, long orderedAfter) {
+		this.sequence = sequence;
+		this.orderedAfter = orderedAfter;
+	}
+	
 	public Runnable getOnCompletedRunnable() {
 		return onCompletedRunnable;
 	}
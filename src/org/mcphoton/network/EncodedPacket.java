@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.electronwill.streams.ByteArrayOutputStream;
+
+/**
+ * A packet that has been serialized once, to be sent to several clients. The framed data is stored in a direct buffer
+ * borrowed from the {@link BufferPool}, and each client gets a read-only view of it. The buffer is reference-counted:
+ * it is given back to the pool when the last client has written it.
+ * <p>
+ * The frame depends on the compression threshold of the client, so the packet is framed (and compressed) at most once
+ * per threshold: usually once for the clients that use the compression, and once for the others.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public final class EncodedPacket {
+	
+	/**
+	 * Serializes a packet.
+	 *
+	 * @param packet the packet to serialize
+	 * @return an EncodedPacket with a reference count of 1
+	 */
+	public static EncodedPacket encode(SendablePacket packet) throws IOException {
+		try {
+			return new EncodedPacket(packet, SimplePacketWriter.serialize(packet));
+		} catch (IOException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw new IOException("Unable to serialize the packet " + packet, ex);
+		}
+	}
+	
+	private final SendablePacket packet;
+	private final ByteArrayOutputStream serialized;
+	private int[] thresholds = new int[0];// the thresholds of the frames
+	private ByteBuffer[] frames = new ByteBuffer[0];
+	private final AtomicInteger refCount = new AtomicInteger(1);
+	private final Runnable releaser = this::release;
+	
+	private EncodedPacket(SendablePacket packet, ByteArrayOutputStream serialized) {
+		this.packet = packet;
+		this.serialized = serialized;
+	}
+	
+	/**
+	 * Gets the packet that has been serialized.
+	 */
+	public SendablePacket getPacket() {
+		return packet;
+	}
+	
+	/**
+	 * Gets the size of the packet's id and data, uncompressed.
+	 */
+	int dataLength() {
+		return SimplePacketWriter.dataSize(serialized);
+	}
+	
+	/**
+	 * Gets the frame for the given compression threshold, and creates it if needed.
+	 */
+	private synchronized ByteBuffer frame(int threshold) {
+		for (int i = 0; i < thresholds.length; i++) {
+			if (thresholds[i] == threshold) {
+				return frames[i];
+			}
+		}
+		final ByteBuffer heapFrame = PacketCompression.frame(serialized, threshold);
+		final ByteBuffer frame = BufferPool.acquire(heapFrame.remaining());
+		frame.put(heapFrame);
+		frame.flip();
+		
+		final int n = thresholds.length;
+		thresholds = Arrays.copyOf(thresholds, n + 1);
+		frames = Arrays.copyOf(frames, n + 1);
+		thresholds[n] = threshold;
+		frames[n] = frame;
+		return frame;
+	}
+	
+	/**
+	 * Increments the reference count and returns a new read-only view of the framed data. The view must be released
+	 * with {@link #release()} when it has been written.
+	 *
+	 * @param compressionThreshold the compression threshold of the client
+	 */
+	ByteBuffer retain(int compressionThreshold) {
+		refCount.incrementAndGet();
+		return frame(compressionThreshold).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Increments the reference count if the packet hasn't been released yet. If this method returns true, the caller
+	 * owns a reference and must call {@link #release()} when it doesn't use the packet anymore.
+	 *
+	 * @return true if the reference count has been incremented, false if it was already zero
+	 */
+	boolean tryRetain() {
+		int count;
+		do {
+			count = refCount.get();
+			if (count == 0)
+				return false;
+		} while (!refCount.compareAndSet(count, count + 1));
+		return true;
+	}
+	
+	/**
+	 * Decrements the reference count. When it reaches zero, the buffers are given back to the pool.
+	 */
+	public void release() {
+		final int count = refCount.decrementAndGet();
+		if (count == 0) {
+			synchronized (this) {
+				for (ByteBuffer frame : frames) {
+					BufferPool.release(frame);
+				}
+				frames = new ByteBuffer[0];
+				thresholds = new int[0];
+			}
+		} else if (count < 0) {
+			throw new IllegalStateException("EncodedPacket released too many times");
+		}
+	}
+	
+	/**
+	 * Gets a Runnable that calls {@link #release()}.
+	 */
+	Runnable releaser() {
+		return releaser;
+	}
+	
+}
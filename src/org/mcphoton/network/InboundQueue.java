@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mcphoton.core.Photon;
+import org.mcphoton.event.Events;
+import org.mcphoton.event.impl.PacketReceiveEvent;
+import org.mcphoton.network.serverbound.play.KeepAlivePacket;
+import com.electronwill.concurrent.StrategicMPSCQueue;
+import com.electronwill.concurrent.WaitStrategy;
+
+/**
+ * The queue of the received packets that are waiting to be handled by the game. The NetworkThreads only read and
+ * decode the packets of the PLAY state, and put them in this queue, which is drained once per tick by the first
+ * UpdateThread. This way a slow listener, or a chunk generation, doesn't delay the reading of the other clients.
+ * <p>
+ * The packets of the other states (handshake, status, login) are handled immediately by the NetworkThread, because
+ * they may change how the next packets are decoded: new state, compression, encryption.
+ * </p>
+ * <p>
+ * Each client can't have more than {@link #getMaxPacketsPerTick()} packets handled per tick. The next ones are kept,
+ * in order, for the next ticks. When the queue is full, the NetworkThreads stop reading the clients until there is
+ * some free space.
+ * </p>
+ * <p>
+ * The packets of a client that has been removed are discarded without being handled, including the deferred ones.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public final class InboundQueue {
+	
+	private static volatile StrategicMPSCQueue<ReceivablePacket> queue = new StrategicMPSCQueue<>(8192, WaitStrategy.PARK_NANOS);
+	private static volatile int capacity = 8192;
+	private static volatile int maxPacketsPerTick = 100;
+	private static final Events.ListenerFlag receiveListeners = Events.listenerFlag(PacketReceiveEvent.class);
+	
+	/**
+	 * The packets that have exceeded the limit of their client, handled at the next tick. Used by the consumer only.
+	 */
+	private static final ArrayDeque<ReceivablePacket> deferred = new ArrayDeque<>();
+	private static long tick = 0;// the number of calls to handleQueued(), used by the consumer only
+	
+	// Counters:
+	private static final AtomicLong handledCount = new AtomicLong();
+	private static final AtomicLong deferredCount = new AtomicLong();
+	private static final AtomicLong rejectedCount = new AtomicLong();
+	
+	/**
+	 * Configures the queue. Must be called before the start of the NetworkThreads.
+	 *
+	 * @param capacity the maximum number of packets in the queue
+	 * @param maxPacketsPerTick the maximum number of packets of one client that are handled per tick
+	 */
+	public static synchronized void configure(int capacity, int maxPacketsPerTick) {
+		if (capacity < 2 || maxPacketsPerTick < 1)
+			throw new IllegalArgumentException("Invalid InboundQueue configuration");
+		InboundQueue.queue = new StrategicMPSCQueue<>(capacity, WaitStrategy.PARK_NANOS);
+		InboundQueue.capacity = capacity;
+		InboundQueue.maxPacketsPerTick = maxPacketsPerTick;
+	}
+	
+	/**
+	 * Gets the maximum number of packets of one client that are handled per tick.
+	 */
+	public static int getMaxPacketsPerTick() {
+		return maxPacketsPerTick;
+	}
+	
+	/**
+	 * Puts a packet in the queue. Called by the NetworkThreads.
+	 *
+	 * @return true if it has been put, false if the queue is full
+	 */
+	static boolean offer(ReceivablePacket packet) {
+		if (queue.offer(packet)) {
+			return true;
+		}
+		rejectedCount.incrementAndGet();
+		return false;
+	}
+	
+	/**
+	 * Notifies the listeners of a PacketReceiveEvent, and handles the packet. The event is only created if some
+	 * listeners are registered, and is reused with the packet (see {@link ReusedPackets}).
+	 */
+	static void handle(ReceivablePacket received) {
+		ReceivablePacket packet = received;
+		if (receiveListeners.isSet()) {
+			final PacketReceiveEvent event = received.client.reusedPackets.receiveEvent(received);
+			try {
+				Events.notifyListeners(event);// notifies the listeners (they may change the packet)
+			} catch (Throwable error) {
+				Photon.log.error(error, "Error while notifying event's listeners");
+			}
+			packet = event.getPacket();
+		}
+		final ConnectionState state = received.client.getState();// before the packet changes it
+		final boolean timed = PacketTelemetry.isEnabled();
+		final long t0 = timed ? System.nanoTime() : 0;
+		try {
+			packet.handle();// reacts to the packet
+		} catch (Throwable error) {
+			Photon.log.error(error, "Error while handling the received packet: " + packet);
+		}
+		if (timed) {
+			PacketTelemetry.handled(state, packet, System.nanoTime() - t0);
+		}
+		received.client.reusedPackets.handled(received);// the packet may be reused now
+	}
+	
+	/**
+	 * Handles the queued packets, in the order they have been received, within the limit of each client. This method
+	 * is called once per tick, by only one UpdateThread.
+	 */
+	public static void handleQueued() {
+		tick++;
+		// The deferred packets first, to keep the order of each client's packets:
+		for (int n = deferred.size(); n > 0; n--) {
+			dispatch(deferred.poll());
+		}
+		// Then the new packets, as long as there aren't too many deferred packets:
+		final StrategicMPSCQueue<ReceivablePacket> q = queue;
+		ReceivablePacket packet;
+		for (int n = q.size(); n > 0 && deferred.size() < capacity; n--) {
+			if ((packet = q.poll()) == null)
+				break;
+			dispatch(packet);
+		}
+	}
+	
+	private static void dispatch(ReceivablePacket packet) {
+		final ClientInfos client = packet.client;
+		if (client.isRemoved()) {// the client has left: don't handle its remaining packets, nor keep them for later
+			client.reusedPackets.handled(packet);
+			return;
+		}
+		if (client.handledTick != tick) {// first packet of the tick for this client
+			client.handledTick = tick;
+			client.handledInTick = 0;
+		}
+		if (client.handledInTick >= maxPacketsPerTick) {// the client has reached its limit: wait for the next tick
+			deferred.offer(packet);
+			deferredCount.incrementAndGet();
+			return;
+		}
+		client.handledInTick++;
+		if (!(packet instanceof KeepAlivePacket)) {// the keep-alives don't prevent the idle kick
+			client.markActive();
+		}
+		handledCount.incrementAndGet();
+		handle(packet);
+	}
+	
+	/**
+	 * Gets the number of packets waiting in the queue.
+	 */
+	public static int size() {
+		return queue.size();
+	}
+	
+	/**
+	 * Gets the number of packets handled by {@link #handleQueued()} since the start of the server.
+	 */
+	public static long handledCount() {
+		return handledCount.get();
+	}
+	
+	/**
+	 * Gets the number of times a packet has been deferred to the next tick because its client reached its limit.
+	 */
+	public static long deferredCount() {
+		return deferredCount.get();
+	}
+	
+	/**
+	 * Gets the number of times a NetworkThread found the queue full.
+	 */
+	public static long rejectedCount() {
+		return rejectedCount.get();
+	}
+	
+	private InboundQueue() {}
+	
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.util.UUID;
+import org.mcphoton.util.MCUtils;
+
+/**
+ * A session service that doesn't contact any remote server: it accepts every player, with the same UUID as in offline
+ * mode. It allows to test the online mode (encryption included) locally, without Mojang accounts.
+ *
+ * @author ElectronWill
+ */
+public final class LocalSessionService implements SessionService {
+	
+	@Override
+	public UUID hasJoined(String playerName, String serverHash) {
+		return MCUtils.generateUidFromName(playerName);
+	}
+	
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The official session service, at sessionserver.mojang.com.
+ *
+ * @author ElectronWill
+ */
+public final class MojangSessionService implements SessionService {
+	
+	private static final String HAS_JOINED_URL = "https://sessionserver.mojang.com/session/minecraft/hasJoined";
+	private static final Pattern ID_PATTERN = Pattern.compile("\"id\"\\s*:\\s*\"([0-9a-fA-F]{32})\"");
+	private static final int TIMEOUT = 5000;// milliseconds
+	
+	@Override
+	public UUID hasJoined(String playerName, String serverHash) throws IOException {
+		URL url = new URL(HAS_JOINED_URL + "?username=" + URLEncoder.encode(playerName, "UTF-8") + "&serverId="
+				+ URLEncoder.encode(serverHash, "UTF-8"));
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		try {
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)// 204 No Content if not authenticated
+				return null;
+			StringBuilder sb = new StringBuilder();
+			try (InputStream in = connection.getInputStream();
+					Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+				char[] buffer = new char[1024];
+				int read;
+				while ((read = reader.read(buffer)) > 0) {
+					sb.append(buffer, 0, read);
+				}
+			}
+			Matcher matcher = ID_PATTERN.matcher(sb);
+			if (!matcher.find())
+				throw new IOException("Invalid response from the session service: " + sb);
+			String id = matcher.group(1);// the UUID without dashes
+			return new UUID(Long.parseUnsignedLong(id.substring(0, 16), 16), Long.parseUnsignedLong(id.substring(16), 16));
+		} finally {
+			connection.disconnect();
+		}
+	}
+	
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+import org.mcphoton.Gamemode;
+import org.mcphoton.entity.impl.OnlinePlayer;
+import org.mcphoton.messaging.Messageable;
+import com.electronwill.streams.ByteArrayOutputStream;
+
+/**
+ * Measures the memory allocated to decode and handle the movement packets, which should be zero because their objects
+ * are reused (see {@link ReusedPackets}). The frames of PlayerPositionPacket, PlayerLookPacket and
+ * PlayerPositionAndLookPacket are sent over a loopback connection to a client that isn't owned by a NetworkThread.
+ * They are read by its SimplePacketReader and handled by the {@link InboundQueue}, all in the same Thread, whose
+ * allocated bytes are given by the ThreadMXBean.
+ * <p>
+ * The packets are handled like in the game, with the listeners registered in this server, for instance the
+ * PlayerMoveListener. The positions stay in the same chunk, so that no chunk is sent. The first batches warm the JIT
+ * up and aren't measured.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public final class MovementAllocation implements Runnable {
+	
+	private static final int BATCH = 999;// the number of frames sent at once, a multiple of 3
+	private static final int WARMUP_BATCHES = 200;
+	
+	/**
+	 * Starts the measurement in a new Thread.
+	 *
+	 * @param batches the number of measured batches of {@value #BATCH} packets
+	 * @param output where the result is reported
+	 */
+	public static void start(int batches, Messageable output) {
+		Thread t = new Thread(new MovementAllocation(batches, output), "MovementAllocation");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	private final int batches;
+	private final Messageable output;
+	
+	private MovementAllocation(int batches, Messageable output) {
+		this.batches = batches;
+		this.output = output;
+	}
+	
+	@Override
+	public void run() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)
+				|| !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled()) {
+			output.sendMessage("Allocation: this JVM can't measure the memory allocated by a Thread");
+			return;
+		}
+		final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+		try (ServerSocketChannel server = ServerSocketChannel.open();
+				SocketChannel peer = SocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			peer.connect(server.getLocalAddress());
+			final SocketChannel channel = server.accept();
+			channel.configureBlocking(false);
+			final ClientInfos client = ClientInfos.init(ConnectionState.PLAY, channel);
+			try {
+				final OnlinePlayer player = new OnlinePlayer(client, UUID.randomUUID(), "MovementAllocation", Gamemode.SURVIVAL,
+						null, null);
+				player.setX(8);
+				player.setY(64);
+				player.setZ(8);
+				client.setPlayer(player);
+				final ByteBuffer frames = frames();
+				
+				receive(client, peer, frames, WARMUP_BATCHES);
+				final long threadId = Thread.currentThread().getId();
+				final long allocated0 = sunBean.getThreadAllocatedBytes(threadId);
+				receive(client, peer, frames, batches);
+				final long allocated = sunBean.getThreadAllocatedBytes(threadId) - allocated0;
+				
+				final long packets = (long) batches * BATCH;
+				output.sendMessage(String.format("Allocation: %d movement packets decoded and handled, %d bytes allocated"
+						+ " (%.2f bytes per packet)", packets, allocated, (double) allocated / packets));
+			} finally {
+				client.close();
+			}
+		} catch (Exception ex) {
+			output.sendMessage("Allocation: failed: " + ex);
+		}
+	}
+	
+	/**
+	 * Sends the frames to the client several times, and reads and handles them.
+	 */
+	private static void receive(ClientInfos client, SocketChannel peer, ByteBuffer frames, int times) throws Exception {
+		final PacketReader reader = client.getPacketReader();
+		for (int i = 0; i < times; i++) {
+			frames.rewind();
+			while (frames.hasRemaining()) {
+				peer.write(frames);
+			}
+			int received = 0;
+			while (received < BATCH) {
+				final ReceivablePacket packet = reader.readNext();
+				if (packet == null) {// not arrived yet
+					if (reader.isEndOfStream())
+						throw new IOException("The connection has been closed");
+					continue;
+				}
+				InboundQueue.handle(packet);
+				received++;
+			}
+		}
+	}
+	
+	/**
+	 * Creates a batch of uncompressed movement frames. The positions stay in the chunk (0,0).
+	 */
+	private static ByteBuffer frames() throws IOException {
+		final ByteBuffer frames = ByteBuffer.allocate(BATCH * 64);
+		for (int i = 0; i < BATCH; i += 3) {
+			final double x = 8 + (i % 7) * 0.1, z = 8 - (i % 5) * 0.1;
+			final float yaw = i % 360, pitch = i % 90;
+			
+			ByteArrayOutputStream position = packet(0x04);// PlayerPositionPacket
+			position.writeDouble(x);
+			position.writeDouble(64);
+			position.writeDouble(z);
+			position.writeBoolean(true);
+			frames.put(PacketCompression.frame(position, -1));
+			
+			ByteArrayOutputStream look = packet(0x05);// PlayerLookPacket
+			look.writeFloat(yaw);
+			look.writeFloat(pitch);
+			look.writeBoolean(true);
+			frames.put(PacketCompression.frame(look, -1));
+			
+			ByteArrayOutputStream positionAndLook = packet(0x06);// PlayerPositionAndLookPacket
+			positionAndLook.writeDouble(x);
+			positionAndLook.writeDouble(64);
+			positionAndLook.writeDouble(z);
+			positionAndLook.writeFloat(yaw);
+			positionAndLook.writeFloat(pitch);
+			positionAndLook.writeBoolean(true);
+			frames.put(PacketCompression.frame(positionAndLook, -1));
+		}
+		frames.flip();
+		return frames;
+	}
+	
+	private static ByteArrayOutputStream packet(int id) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream(64);
+		data.skip(PacketCompression.RESERVED_HEADER);
+		data.writeVarInt(id);
+		return data;
+	}
+	
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.mcphoton.network.serverbound.play.PlayerGroundPacket;
+import org.mcphoton.network.serverbound.play.PlayerLookPacket;
+import org.mcphoton.network.serverbound.play.PlayerPositionAndLookPacket;
+import org.mcphoton.network.serverbound.play.PlayerPositionPacket;
+
+/**
+ * Merges the consecutive movement packets of a client that are read at once. When a lagging client catches up, it
+ * sends dozens of movement packets in a row: only its final state matters, so they are replaced by one packet that
+ * contains the last position, the last look and the last onGround flag. This way the game handles, and the listeners
+ * see, only one movement.
+ * <p>
+ * Each NetworkThread has its own MovementCoalescer, which it flushes before reading another client.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public final class MovementCoalescer {
+	
+	private static volatile boolean enabled = true;
+	
+	// Counters:
+	private static final AtomicLong mergedPackets = new AtomicLong();
+	
+	/**
+	 * Enables or disables the coalescing of the movement packets.
+	 */
+	public static void configure(boolean enabled) {
+		MovementCoalescer.enabled = enabled;
+	}
+	
+	/**
+	 * Gets the number of movement packets that have been merged into the next one, since the start of the server.
+	 */
+	public static long mergedPackets() {
+		return mergedPackets.get();
+	}
+	
+	private ReceivablePacket last;// the last movement packet, null if there is none
+	private int count;// the number of movement packets added since the last flush
+	private boolean hasPosition, hasLook;
+	private double x, y, z;
+	private float yaw, pitch;
+	private boolean onGround;
+	
+	MovementCoalescer() {}
+	
+	/**
+	 * Adds a received packet. If it's a movement packet, its state is kept until {@link #flush()} is called, so that
+	 * the next movement packets can be merged with it.
+	 *
+	 * @return true if the packet has been kept, false if it isn't a movement packet
+	 */
+	boolean add(ReceivablePacket packet) {
+		if (!enabled)
+			return false;
+		final Class<?> c = packet.getClass();
+		if (c == PlayerPositionPacket.class) {
+			final PlayerPositionPacket p = (PlayerPositionPacket) packet;
+			setPosition(p.x, p.y, p.z);
+			onGround = p.onGround;
+		} else if (c == PlayerLookPacket.class) {
+			final PlayerLookPacket p = (PlayerLookPacket) packet;
+			setLook(p.yaw, p.pitch);
+			onGround = p.onGround;
+		} else if (c == PlayerPositionAndLookPacket.class) {
+			final PlayerPositionAndLookPacket p = (PlayerPositionAndLookPacket) packet;
+			setPosition(p.x, p.y, p.z);
+			setLook(p.yaw, p.pitch);
+			onGround = p.onGround;
+		} else if (c == PlayerGroundPacket.class) {
+			onGround = ((PlayerGroundPacket) packet).onGround;
+		} else {
+			return false;
+		}
+		// Frees the packet now, so that the next movement packet can be decoded in the same object:
+		packet.client.reusedPackets.handled(packet);
+		last = packet;
+		count++;
+		return true;
+	}
+	
+	private void setPosition(double x, double y, double z) {
+		this.hasPosition = true;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+	
+	private void setLook(float yaw, float pitch) {
+		this.hasLook = true;
+		this.yaw = yaw;
+		this.pitch = pitch;
+	}
+	
+	/**
+	 * Gets the packet that contains the final state of all the movement packets that have been added since the last
+	 * flush, and clears this MovementCoalescer.
+	 *
+	 * @return the merged movement, or null if no movement packet has been added
+	 */
+	ReceivablePacket flush() {
+		ReceivablePacket packet = last;
+		if (packet == null)
+			return null;
+		if (count > 1) {
+			packet = merge(packet);
+			mergedPackets.addAndGet(count - 1);
+		}
+		packet.client.reusedPackets.retain(packet);// it hasn't been reused, since it's the last packet read
+		clear();
+		return packet;
+	}
+	
+	/**
+	 * Writes the final state in the last packet, or in a new packet if the last one can't contain it.
+	 */
+	private ReceivablePacket merge(ReceivablePacket packet) {
+		final ClientInfos client = packet.client;
+		final Class<?> c = packet.getClass();
+		if (hasPosition && hasLook) {
+			if (c != PlayerPositionAndLookPacket.class)
+				return new PlayerPositionAndLookPacket(client, x, y, z, yaw, pitch, onGround);
+			final PlayerPositionAndLookPacket p = (PlayerPositionAndLookPacket) packet;
+			p.x = x;
+			p.y = y;
+			p.z = z;
+			p.yaw = yaw;
+			p.pitch = pitch;
+			p.onGround = onGround;
+		} else if (hasPosition) {
+			if (c != PlayerPositionPacket.class)
+				return new PlayerPositionPacket(client, x, y, z, onGround);
+			final PlayerPositionPacket p = (PlayerPositionPacket) packet;
+			p.x = x;
+			p.y = y;
+			p.z = z;
+			p.onGround = onGround;
+		} else if (hasLook) {
+			if (c != PlayerLookPacket.class)
+				return new PlayerLookPacket(client, yaw, pitch, onGround);
+			final PlayerLookPacket p = (PlayerLookPacket) packet;
+			p.yaw = yaw;
+			p.pitch = pitch;
+			p.onGround = onGround;
+		}// else: only PlayerGroundPackets, the last one contains the final state
+		return packet;
+	}
+	
+	/**
+	 * Discards the added packets, if any.
+	 */
+	void clear() {
+		last = null;
+		count = 0;
+		hasPosition = false;
+		hasLook = false;
+	}
+	
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.mcphoton.core.Photon;
+import org.mcphoton.core.ThreadManager;
+import org.mcphoton.entity.impl.OnlinePlayer;
+import com.electronwill.concurrent.StrategicMPSCQueue;
+import com.electronwill.concurrent.WaitStrategy;
+
+/**
+ * An event loop that reads and decodes the packets of the clients it owns, and flushes the data that couldn't be
+ * written immediately to them. The decoded packets of the PLAY state are handled by the game, see
+ * {@link InboundQueue}. Each NetworkThread has its own Selector, the new clients are given to it by the
+ * {@link ReceiverThread}.
+ *
+ * @author ElectronWill
+ */
+final class NetworkThread implements ThreadManager, ConnectionHandler {
+	
+	private class Loop extends Thread {
+		
+		public Loop(int id) {
+			super("NetworkThread-" + id);
+		}
+		
+		@Override
+		public void run() {
+			while (run) {
+				try {
+					awake.set(false);
+					// The requests made before awake was set to false haven't woken the selector up:
+					int selected = hasPendingRequests() ? selector.selectNow() : selector.select(selectTimeout());
+					awake.set(true);
+					registerPendingChannels();// must be done even if nothing was selected (wakeup)
+					processPendingFlushes();
+					processPendingCloses();
+					resumePausedClients();
+					if (selected == 0)
+						continue;
+					final Set<SelectionKey> selectedKeys = selector.selectedKeys();
+					final Iterator<SelectionKey> iterator = selectedKeys.iterator();
+					
+					try {
+						while (iterator.hasNext()) {
+							SelectionKey key = iterator.next();
+							if (key.isValid() && key.isWritable()) {// a channel is ready to take some data
+								processWrite(key);
+							}
+							if (key.isValid() && key.isReadable()) {// a connected client sends some data
+								processRead(key);
+							}
+						}
+					} catch (Exception ex) {
+						Photon.log.errorFrom(ex, getName());
+					} finally {
+						selectedKeys.clear();
+					}
+					
+				} catch (Exception e) {
+					Photon.log.errorFrom(e, getName());
+				}
+			}
+			Photon.log.debug(getName() + " stopped");
+		}
+	}
+	
+	/**
+	 * The channels accepted by the ReceiverThread, waiting to be registered to the selector.
+	 */
+	private final StrategicMPSCQueue<SocketChannel> pendingChannels = new StrategicMPSCQueue<>(64, WaitStrategy.PARK_NANOS);
+	
+	/**
+	 * The clients that have some data waiting to be flushed.
+	 */
+	private final StrategicMPSCQueue<ClientInfos> pendingFlushes = new StrategicMPSCQueue<>(1024, WaitStrategy.PARK_NANOS);
+	
+	/**
+	 * The clients to disconnect.
+	 */
+	private final StrategicMPSCQueue<ClientInfos> pendingCloses = new StrategicMPSCQueue<>(64, WaitStrategy.PARK_NANOS);
+	
+	/**
+	 * The clients whose flush or disconnection has been requested by the NetworkThread itself, for instance by a
+	 * Runnable run when a packet is sent. They aren't put in the bounded queues, because the NetworkThread would wait
+	 * forever for some free space if they were full. Used by the NetworkThread only.
+	 */
+	private final ArrayDeque<ClientInfos> localFlushes = new ArrayDeque<>(), localCloses = new ArrayDeque<>();
+	
+	/**
+	 * The clients that aren't read because the InboundQueue is full. Used by the NetworkThread only.
+	 */
+	private final ArrayDeque<ClientInfos> pausedClients = new ArrayDeque<>();
+	
+	/**
+	 * Merges the consecutive movement packets of the client being read. Used by the NetworkThread only.
+	 */
+	private final MovementCoalescer movements = new MovementCoalescer();
+	
+	/**
+	 * True if the selector isn't blocked in select(), or if it has already been woken up. Avoids useless wakeups.
+	 */
+	private final AtomicBoolean awake = new AtomicBoolean();
+	
+	/**
+	 * The number of clients owned by this NetworkThread, including the pending ones.
+	 */
+	private final AtomicInteger clientCount = new AtomicInteger();
+	
+	private volatile boolean run;
+	
+	private final Selector selector;
+	private final Thread t;
+	
+	NetworkThread(int id) throws IOException {
+		selector = Selector.open();
+		t = new Loop(id);
+	}
+	
+	/**
+	 * Gives a newly accepted channel to this NetworkThread. The channel will be registered by the NetworkThread's own
+	 * Thread, so this method can be safely called from any Thread.
+	 *
+	 * @param channel the channel, configured in non-blocking mode
+	 * @throws InterruptedException
+	 */
+	void assign(SocketChannel channel) throws InterruptedException {
+		clientCount.incrementAndGet();
+		pendingChannels.put(channel);
+		wakeup();
+	}
+	
+	/**
+	 * Asks this NetworkThread to flush the client's PacketWriter as soon as possible. The write interest of the
+	 * client's key is only modified by the NetworkThread, so this method can be safely called from any Thread.
+	 *
+	 * @param client a client owned by this NetworkThread
+	 * @throws InterruptedException
+	 */
+	@Override
+	public void requestFlush(ClientInfos client) throws InterruptedException {
+		if (client.markFlushRequested()) {// not already requested
+			if (Thread.currentThread() == t) {// processed before the next select()
+				localFlushes.offer(client);
+				return;
+			}
+			pendingFlushes.put(client);
+			wakeup();
+		}
+	}
+	
+	/**
+	 * Asks this NetworkThread to disconnect the client and to remove it. This method can be safely called from any
+	 * Thread.
+	 *
+	 * @param client a client owned by this NetworkThread
+	 * @throws InterruptedException
+	 */
+	@Override
+	public void requestClose(ClientInfos client) throws InterruptedException {
+		if (Thread.currentThread() == t) {// processed before the next select()
+			localCloses.offer(client);
+			return;
+		}
+		pendingCloses.put(client);
+		wakeup();
+	}
+	
+	/**
+	 * Wakes up the selector, if it isn't already awake.
+	 */
+	private void wakeup() {
+		if (!awake.getAndSet(true)) {
+			selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Checks if some requests are waiting to be processed. Called in the NetworkThread only, after setting awake to
+	 * false. The size of the queues is read from their atomic tail, so the elements being added are seen.
+	 */
+	private boolean hasPendingRequests() {
+		return pendingChannels.size() != 0 || pendingFlushes.size() != 0 || pendingCloses.size() != 0
+				|| !localFlushes.isEmpty() || !localCloses.isEmpty();
+	}
+	
+	/**
+	 * Gets the number of clients owned by this NetworkThread.
+	 */
+	int clientCount() {
+		return clientCount.get();
+	}
+	
+	/**
+	 * Registers the pending channels to the selector. Called in the NetworkThread only.
+	 */
+	private void registerPendingChannels() {
+		SocketChannel channel;
+		while ((channel = pendingChannels.poll()) != null) {
+			try {
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				ClientInfos client = ClientInfos.init(ConnectionState.INIT, channel);
+				client.attach(this, key);
+				client.getPacketWriter().setCorked(Photon.isPacketCorkingEnabled());
+				client.markHalfOpen();
+			} catch (IOException ex) {
+				Photon.log.errorFrom(ex, t.getName(), "Unable to register the new client");
+				ConnectionAdmission.handshakeDone();
+				clientCount.decrementAndGet();
+				try {
+					channel.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+	
+	/**
+	 * Gets the maximum time to wait in select(), in milliseconds: 1 ms if some clients are paused, or else 0 (no
+	 * limit). The handshake deadlines are handled by the {@link ConnectionTimers}.
+	 */
+	private long selectTimeout() {
+		return pausedClients.isEmpty() ? 0 : 1;
+	}
+	
+	/**
+	 * Flushes the clients that requested it, and listens for the writability of the channels whose data couldn't be
+	 * entirely written. Called in the NetworkThread only.
+	 */
+	private void processPendingFlushes() {
+		ClientInfos client;
+		while ((client = pendingFlushes.poll()) != null || (client = localFlushes.poll()) != null) {
+			client.clearFlushRequested();// before flushing, so that no request is lost
+			final SelectionKey key = client.getSelectionKey();
+			if (!key.isValid())// the client has been removed
+				continue;
+			try {
+				final boolean completed = client.getPacketWriter().flush();
+				if (!completed) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			} catch (Exception ex) {
+				Photon.log.errorFrom(ex, t.getName(), "Unable to flush the data of " + client.getAddress());
+			}
+		}
+	}
+	
+	/**
+	 * Disconnects the clients that have been closed. Called in the NetworkThread only.
+	 */
+	private void processPendingCloses() {
+		ClientInfos client;
+		while ((client = pendingCloses.poll()) != null || (client = localCloses.poll()) != null) {
+			final SelectionKey key = client.getSelectionKey();
+			if (!key.isValid())// the client has already been removed
+				continue;
+			try {
+				close(key, client.getSocketChannel(), client);
+			} catch (IOException ex) {
+				Photon.log.errorFrom(ex, t.getName(), "Unable to close the connection of " + client.getAddress());
+			}
+		}
+	}
+	
+	/**
+	 * Flushes the data of a client whose channel is ready to take some data. Called in the NetworkThread only.
+	 */
+	private void processWrite(SelectionKey key) throws Exception {
+		final ClientInfos client = ClientInfos.get(key);
+		final boolean completed = client.getPacketWriter().flush();
+		if (completed) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	}
+	
+	/**
+	 * Reads and decodes all the received packets of a client. The packets of the PLAY state are put in the
+	 * InboundQueue, the others are handled immediately. Called in the NetworkThread only.
+	 */
+	private void processRead(SelectionKey key) throws Exception {
+		final SocketChannel channel = (SocketChannel) key.channel();
+		final ClientInfos client = ClientInfos.get(key);
+		
+		if (!channel.isOpen()) {// channel closed
+			Photon.log.debug(t.getName() + ": CHANNEL CLOSED -> remove");
+			close(key, channel, client);
+			return;
+		}
+		
+		final PacketReader packetReader = client.getPacketReader();
+		
+		// Reads and processes all the received packets:
+		ReceivablePacket packet;
+		while (true) {
+			try {
+				packet = packetReader.readNext();
+			} catch (Exception ex) {// invalid data: every later read would fail the same way
+				movements.clear();// don't merge them with the packets of another client
+				Photon.log.errorFrom(ex, t.getName(), "Invalid data received from " + client.getAddress());
+				close(key, channel, client);
+				return;
+			}
+			if (packet == null)
+				break;
+			try {
+				if (client.getState() == ConnectionState.PLAY) {// handled by the game
+					if (movements.add(packet))// kept until the next packet that isn't a movement
+						continue;
+					if (!enqueue(client, movements.flush(), packet)) {// the queue is full: stops reading this client for now
+						key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+						pausedClients.offer(client);
+						return;
+					}
+				} else {// may change how the next packets are decoded: handled now
+					InboundQueue.handle(packet);
+				}
+			} catch (Exception ex) {
+				movements.clear();// don't merge them with the packets of another client
+				throw ex;
+			}
+		}
+		if (!enqueue(client, movements.flush(), null)) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			pausedClients.offer(client);
+			return;
+		}
+		
+		if (packetReader.isEndOfStream()) {// end of stream reached
+			Photon.log.debug(t.getName() + ": END OF STREAM  (" + client.getAddress() + ") -> remove");
+			close(key, channel, client);
+		}
+	}
+	
+	/**
+	 * Puts the pending packets of the paused clients in the InboundQueue, and reads the clients again if there is
+	 * enough space. Called in the NetworkThread only.
+	 */
+	private void resumePausedClients() {
+		for (int n = pausedClients.size(); n > 0; n--) {
+			final ClientInfos client = pausedClients.poll();
+			final SelectionKey key = client.getSelectionKey();
+			if (!key.isValid())// the client has been removed
+				continue;
+			final ReceivablePacket paused = client.pausedPacket, pausedNext = client.pausedNextPacket;
+			client.pausedPacket = null;
+			client.pausedNextPacket = null;
+			if (!enqueue(client, paused, pausedNext)) {// still full
+				pausedClients.offerFirst(client);
+				return;
+			}
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			try {
+				processRead(key);// some packets may be already buffered
+			} catch (Exception ex) {
+				Photon.log.errorFrom(ex, t.getName(), "Unable to read the packets of " + client.getAddress());
+			}
+		}
+	}
+	
+	/**
+	 * Puts one or two packets in the InboundQueue, in this order. If the queue is full, the packets that haven't been
+	 * put are kept in {@link ClientInfos#pausedPacket} and {@link ClientInfos#pausedNextPacket}. Called in the
+	 * NetworkThread only.
+	 *
+	 * @param first the first packet, or null
+	 * @param second the second packet, or null
+	 * @return true if all the packets have been put, false if the queue is full
+	 */
+	private boolean enqueue(ClientInfos client, ReceivablePacket first, ReceivablePacket second) {
+		if (first != null && !InboundQueue.offer(first)) {
+			client.pausedPacket = first;
+			client.pausedNextPacket = second;
+			return false;
+		}
+		if (second != null && !InboundQueue.offer(second)) {
+			client.pausedPacket = second;
+			return false;
+		}
+		return true;
+	}
+	
+	private void close(SelectionKey key, SocketChannel channel, ClientInfos client) throws IOException {
+		channel.close();
+		key.cancel();
+		ClientInfos.remove(client);
+		client.leaveHalfOpen();
+		client.getPacketReader().close();
+		client.getPacketWriter().close();
+		clientCount.decrementAndGet();
+		OnlinePlayer p = client.getPlayer();
+		if (p != null)
+			Photon.removePlayer(p);
+	}
+	
+	@Deprecated
+	@Override
+	public void forciblyStop() {
+		t.stop();
+		run = false;
+	}
+	
+	@Override
+	public boolean isRunning() {
+		return t.isAlive();
+	}
+	
+	@Override
+	public boolean shouldBeRunning() {
+		return run;
+	}
+	
+	@Override
+	public void start() {
+		run = true;
+		t.start();
+	}
+	
+	@Override
+	public void stop() {
+		run = false;
+		selector.wakeup();// unconditionally: the loop may be about to select() without having cleared awake yet
+	}
+	
+}
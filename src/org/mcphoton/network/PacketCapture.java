@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+import org.mcphoton.core.Photon;
+import org.mcphoton.util.ProtocolData;
+
+/**
+ * Records the frames received from the clients to a file, to replay them later with {@link PacketReplay}. The frames
+ * are recorded after the decryption, so the file doesn't depend on the encryption keys.
+ * <p>
+ * The file is gzipped. It starts with the int {@link #MAGIC} and the int {@link #VERSION}, followed by one record per
+ * frame: the connection's number (VarInt), the time since the start of the capture in microseconds (VarLong), the
+ * connection state's ordinal (byte), the compression threshold plus one (VarInt), the frame's length (VarInt) and the
+ * frame, without its length prefix.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public final class PacketCapture {
+	
+	static final int MAGIC = 0x50484350;// "PHCP"
+	static final int VERSION = 1;
+	
+	/**
+	 * The maximum number of frames waiting to be written. The frames received when the queue is full are dropped.
+	 */
+	private static final int QUEUE_CAPACITY = 16384;
+	
+	private static final AtomicReference<Capture> current = new AtomicReference<>();// null if not capturing
+	private static final AtomicLong capturedFrames = new AtomicLong();
+	private static final AtomicLong droppedFrames = new AtomicLong();
+	
+	/**
+	 * A frame copied by a reading Thread, waiting to be written.
+	 */
+	private static final class Frame {
+		
+		final ClientInfos client;
+		final long nanos;
+		final ConnectionState state;
+		final int threshold;
+		final byte[] data;
+		
+		Frame(ClientInfos client, long nanos, ConnectionState state, int threshold, byte[] data) {
+			this.client = client;
+			this.nanos = nanos;
+			this.state = state;
+			this.threshold = threshold;
+			this.data = data;
+		}
+		
+	}
+	
+	/**
+	 * A running capture: the Thread that writes the queued frames to the file, so that the compression and the disk
+	 * I/O don't slow down the reading Threads.
+	 */
+	private static final class Capture extends Thread {
+		
+		private final DataOutputStream stream;
+		private final long startNanos = System.nanoTime();
+		private final ArrayBlockingQueue<Frame> frames = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		private final WeakHashMap<ClientInfos, Integer> connections = new WeakHashMap<>();// used by this Thread only
+		private int nextConnection;// never reused, even when the old clients are garbage-collected
+		private volatile boolean running = true;
+		private IOException closeError;// read after join()
+		
+		Capture(DataOutputStream stream) {
+			super("PacketCapture");
+			setDaemon(true);
+			this.stream = stream;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (running || !frames.isEmpty()) {
+					final Frame frame = frames.poll(100, TimeUnit.MILLISECONDS);
+					if (frame != null) {
+						write(frame);
+					}
+				}
+			} catch (IOException ex) {
+				current.compareAndSet(this, null);
+				Photon.log.error(ex, "Unable to write the packet capture, the capture is stopped");
+			} catch (InterruptedException ex) {
+				current.compareAndSet(this, null);
+			} finally {
+				frames.clear();
+				connections.clear();
+				try {
+					stream.close();
+				} catch (IOException ex) {
+					closeError = ex;
+				}
+			}
+		}
+		
+		private void write(Frame frame) throws IOException {
+			Integer number = connections.get(frame.client);
+			if (number == null) {
+				number = nextConnection++;
+				connections.put(frame.client, number);
+			}
+			ProtocolData.writeVarInt(number, stream);
+			ProtocolData.writeVarLong((frame.nanos - startNanos) / 1000, stream);
+			stream.writeByte(frame.state.ordinal());
+			ProtocolData.writeVarInt(frame.threshold + 1, stream);
+			ProtocolData.writeVarInt(frame.data.length, stream);
+			stream.write(frame.data);
+			capturedFrames.incrementAndGet();
+		}
+		
+	}
+	
+	/**
+	 * Starts capturing the received frames to a file. If a capture is running, it's stopped first.
+	 */
+	public static synchronized void start(File file) throws IOException {
+		stop();
+		final DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file),
+				8192), 65536));
+		stream.writeInt(MAGIC);
+		stream.writeInt(VERSION);
+		capturedFrames.set(0);
+		droppedFrames.set(0);
+		final Capture capture = new Capture(stream);
+		capture.start();
+		current.set(capture);
+	}
+	
+	/**
+	 * Stops the capture, if any, and closes the file once the queued frames have been written.
+	 */
+	public static synchronized void stop() throws IOException {
+		final Capture capture = current.getAndSet(null);
+		if (capture == null)
+			return;
+		capture.running = false;
+		try {
+			capture.join();
+		} catch (InterruptedException ex) {
+			capture.interrupt();
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if (capture.closeError != null)
+			throw capture.closeError;
+	}
+	
+	public static boolean isCapturing() {
+		return current.get() != null;
+	}
+	
+	/**
+	 * Gets the number of frames recorded by the current (or last) capture.
+	 */
+	public static long capturedFrames() {
+		return capturedFrames.get();
+	}
+	
+	/**
+	 * Gets the number of frames dropped by the current (or last) capture, because the writing Thread was too slow.
+	 */
+	public static long droppedFrames() {
+		return droppedFrames.get();
+	}
+	
+	/**
+	 * Records a frame. The position and limit of the buffer aren't modified. The frame is copied and queued, then
+	 * written by the capture's Thread.
+	 *
+	 * @param from the index of the frame's first byte, after the length prefix
+	 * @param length the frame's length
+	 */
+	static void capture(ClientInfos client, ByteBuffer buffer, int from, int length) {
+		final Capture capture = current.get();
+		if (capture == null)
+			return;
+		final byte[] data = new byte[length];
+		final ByteBuffer view = buffer.duplicate();
+		view.limit(from + length).position(from);
+		view.get(data);
+		final Frame frame = new Frame(client, System.nanoTime(), client.getState(), client.getCompressionThreshold(), data);
+		if (!capture.frames.offer(frame)) {
+			droppedFrames.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * A frame read from a capture file.
+	 */
+	static final class Record {
+		
+		int connection;
+		long micros;
+		ConnectionState state;
+		int threshold;
+		byte[] frame;
+		
+		/**
+		 * Reads the next record.
+		 *
+		 * @return false if the end of the file has been reached
+		 */
+		boolean read(DataInputStream in) throws IOException {
+			try {
+				connection = (int) readVarLong(in);
+				micros = readVarLong(in);
+				state = ConnectionState.values()[in.readUnsignedByte()];
+				threshold = (int) readVarLong(in) - 1;
+				frame = new byte[(int) readVarLong(in)];
+				in.readFully(frame);
+			} catch (EOFException ex) {// end of the file, or the capture has been interrupted while writing
+				return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * Reads a VarInt or a VarLong, and throws an EOFException at the end of the stream.
+		 */
+		private static long readVarLong(DataInputStream in) throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				final byte b = in.readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+					return value;
+			}
+			throw new IOException("VarLong too big");
+		}
+		
+	}
+	
+	private PacketCapture() {}
+	
+}
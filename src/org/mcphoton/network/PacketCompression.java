@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.mcphoton.util.ProtocolData;
+import com.electronwill.streams.ByteArrayOutputStream;
+
+/**
+ * Compresses and decompresses the packets, with the zlib format used by the minecraft protocol. The Deflaters and
+ * Inflaters are borrowed from a small pool for each packet, because their native memory is only freed by end(): with a
+ * Deflater and an Inflater per Thread, the virtual-thread mode would keep some native memory per client. For the same
+ * reason, the decompression scratch arrays are borrowed with the Inflater, see {@link Inflation}. The big
+ * packets may be compressed by a pool of worker threads, so that they don't slow down the thread that sends them.
+ * <p>
+ * The frame of a packet, when the compression is enabled, is: <code>[packet length][data length][data]</code>, where
+ * the data length is the length of the uncompressed data (id + fields) or 0 if the data isn't compressed.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public final class PacketCompression {
+	
+	/**
+	 * The space reserved at the beginning of the serialized packets to write the frame's header. The biggest header is
+	 * a 5-bytes length followed by a 0 data length.
+	 */
+	static final int RESERVED_HEADER = 6;
+	
+	/**
+	 * The maximum length of the uncompressed data.
+	 */
+	private static final int MAX_DATA_LENGTH = 2097152;
+	
+	private static volatile int level = Deflater.DEFAULT_COMPRESSION;
+	private static volatile int asyncSize = 65536;
+	private static volatile ExecutorService workers;
+	
+	/**
+	 * The maximum number of Deflaters, and of Inflations, kept in the pools. The others are ended when given back.
+	 */
+	private static final int MAX_POOLED = 64;
+	
+	/**
+	 * The size of the scratch arrays kept in the pooled Inflations. The bigger arrays are only used for one packet.
+	 */
+	private static final int SCRATCH_SIZE = 8192;
+	
+	private static final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(MAX_POOLED);
+	private static final ArrayBlockingQueue<Inflation> inflations = new ArrayBlockingQueue<>(MAX_POOLED);
+	
+	/**
+	 * An Inflater and its scratch arrays, borrowed together from the pool to decompress a packet.
+	 */
+	static final class Inflation {
+		
+		private final Inflater inflater = new Inflater();
+		private byte[] input = new byte[SCRATCH_SIZE], output = new byte[SCRATCH_SIZE];
+		
+		private Inflation() {}
+		
+	}
+	
+	// Counters:
+	private static final AtomicLong compressedPackets = new AtomicLong();
+	private static final AtomicLong compressionInput = new AtomicLong();
+	private static final AtomicLong compressionOutput = new AtomicLong();
+	private static final AtomicLong compressionNanos = new AtomicLong();
+	private static final AtomicLong decompressedPackets = new AtomicLong();
+	private static final AtomicLong decompressionInput = new AtomicLong();
+	private static final AtomicLong decompressionOutput = new AtomicLong();
+	private static final AtomicLong decompressionNanos = new AtomicLong();
+	
+	/**
+	 * Configures the compression. Must be called before the first packet is compressed.
+	 *
+	 * @param level the compression level, from 0 to 9, or -1 to use the default level
+	 * @param workerThreads the number of threads that compress the big packets, or 0 to compress them in the thread
+	 *        that sends them
+	 * @param asyncSize the size, in bytes, above which a packet is compressed by the worker threads
+	 */
+	public static synchronized void configure(int level, int workerThreads, int asyncSize) {
+		if (level < -1 || level > 9)
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		PacketCompression.level = level;
+		PacketCompression.asyncSize = asyncSize;
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null) {// they use the previous level
+			deflater.end();
+		}
+		if (workers != null) {
+			workers.shutdown();
+			workers = null;
+		}
+		if (workerThreads > 0) {
+			final AtomicInteger count = new AtomicInteger();
+			workers = Executors.newFixedThreadPool(workerThreads, (r) -> {
+				Thread t = new Thread(r, "CompressionThread-" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+	
+	/**
+	 * Checks if a packet of the given size should be compressed by the worker threads.
+	 */
+	static boolean isAsync(int dataLength) {
+		return workers != null && dataLength >= asyncSize;
+	}
+	
+	/**
+	 * Submits a compression task to the worker threads.
+	 */
+	static void submit(Runnable task) {
+		workers.execute(task);
+	}
+	
+	/**
+	 * Frames a serialized packet. The packet's id and fields must be written after {@link #RESERVED_HEADER} bytes of
+	 * free space.
+	 *
+	 * @param serialized the serialized packet
+	 * @param threshold the compression threshold of the client, or a negative value if the compression is disabled
+	 * @return a ByteBuffer ready to be written to the channel
+	 */
+	static ByteBuffer frame(ByteArrayOutputStream serialized, int threshold) {
+		final byte[] array = serialized.asByteArray();
+		final int dataLength = serialized.size() - RESERVED_HEADER;
+		if (threshold < 0) {// no compression: [length][data]
+			final int start = RESERVED_HEADER - ProtocolData.varIntSize(dataLength);
+			ProtocolData.writeVarInt(dataLength, ByteBuffer.wrap(array, start, RESERVED_HEADER - start));
+			return ByteBuffer.wrap(array, start, serialized.size() - start);
+		}
+		if (dataLength < threshold) {// too small to be compressed: [length][0][data]
+			array[RESERVED_HEADER - 1] = 0;
+			final int length = dataLength + 1;
+			final int start = RESERVED_HEADER - 1 - ProtocolData.varIntSize(length);
+			ProtocolData.writeVarInt(length, ByteBuffer.wrap(array, start, RESERVED_HEADER - 1 - start));
+			return ByteBuffer.wrap(array, start, serialized.size() - start);
+		}
+		return compress(array, RESERVED_HEADER, dataLength);
+	}
+	
+	/**
+	 * Compresses some data and frames it: [length][data length][compressed data].
+	 */
+	private static ByteBuffer compress(byte[] data, int offset, int dataLength) {
+		final long t0 = System.nanoTime();
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(level);
+		}
+		final int dataLengthSize = ProtocolData.varIntSize(dataLength);
+		final int headerSpace = 5 + dataLengthSize;
+		byte[] out = new byte[headerSpace + dataLength / 2 + 64];// grows if needed
+		int outLength = headerSpace;
+		try {
+			deflater.setInput(data, offset, dataLength);
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (outLength == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				outLength += deflater.deflate(out, outLength, out.length - outLength);
+			}
+		} finally {
+			deflater.reset();
+			if (!deflaters.offer(deflater)) {// the pool is full
+				deflater.end();
+			}
+		}
+		final int length = outLength - 5;// data length + compressed data
+		final int start = 5 - ProtocolData.varIntSize(length);
+		final ByteBuffer header = ByteBuffer.wrap(out, start, headerSpace - start);
+		ProtocolData.writeVarInt(length, header);
+		ProtocolData.writeVarInt(dataLength, header);
+		
+		compressedPackets.incrementAndGet();
+		compressionInput.addAndGet(dataLength);
+		compressionOutput.addAndGet(outLength - headerSpace);
+		compressionNanos.addAndGet(System.nanoTime() - t0);
+		return ByteBuffer.wrap(out, start, outLength - start);
+	}
+	
+	/**
+	 * Borrows an Inflation from the pool. It must be given back with {@link #release(Inflation)}.
+	 */
+	static Inflation acquireInflation() {
+		final Inflation inflation = inflations.poll();
+		return inflation == null ? new Inflation() : inflation;
+	}
+	
+	/**
+	 * Gives back an Inflation to the pool. The buffers returned by
+	 * {@link #decompress(ByteBuffer, int, int, Inflation)} with this Inflation must not be used anymore.
+	 */
+	static void release(Inflation inflation) {
+		inflation.inflater.reset();
+		if (inflation.input.length > SCRATCH_SIZE) {// don't keep the big arrays
+			inflation.input = new byte[SCRATCH_SIZE];
+		}
+		if (inflation.output.length > SCRATCH_SIZE) {
+			inflation.output = new byte[SCRATCH_SIZE];
+		}
+		if (!inflations.offer(inflation)) {// the pool is full
+			inflation.inflater.end();
+		}
+	}
+	
+	/**
+	 * Decompresses the data of a packet. The returned buffer uses the arrays of the Inflation, therefore it must be
+	 * read before the Inflation is released or used again.
+	 *
+	 * @param compressed the compressed data, from its position to its limit
+	 * @param dataLength the length of the uncompressed data
+	 * @param threshold the compression threshold of the client
+	 * @param inflation an Inflation borrowed with {@link #acquireInflation()}
+	 * @return a buffer that contains the uncompressed data
+	 */
+	static ByteBuffer decompress(ByteBuffer compressed, int dataLength, int threshold, Inflation inflation)
+			throws IOException {
+		if (dataLength < threshold || dataLength > MAX_DATA_LENGTH)
+			throw new IOException("Invalid uncompressed data length " + dataLength + " (threshold " + threshold + ")");
+		final long t0 = System.nanoTime();
+		final int compressedLength = compressed.remaining();
+		if (inflation.input.length < compressedLength) {
+			inflation.input = new byte[compressedLength];
+		}
+		if (inflation.output.length < dataLength) {
+			inflation.output = new byte[dataLength];
+		}
+		final byte[] input = inflation.input, output = inflation.output;
+		compressed.get(input, 0, compressedLength);
+		
+		final Inflater inflater = inflation.inflater;
+		try {
+			inflater.setInput(input, 0, compressedLength);
+			int inflated = 0;
+			while (inflated < dataLength && !inflater.finished()) {
+				int n = inflater.inflate(output, inflated, dataLength - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				inflated += n;
+			}
+			if (inflated != dataLength)
+				throw new IOException("Invalid compressed data: expected " + dataLength + " bytes, got " + inflated);
+		} catch (DataFormatException ex) {
+			throw new IOException("Invalid compressed data", ex);
+		} finally {
+			inflater.reset();
+		}
+		
+		decompressedPackets.incrementAndGet();
+		decompressionInput.addAndGet(compressedLength);
+		decompressionOutput.addAndGet(dataLength);
+		decompressionNanos.addAndGet(System.nanoTime() - t0);
+		return ByteBuffer.wrap(output, 0, dataLength);
+	}
+	
+	/**
+	 * Gets the number of packets compressed since the start of the server.
+	 */
+	public static long compressedPackets() {
+		return compressedPackets.get();
+	}
+	
+	/**
+	 * Gets the compression ratio: compressed size / uncompressed size, of all the compressed packets.
+	 */
+	public static double compressionRatio() {
+		long in = compressionInput.get();
+		return in == 0 ? 1 : (double) compressionOutput.get() / in;
+	}
+	
+	/**
+	 * Gets the total time spent compressing packets, in nanoseconds.
+	 */
+	public static long compressionNanos() {
+		return compressionNanos.get();
+	}
+	
+	/**
+	 * Gets the number of packets decompressed since the start of the server.
+	 */
+	public static long decompressedPackets() {
+		return decompressedPackets.get();
+	}
+	
+	/**
+	 * Gets the decompression ratio: compressed size / uncompressed size, of all the decompressed packets.
+	 */
+	public static double decompressionRatio() {
+		long out = decompressionOutput.get();
+		return out == 0 ? 1 : (double) decompressionInput.get() / out;
+	}
+	
+	/**
+	 * Gets the total time spent decompressing packets, in nanoseconds.
+	 */
+	public static long decompressionNanos() {
+		return decompressionNanos.get();
+	}
+	
+	private PacketCompression() {}
+	
+}
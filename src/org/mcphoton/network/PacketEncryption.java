@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and decrypts the packets of the clients in online mode. The login uses the server's RSA key pair to
+ * exchange a shared secret, then all the data is encrypted with AES/CFB8, with the shared secret as both the key and
+ * the IV. Each client has its own Cipher for each direction, which is reused for all its data.
+ * <p>
+ * The counters of this class give the cost of the encryption, to size the hardware of the online-mode servers.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public final class PacketEncryption {
+	
+	private static volatile KeyPair keyPair;
+	
+	// Counters:
+	private static final AtomicLong encryptedBytes = new AtomicLong();
+	private static final AtomicLong encryptionNanos = new AtomicLong();
+	private static final AtomicLong decryptedBytes = new AtomicLong();
+	private static final AtomicLong decryptionNanos = new AtomicLong();
+	
+	/**
+	 * Generates the server's RSA key pair, if it hasn't been generated yet. It's better to call this method at startup,
+	 * so that the first login doesn't have to wait for it.
+	 */
+	public static synchronized void generateKeyPair() throws GeneralSecurityException {
+		if (keyPair == null) {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(1024);
+			keyPair = generator.generateKeyPair();
+		}
+	}
+	
+	private static KeyPair keyPair() throws GeneralSecurityException {
+		if (keyPair == null) {
+			generateKeyPair();
+		}
+		return keyPair;
+	}
+	
+	/**
+	 * Gets the server's public key, encoded in the X.509 format.
+	 */
+	public static byte[] getEncodedPublicKey() throws GeneralSecurityException {
+		return keyPair().getPublic().getEncoded();
+	}
+	
+	/**
+	 * Decrypts some data that the client has encrypted with the server's public key.
+	 */
+	public static byte[] decryptWithPrivateKey(byte[] data) throws GeneralSecurityException {
+		Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+		rsa.init(Cipher.DECRYPT_MODE, keyPair().getPrivate());
+		return rsa.doFinal(data);
+	}
+	
+	/**
+	 * Computes the hash sent to the session service to authenticate a player: a SHA-1 digest of the server id (empty
+	 * since MC 1.7), the shared secret and the public key, written as a signed hexadecimal number.
+	 */
+	public static String serverIdHash(byte[] sharedSecret) throws GeneralSecurityException {
+		MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+		sha1.update("".getBytes(StandardCharsets.ISO_8859_1));
+		sha1.update(sharedSecret);
+		sha1.update(getEncodedPublicKey());
+		return new BigInteger(sha1.digest()).toString(16);
+	}
+	
+	/**
+	 * Creates an AES/CFB8 Cipher for the given shared secret.
+	 *
+	 * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 */
+	static Cipher createCipher(int mode, byte[] sharedSecret) throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance("AES/CFB8/NoPadding");
+		cipher.init(mode, new SecretKeySpec(sharedSecret, "AES"), new IvParameterSpec(sharedSecret));
+		return cipher;
+	}
+	
+	/**
+	 * Encrypts the remaining bytes of <code>src</code> into <code>dst</code>. CFB8 is a stream mode, so the encrypted
+	 * data has the same size as the original data.
+	 */
+	static void encrypt(Cipher cipher, ByteBuffer src, ByteBuffer dst) throws IOException {
+		final long t0 = System.nanoTime();
+		final int n = src.remaining();
+		try {
+			cipher.update(src, dst);
+		} catch (ShortBufferException ex) {
+			throw new IOException("Unable to encrypt the data", ex);
+		}
+		encryptedBytes.addAndGet(n);
+		encryptionNanos.addAndGet(System.nanoTime() - t0);
+	}
+	
+	/**
+	 * Decrypts, in place, the bytes of the buffer between the indexes <code>from</code> (inclusive) and
+	 * <code>to</code> (exclusive). The position and limit of the buffer aren't modified.
+	 */
+	static void decrypt(Cipher cipher, ByteBuffer buffer, int from, int to) throws IOException {
+		if (from == to)
+			return;
+		final long t0 = System.nanoTime();
+		final ByteBuffer in = buffer.duplicate();
+		final ByteBuffer out = buffer.duplicate();
+		in.limit(to).position(from);
+		out.limit(to).position(from);
+		try {
+			cipher.update(in, out);// copy-safe: the input and output may be the same memory
+		} catch (ShortBufferException ex) {
+			throw new IOException("Unable to decrypt the data", ex);
+		}
+		decryptedBytes.addAndGet(to - from);
+		decryptionNanos.addAndGet(System.nanoTime() - t0);
+	}
+	
+	/**
+	 * Gets the number of bytes encrypted since the start of the server.
+	 */
+	public static long encryptedBytes() {
+		return encryptedBytes.get();
+	}
+	
+	/**
+	 * Gets the total time spent encrypting data, in nanoseconds.
+	 */
+	public static long encryptionNanos() {
+		return encryptionNanos.get();
+	}
+	
+	/**
+	 * Gets the number of bytes decrypted since the start of the server.
+	 */
+	public static long decryptedBytes() {
+		return decryptedBytes.get();
+	}
+	
+	/**
+	 * Gets the total time spent decrypting data, in nanoseconds.
+	 */
+	public static long decryptionNanos() {
+		return decryptionNanos.get();
+	}
+	
+	private PacketEncryption() {}
+	
+}
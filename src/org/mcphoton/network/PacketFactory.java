@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import com.electronwill.streams.EasyInputStream;
+
+/**
+ * Creates ReceivablePackets from their data. It's typically a reference to the packet's constructor, like
+ * <code>PlayerPositionPacket::new</code>.
+ *
+ * @author ElectronWill
+ */
+@FunctionalInterface
+public interface PacketFactory {
+	
+	/**
+	 * Creates a new ReceivablePacket.
+	 *
+	 * @param client the client that sent the packet
+	 * @param in an EasyInputStream that contains the packet's data
+	 * @return a new ReceivablePacket
+	 */
+	ReceivablePacket create(ClientInfos client, EasyInputStream in) throws Throwable;
+	
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+/**
+ * The priority lanes of the outgoing packets. Each PacketWriter has one queue per lane: the packets of the same lane
+ * are sent in order, but the packets of different lanes may be reordered, therefore only the packets that commute may
+ * use different lanes. A packet that must arrive after another one should use the same lane, or be a barrier (see
+ * {@link SendablePacket#isBarrier()}): a barrier is never reordered with the packets of the other lanes.
+ * <p>
+ * The CONTROL lane is always drained first. Then the other lanes are drained in turn, each one sending up to its
+ * weight in packets, so that a flood of chunks doesn't delay the interactive packets, and vice versa.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public enum PacketLane {
+	
+	/**
+	 * The small packets that keep the connection alive, and that commute with all the others: keep-alives and
+	 * disconnections.
+	 */
+	CONTROL(Integer.MAX_VALUE),
+	/**
+	 * The packets of the gameplay. This is the default lane.
+	 */
+	INTERACTIVE(4),
+	/**
+	 * The big packets that may be delayed: chunks, and the block updates that must not overtake them.
+	 */
+	BULK(1);
+	
+	/**
+	 * The maximum number of packets sent from this lane before the next lane is drained.
+	 */
+	final int weight;
+	
+	private PacketLane(int weight) {
+		this.weight = weight;
+	}
+	
+}
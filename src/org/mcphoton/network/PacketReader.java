@@ -14,8 +14,9 @@
  */
 package org.mcphoton.network;
 
+import java.io.IOException;
 import java.nio.channels.SocketChannel;
-import org.mcphoton.event.impl.PacketReceiveEvent;
+import javax.crypto.Cipher;
 
 /**
  * A PacketReader is used to abstract how packets are read by the server. Implementations may for example uncompress the
@@ -51,16 +52,35 @@ public abstract class PacketReader {
 	public abstract ReceivablePacket readNext() throws Exception;
 	
 	/**
-	 * Reads the next available packet and returns the corresponding event.
-	 * 
-	 * @return the event corresponding to the next packet, or null if no packet is available for now
-	 * @throws Exception
+	 * Checks if some data has been received but not read yet. When the channel is in blocking mode, {@link #readNext()}
+	 * blocks only if there is no pending data, or if it doesn't contain an entire packet.
+	 */
+	public boolean hasPendingData() {
+		return false;
+	}
+	
+	/**
+	 * Checks if an entire packet has been received but not read yet. If so, {@link #readNext()} returns it without
+	 * reading the channel, so it doesn't block even in blocking mode.
+	 */
+	public boolean hasPendingPacket() {
+		return false;
+	}
+	
+	/**
+	 * Enables the decryption of the incoming data. The data that has already been received, but not read yet, is
+	 * decrypted too.
+	 *
+	 * @param decipher the Cipher that decrypts the data
+	 * @throws UnsupportedOperationException if this PacketReader doesn't support the encryption
 	 */
-	public PacketReceiveEvent readNextEvent() throws Exception {
-		ReceivablePacket packet = readNext();
-		if (packet == null)
-			return null;
-		return new PacketReceiveEvent(packet, client);
+	public void enableDecryption(Cipher decipher) throws IOException {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't support the encryption");
 	}
 	
+	/**
+	 * Releases the resources held by this PacketReader. Called when the client is removed.
+	 */
+	public void close() {}
+	
 }
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+import org.mcphoton.core.Photon;
+import org.mcphoton.core.ServerLoad;
+import org.mcphoton.messaging.Messageable;
+import org.mcphoton.util.ProtocolData;
+import com.electronwill.streams.ByteArrayOutputStream;
+
+/**
+ * Replays a file recorded by {@link PacketCapture} against this server, to reproduce a load offline and compare the
+ * builds. Each captured connection is replayed by a new connection over the loopback interface, so the frames go
+ * through the whole network stack: ReceiverThread, SimplePacketReader, ReceivablePacket.construct, InboundQueue and
+ * the packets' handlers. The packets sent by the server are read and ignored, except the KeepAlive packets, which are
+ * answered like a real client would: the captured answers are skipped, because their ids don't match the new ones.
+ * <p>
+ * The login is replayed in offline mode: the LoginStart packet is sent, and the other LOGIN packets (the encryption)
+ * are skipped. The PLAY frames are framed again if the compression threshold of this server isn't the same as the one
+ * of the captured server. When the replay ends, the ticks per second, the mean and p99 time per tick, and the memory
+ * allocated by the server are reported.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public final class PacketReplay implements Runnable {
+	
+	private static final int CONNECT_TIMEOUT = 5000;// in milliseconds
+	private static final long LOGIN_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+	private static final long WRITE_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+	
+	/**
+	 * The maximum length of the frames that are parsed. The bigger ones are skipped: they aren't KeepAlive packets nor
+	 * LOGIN packets.
+	 */
+	private static final int MAX_PARSED_LENGTH = 1024;
+	
+	/**
+	 * Starts replaying a capture file in a new Thread.
+	 *
+	 * @param speed the speed factor, 1 to replay at the captured rate, or 0 to replay as fast as possible
+	 * @param output where the progress and the results are reported
+	 */
+	public static void start(File file, double speed, Messageable output) {
+		Thread t = new Thread(new PacketReplay(file, speed, output), "PacketReplay");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	private final File file;
+	private final double speed;
+	private final Messageable output;
+	private final HashMap<Integer, Connection> connections = new HashMap<>();
+	private final ArrayDeque<Connection> answering = new ArrayDeque<>();// the connections that have some answers to send
+	private boolean sendingAnswers;// true while drain() sends the answers, which may call drain() again
+	private Selector selector;
+	private long replayed, skipped;
+	
+	private PacketReplay(File file, double speed, Messageable output) {
+		this.file = file;
+		this.speed = speed;
+		this.output = output;
+	}
+	
+	/**
+	 * A replayed connection.
+	 */
+	private final class Connection {
+		
+		final SocketChannel channel;
+		final InetSocketAddress localAddress;
+		ClientInfos server;// the server side of the connection
+		boolean playing, closed;
+		final ByteBuffer in = ByteBuffer.allocate(8192);// the data received from the server
+		int skippedLength;// the number of bytes of the current frame that must still be skipped
+		int threshold = -1;// the compression threshold of the data received from the server
+		boolean loggedIn;// true once the LoginSuccess packet has been received
+		final ArrayDeque<ByteBuffer> answers = new ArrayDeque<>();// the answers to the KeepAlive packets
+		
+		Connection() throws IOException {
+			channel = SocketChannel.open();
+			channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			localAddress = (InetSocketAddress) channel.getLocalAddress();
+			ConnectionAdmission.trust(localAddress);// a replay opens many connections at once
+			channel.socket().connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Photon.getPort()), CONNECT_TIMEOUT);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, this);
+		}
+		
+		/**
+		 * Waits until the server is in the given state.
+		 *
+		 * @return true if it is, false if the timeout has elapsed
+		 */
+		boolean await(ConnectionState state) throws IOException {
+			final long deadline = System.nanoTime() + LOGIN_TIMEOUT;
+			while (!closed && System.nanoTime() < deadline) {
+				if (server == null) {
+					server = ClientInfos.get(localAddress);
+				}
+				if (server != null && server.getState() == state)
+					return true;
+				drain();
+				LockSupport.parkNanos(100_000);
+			}
+			return false;
+		}
+		
+		void send(ByteBuffer frame) throws IOException {
+			long deadline = System.nanoTime() + WRITE_TIMEOUT;
+			while (frame.hasRemaining() && !closed) {
+				if (channel.write(frame) > 0) {
+					deadline = System.nanoTime() + WRITE_TIMEOUT;
+				} else if (System.nanoTime() > deadline) {
+					throw new IOException("The server doesn't read the replayed data");
+				} else {
+					drain();// the server may be waiting for us to read
+					LockSupport.parkNanos(100_000);
+				}
+			}
+		}
+		
+		/**
+		 * Reads the data sent by the server, and prepares the answers to its KeepAlive packets.
+		 *
+		 * @return false if the connection has been closed by the server
+		 */
+		boolean receive() {
+			try {
+				int read;
+				while ((read = channel.read(in)) > 0) {
+					parse();
+				}
+				return read != -1;
+			} catch (IOException ex) {
+				return false;
+			}
+		}
+		
+		/**
+		 * Handles the complete frames that have been received, and skips the big ones.
+		 */
+		private void parse() throws IOException {
+			in.flip();
+			while (in.hasRemaining()) {
+				if (skippedLength > 0) {
+					final int n = Math.min(skippedLength, in.remaining());
+					in.position(in.position() + n);
+					skippedLength -= n;
+					continue;
+				}
+				final int start = in.position();
+				final int length;
+				try {
+					length = ProtocolData.readVarInt(in);
+				} catch (BufferUnderflowException ex) {// incomplete length
+					in.position(start);
+					break;
+				}
+				if (length > MAX_PARSED_LENGTH) {
+					skippedLength = length;
+					continue;
+				}
+				if (in.remaining() < length) {
+					in.position(start);
+					break;
+				}
+				final ByteBuffer frame = in.slice();
+				frame.limit(length);
+				in.position(in.position() + length);
+				handle(frame);
+			}
+			in.compact();
+		}
+		
+		private void handle(ByteBuffer frame) throws IOException {
+			if (threshold >= 0 && ProtocolData.readVarInt(frame) != 0)
+				return;// compressed packets are big, and we react only to small ones
+			final int id = ProtocolData.readVarInt(frame);
+			if (!loggedIn) {
+				if (id == 0x03) {// SetCompressionPacket
+					threshold = ProtocolData.readVarInt(frame);
+				} else if (id == 0x02) {// LoginSuccessPacket
+					loggedIn = true;
+				}
+			} else if (id == 0x00) {// KeepAlivePacket: sends back its id
+				final ByteArrayOutputStream answer = new ByteArrayOutputStream(16);
+				answer.skip(PacketCompression.RESERVED_HEADER);
+				answer.writeVarInt(0x00);
+				answer.writeVarInt(ProtocolData.readVarInt(frame));
+				answers.offer(PacketCompression.frame(answer, threshold));
+			}
+		}
+		
+		void close() {
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				// ignored
+			}
+		}
+		
+	}
+	
+	@Override
+	public void run() {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)), 65536))) {
+			if (in.readInt() != PacketCapture.MAGIC || in.readInt() != PacketCapture.VERSION) {
+				output.sendMessage("Replay: " + file + " isn't a packet capture, or has been recorded by another version");
+				return;
+			}
+			selector = Selector.open();
+			output.sendMessage("Replay: replaying " + file + (speed > 0 ? " at " + speed + "x" : " as fast as possible"));
+			
+			final ServerLoad.Sample start = ServerLoad.sample();
+			final long t0 = System.nanoTime();
+			final PacketCapture.Record record = new PacketCapture.Record();
+			while (record.read(in)) {
+				if (speed > 0) {// waits until the time of the record
+					final long time = t0 + (long) (record.micros * 1000 / speed);
+					long remaining;
+					while ((remaining = time - System.nanoTime()) > 0) {
+						drain();
+						LockSupport.parkNanos(Math.min(remaining, 1_000_000));
+					}
+				}
+				Connection connection = connections.get(record.connection);
+				if (connection == null) {
+					connection = new Connection();
+					connections.put(record.connection, connection);
+				}
+				replay(connection, record);
+				drain();
+			}
+			
+			// Waits for the server to handle the last packets:
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (InboundQueue.size() > 0 && System.nanoTime() < deadline) {
+				drain();
+				LockSupport.parkNanos(1_000_000);
+			}
+			final ServerLoad.Report report = start.until(ServerLoad.sample());
+			output.sendMessage("Replay: " + replayed + " frames replayed, " + skipped + " skipped, " + connections.size()
+					+ " connections");
+			output.sendMessage("Replay: " + report);
+		} catch (Exception ex) {
+			Photon.log.error(ex, "Error while replaying " + file);
+			output.sendMessage("Replay: failed: " + ex);
+		} finally {
+			for (Connection connection : connections.values()) {
+				connection.close();
+			}
+			if (selector != null) {
+				try {
+					selector.close();
+				} catch (IOException ex) {
+					// ignored
+				}
+			}
+		}
+	}
+	
+	private void replay(Connection connection, PacketCapture.Record record) throws IOException {
+		if (connection.closed) {
+			skipped++;
+			return;
+		}
+		switch (record.state) {
+			case LOGIN:
+				if (readId(record) != 0) {// only the LoginStart packet, the server is in offline mode
+					skipped++;
+					return;
+				}
+				send(connection, record.frame);
+				connection.playing = connection.await(ConnectionState.PLAY);
+				if (!connection.playing) {
+					output.sendMessage("Replay: connection " + record.connection + " isn't in the PLAY state after the login, is the online mode disabled?");
+					connection.close();
+				}
+				return;
+			case PLAY:
+				if (!connection.playing || isKeepAlive(record)) {// the KeepAlive packets are answered by drain()
+					skipped++;
+					return;
+				}
+				final int threshold = connection.server.getCompressionThreshold();
+				if (threshold == record.threshold) {
+					send(connection, record.frame);
+				} else {
+					final ByteArrayOutputStream data = uncompress(record);
+					connection.send(PacketCompression.frame(data, threshold));
+					replayed++;
+				}
+				return;
+			default:// INIT and STATUS, never compressed
+				send(connection, record.frame);
+		}
+	}
+	
+	private void send(Connection connection, byte[] frame) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(ProtocolData.varIntSize(frame.length) + frame.length);
+		ProtocolData.writeVarInt(frame.length, buffer);
+		buffer.put(frame);
+		buffer.flip();
+		connection.send(buffer);
+		replayed++;
+	}
+	
+	/**
+	 * Reads the packet's id of an uncompressed frame.
+	 */
+	private int readId(PacketCapture.Record record) {
+		final ByteBuffer frame = ByteBuffer.wrap(record.frame);
+		if (record.threshold >= 0) {
+			ProtocolData.readVarInt(frame);// the data length, 0 in the LOGIN state
+		}
+		return ProtocolData.readVarInt(frame);
+	}
+	
+	/**
+	 * Checks if a frame contains a KeepAlive packet, which is never compressed.
+	 */
+	private boolean isKeepAlive(PacketCapture.Record record) {
+		final ByteBuffer frame = ByteBuffer.wrap(record.frame);
+		if (record.threshold >= 0 && ProtocolData.readVarInt(frame) != 0)
+			return false;
+		return ProtocolData.readVarInt(frame) == 0x00;
+	}
+	
+	/**
+	 * Gets the packet's id and data of a frame, after the space reserved for the header.
+	 */
+	private ByteArrayOutputStream uncompress(PacketCapture.Record record) throws IOException {
+		final ByteBuffer frame = ByteBuffer.wrap(record.frame);
+		ByteBuffer data = frame;
+		PacketCompression.Inflation inflation = null;
+		try {
+			if (record.threshold >= 0) {
+				final int dataLength = ProtocolData.readVarInt(frame);
+				if (dataLength != 0) {
+					inflation = PacketCompression.acquireInflation();
+					data = PacketCompression.decompress(frame, dataLength, record.threshold, inflation);
+				}
+			}
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(PacketCompression.RESERVED_HEADER + data.remaining());
+			out.skip(PacketCompression.RESERVED_HEADER);
+			final byte[] bytes = new byte[data.remaining()];
+			data.get(bytes);
+			out.write(bytes);
+			return out;
+		} finally {
+			if (inflation != null) {
+				PacketCompression.release(inflation);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the data sent by the server, and answers its KeepAlive packets.
+	 */
+	private void drain() throws IOException {
+		if (sendingAnswers || selector.selectNow() == 0)
+			return;
+		final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			final SelectionKey key = it.next();
+			it.remove();
+			final Connection connection = (Connection) key.attachment();
+			if (!connection.receive()) {// closed by the server
+				key.cancel();
+				connection.close();
+			} else if (!connection.answers.isEmpty()) {
+				answering.offer(connection);
+			}
+		}
+		// Sends the answers after the iteration, because send() may call drain():
+		sendingAnswers = true;
+		try {
+			Connection connection;
+			while ((connection = answering.poll()) != null) {
+				ByteBuffer answer;
+				while ((answer = connection.answers.poll()) != null) {
+					connection.send(answer);
+				}
+			}
+		} finally {
+			sendingAnswers = false;
+		}
+	}
+	
+}
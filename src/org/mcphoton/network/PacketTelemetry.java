@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the traffic of each type of packet: the number of packets, their size on the wire and their uncompressed size,
+ * for each direction, connection state and packet id. The time spent decoding, handling and serializing the packets is
+ * recorded in histograms with power-of-two buckets, so that recording is only a few increments.
+ * <p>
+ * Each counter is a {@link LongAdder}, created when it's first used, so that the Threads that record the same type of
+ * packet don't contend on the same memory location. The counters are summed when they're read.
+ * </p>
+ * <p>
+ * The counters are global, and per player for the PLAY packets. They are meant to be enabled in production, see the
+ * "traffic" command.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public final class PacketTelemetry {
+	
+	/**
+	 * The direction of a packet.
+	 */
+	public static enum Direction {
+		/**
+		 * Received from the clients.
+		 */
+		INBOUND,
+		/**
+		 * Sent to the clients.
+		 */
+		OUTBOUND;
+	}
+	
+	/**
+	 * The number of counted ids. The packets with a bigger id are counted with the id MAX_ID - 1.
+	 */
+	private static final int MAX_ID = 128;
+	
+	private static final Direction[] DIRECTIONS = Direction.values();
+	private static final ConnectionState[] STATES = ConnectionState.values();
+	private static final int SLOTS = DIRECTIONS.length * STATES.length * MAX_ID;
+	private static final int PLAYER_SLOTS = DIRECTIONS.length * MAX_ID;// only the PLAY state
+	
+	/**
+	 * The state of the packets that are sent, which only depends on their class: the vanilla packets are sorted by
+	 * state in packages, and the packets of the plugins are PLAY packets.
+	 */
+	private static final ClassValue<ConnectionState> OUTBOUND_STATES = new ClassValue<ConnectionState>() {
+		@Override
+		protected ConnectionState computeValue(Class<?> type) {
+			final String name = type.getName();
+			if (name.startsWith("org.mcphoton.network.clientbound.status."))
+				return ConnectionState.STATUS;
+			if (name.startsWith("org.mcphoton.network.clientbound.login."))
+				return ConnectionState.LOGIN;
+			return ConnectionState.PLAY;
+		}
+	};
+	
+	private static volatile boolean enabled = true;
+	
+	private static final Counters global = new Counters(SLOTS);
+	private static final Histogram decoding = new Histogram(SLOTS);
+	private static final Histogram handling = new Histogram(SLOTS);
+	private static final Histogram serialization = new Histogram(SLOTS);
+	private static final AtomicReferenceArray<String> names = new AtomicReferenceArray<>(SLOTS);
+	
+	/**
+	 * Enables or disables the telemetry.
+	 */
+	public static void configure(boolean enabled) {
+		PacketTelemetry.enabled = enabled;
+	}
+	
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	private static int slot(Direction direction, ConnectionState state, int id) {
+		if (id < 0 || id >= MAX_ID) {
+			id = MAX_ID - 1;
+		}
+		return (direction.ordinal() * STATES.length + state.ordinal()) * MAX_ID + id;
+	}
+	
+	private static int playerSlot(Direction direction, int id) {
+		if (id < 0 || id >= MAX_ID) {
+			id = MAX_ID - 1;
+		}
+		return direction.ordinal() * MAX_ID + id;
+	}
+	
+	private static void setName(int slot, MCPacket packet) {
+		if (names.get(slot) == null) {
+			names.lazySet(slot, packet.getClass().getSimpleName());
+		}
+	}
+	
+	/**
+	 * Creates the counters of a player, or returns null if the telemetry is disabled.
+	 */
+	static Counters newPlayerCounters() {
+		return enabled ? new Counters(PLAYER_SLOTS) : null;
+	}
+	
+	/**
+	 * Records a received packet.
+	 *
+	 * @param state the connection state in which the packet has been decoded
+	 * @param wireBytes the size of the packet's frame
+	 * @param dataBytes the size of the packet's id and data, uncompressed
+	 * @param decodeNanos the time spent decoding the packet
+	 */
+	static void received(ClientInfos client, ConnectionState state, ReceivablePacket packet, int wireBytes, int dataBytes,
+			long decodeNanos) {
+		if (!enabled)
+			return;
+		final int id = packet.id();
+		final int slot = slot(Direction.INBOUND, state, id);
+		global.add(slot, wireBytes, dataBytes);
+		decoding.record(slot, decodeNanos);
+		setName(slot, packet);
+		final Counters player = client.traffic;
+		if (player != null && state == ConnectionState.PLAY) {
+			player.add(playerSlot(Direction.INBOUND, id), wireBytes, dataBytes);
+		}
+	}
+	
+	/**
+	 * Records the handling of a received packet.
+	 *
+	 * @param state the connection state in which the packet has been decoded
+	 */
+	static void handled(ConnectionState state, ReceivablePacket packet, long nanos) {
+		if (enabled) {
+			handling.record(slot(Direction.INBOUND, state, packet.id()), nanos);
+		}
+	}
+	
+	/**
+	 * Records the serialization of a packet, which may then be sent to several clients.
+	 */
+	static void serialized(SendablePacket packet, long nanos) {
+		if (enabled) {
+			serialization.record(slot(Direction.OUTBOUND, OUTBOUND_STATES.get(packet.getClass()), packet.id()), nanos);
+		}
+	}
+	
+	/**
+	 * Records a packet queued for sending to a client.
+	 *
+	 * @param wireBytes the size of the packet's frame
+	 * @param dataBytes the size of the packet's id and data, uncompressed
+	 */
+	static void sent(ClientInfos client, SendablePacket packet, int wireBytes, int dataBytes) {
+		if (!enabled)
+			return;
+		final ConnectionState state = OUTBOUND_STATES.get(packet.getClass());
+		final int id = packet.id();
+		final int slot = slot(Direction.OUTBOUND, state, id);
+		global.add(slot, wireBytes, dataBytes);
+		setName(slot, packet);
+		final Counters player = client.traffic;
+		if (player != null && state == ConnectionState.PLAY) {
+			player.add(playerSlot(Direction.OUTBOUND, id), wireBytes, dataBytes);
+		}
+	}
+	
+	/**
+	 * Gets the global statistics of each type of packet that has been received or sent.
+	 */
+	public static List<Entry> getGlobalEntries() {
+		final List<Entry> entries = new ArrayList<>();
+		for (Direction direction : DIRECTIONS) {
+			for (ConnectionState state : STATES) {
+				for (int id = 0; id < MAX_ID; id++) {
+					final int slot = slot(direction, state, id);
+					if (global.packets.sum(slot) == 0)
+						continue;
+					final boolean in = (direction == Direction.INBOUND);
+					entries.add(new Entry(direction, state, id, names.get(slot), global, slot, in ? decoding.snapshot(slot) : null,
+							in ? handling.snapshot(slot) : null, in ? null : serialization.snapshot(slot)));
+				}
+			}
+		}
+		return entries;
+	}
+	
+	/**
+	 * Gets the statistics of each type of PLAY packet that has been received from or sent to a client since it has
+	 * joined the game. The latencies aren't recorded per client.
+	 *
+	 * @return the entries, or null if there are no statistics for this client
+	 */
+	public static List<Entry> getEntries(ClientInfos client) {
+		final Counters player = client.traffic;
+		if (player == null)
+			return null;
+		final List<Entry> entries = new ArrayList<>();
+		for (Direction direction : DIRECTIONS) {
+			for (int id = 0; id < MAX_ID; id++) {
+				final int slot = playerSlot(direction, id);
+				if (player.packets.sum(slot) == 0)
+					continue;
+				final String name = names.get(slot(direction, ConnectionState.PLAY, id));
+				entries.add(new Entry(direction, ConnectionState.PLAY, id, name, player, slot, null, null, null));
+			}
+		}
+		return entries;
+	}
+	
+	/**
+	 * Resets the global statistics.
+	 */
+	public static void reset() {
+		global.clear();
+		decoding.clear();
+		handling.clear();
+		serialization.clear();
+	}
+	
+	/**
+	 * An array of LongAdders, created when they're first incremented.
+	 */
+	private static final class Adders {
+		
+		private final AtomicReferenceArray<LongAdder> adders;
+		
+		Adders(int length) {
+			adders = new AtomicReferenceArray<>(length);
+		}
+		
+		void add(int i, long x) {
+			LongAdder adder = adders.get(i);
+			if (adder == null) {
+				adders.compareAndSet(i, null, new LongAdder());
+				adder = adders.get(i);// created by this Thread or by another one
+			}
+			adder.add(x);
+		}
+		
+		long sum(int i) {
+			final LongAdder adder = adders.get(i);
+			return adder == null ? 0 : adder.sum();
+		}
+		
+		void clear() {
+			for (int i = 0; i < adders.length(); i++) {
+				final LongAdder adder = adders.get(i);
+				if (adder != null) {
+					adder.reset();
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * Counts the packets and their sizes.
+	 */
+	static final class Counters {
+		
+		final Adders packets, wireBytes, dataBytes;
+		
+		Counters(int slots) {
+			packets = new Adders(slots);
+			wireBytes = new Adders(slots);
+			dataBytes = new Adders(slots);
+		}
+		
+		void add(int slot, int wire, int data) {
+			packets.add(slot, 1);
+			wireBytes.add(slot, wire);
+			dataBytes.add(slot, data);
+		}
+		
+		void clear() {
+			packets.clear();
+			wireBytes.clear();
+			dataBytes.clear();
+		}
+		
+	}
+	
+	/**
+	 * A histogram of durations. The bucket n contains the durations between 2^(n-1) and 2^n - 1 nanoseconds.
+	 */
+	private static final class Histogram {
+		
+		private static final int BUCKETS = 40;// up to 9 minutes
+		
+		private final Adders counts, totals;
+		
+		Histogram(int slots) {
+			counts = new Adders(slots * BUCKETS);
+			totals = new Adders(slots);
+		}
+		
+		void record(int slot, long nanos) {
+			final int bucket = Math.min(64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)), BUCKETS - 1);
+			counts.add(slot * BUCKETS + bucket, 1);
+			totals.add(slot, nanos);
+		}
+		
+		Latency snapshot(int slot) {
+			final long[] buckets = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = counts.sum(slot * BUCKETS + i);
+			}
+			return new Latency(buckets, totals.sum(slot));
+		}
+		
+		void clear() {
+			counts.clear();
+			totals.clear();
+		}
+		
+	}
+	
+	/**
+	 * The distribution of the durations of an operation.
+	 */
+	public static final class Latency {
+		
+		private final long[] buckets;
+		private final long count, totalNanos;
+		
+		Latency(long[] buckets, long totalNanos) {
+			long count = 0;
+			for (long n : buckets) {
+				count += n;
+			}
+			this.buckets = buckets;
+			this.count = count;
+			this.totalNanos = totalNanos;
+		}
+		
+		/**
+		 * Gets the number of recorded durations.
+		 */
+		public long getCount() {
+			return count;
+		}
+		
+		/**
+		 * Gets the mean duration, in nanoseconds.
+		 */
+		public long getMeanNanos() {
+			return count == 0 ? 0 : totalNanos / count;
+		}
+		
+		/**
+		 * Gets an upper bound of the given percentile, in nanoseconds. It's precise to a factor of 2.
+		 *
+		 * @param percentile the percentile, between 0 and 100
+		 */
+		public long getPercentileNanos(double percentile) {
+			final long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0)
+					return (1L << i) - 1;
+			}
+			return 0;
+		}
+		
+	}
+	
+	/**
+	 * The statistics of one type of packet.
+	 */
+	public static final class Entry {
+		
+		private final Direction direction;
+		private final ConnectionState state;
+		private final int id;
+		private final String name;
+		private final long packets, wireBytes, dataBytes;
+		private final Latency decode, handle, serialize;
+		
+		Entry(Direction direction, ConnectionState state, int id, String name, Counters counters, int slot, Latency decode,
+				Latency handle, Latency serialize) {
+			this.direction = direction;
+			this.state = state;
+			this.id = id;
+			this.name = (name == null) ? "?" : name;
+			this.packets = counters.packets.sum(slot);
+			this.wireBytes = counters.wireBytes.sum(slot);
+			this.dataBytes = counters.dataBytes.sum(slot);
+			this.decode = decode;
+			this.handle = handle;
+			this.serialize = serialize;
+		}
+		
+		public Direction getDirection() {
+			return direction;
+		}
+		
+		public ConnectionState getState() {
+			return state;
+		}
+		
+		public int getId() {
+			return id;
+		}
+		
+		/**
+		 * Gets the simple name of the packet's class.
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		public long getPackets() {
+			return packets;
+		}
+		
+		/**
+		 * Gets the total size of the frames, as written on the wire (compressed, but not encrypted).
+		 */
+		public long getWireBytes() {
+			return wireBytes;
+		}
+		
+		/**
+		 * Gets the total size of the packets' ids and data, uncompressed.
+		 */
+		public long getDataBytes() {
+			return dataBytes;
+		}
+		
+		/**
+		 * Gets the time spent decoding the packets, or null if it isn't recorded.
+		 */
+		public Latency getDecodeLatency() {
+			return decode;
+		}
+		
+		/**
+		 * Gets the time spent handling the packets, or null if it isn't recorded.
+		 */
+		public Latency getHandleLatency() {
+			return handle;
+		}
+		
+		/**
+		 * Gets the time spent serializing the packets (writeTo), or null if it isn't recorded.
+		 */
+		public Latency getSerializeLatency() {
+			return serialize;
+		}
+		
+	}
+	
+	private PacketTelemetry() {}
+	
+}
@@ -15,7 +15,9 @@
 package org.mcphoton.network;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import javax.crypto.Cipher;
 
 /**
  * Writes packets to a SocketChannel associated to a client.
@@ -26,6 +28,10 @@ public abstract class PacketWriter {
 	
 	protected final ClientInfos client;
 	protected final SocketChannel channel;// Channel connected to the client
+	protected volatile boolean corked = false;
+	private volatile long queuedBytes = 0;// the number of bytes waiting to be sent
+	private volatile boolean congested = false;
+	private volatile long congestedSince;// System.nanoTime() when the writer became congested
 	
 	public PacketWriter(ClientInfos client, SocketChannel channel) {
 		this.client = client;
@@ -70,6 +76,75 @@ public abstract class PacketWriter {
 	 */
 	public abstract boolean writeNow(SendablePacket packet, Runnable onSendingComplete) throws Exception;
 	
+	/**
+	 * Writes some data that is already framed (length + id + data) to the Writer's internal storage, in the
+	 * INTERACTIVE lane.
+	 * 
+	 * @see #write(ByteBuffer, PacketLane, Runnable)
+	 */
+	public void write(ByteBuffer framedData, Runnable onSendingComplete) throws Exception {
+		write(framedData, PacketLane.INTERACTIVE, onSendingComplete);
+	}
+	
+	/**
+	 * Writes some data that is already framed (length + id + data) to the Writer's internal storage. The data isn't a
+	 * barrier.
+	 * 
+	 * @see #write(ByteBuffer, PacketLane, boolean, Runnable)
+	 */
+	public void write(ByteBuffer framedData, PacketLane lane, Runnable onSendingComplete) throws Exception {
+		write(framedData, lane, false, onSendingComplete);
+	}
+	
+	/**
+	 * Writes some data that is already framed (length + id + data) to the Writer's internal storage. The buffer isn't
+	 * copied, so it must not be modified until the sending is completed.
+	 * 
+	 * @param framedData the data to send
+	 * @param lane the lane of the data
+	 * @param barrier true if the data must not be reordered with the data of the other lanes, see
+	 *        {@link SendablePacket#isBarrier()}
+	 * @param onSendingComplete the runnable to run just after the data's sending is completed, may be null
+	 */
+	public abstract void write(ByteBuffer framedData, PacketLane lane, boolean barrier, Runnable onSendingComplete)
+			throws Exception;
+	
+	/**
+	 * Tries to write some data that is already framed (length + id + data) to the SocketChannel immediatly, in the
+	 * INTERACTIVE lane.
+	 * 
+	 * @see #writeNow(ByteBuffer, PacketLane, Runnable)
+	 */
+	public boolean writeNow(ByteBuffer framedData, Runnable onSendingComplete) throws Exception {
+		return writeNow(framedData, PacketLane.INTERACTIVE, onSendingComplete);
+	}
+	
+	/**
+	 * Tries to write some data that is already framed (length + id + data) to the SocketChannel immediatly. The data
+	 * isn't a barrier.
+	 * 
+	 * @see #writeNow(ByteBuffer, PacketLane, boolean, Runnable)
+	 */
+	public boolean writeNow(ByteBuffer framedData, PacketLane lane, Runnable onSendingComplete) throws Exception {
+		return writeNow(framedData, lane, false, onSendingComplete);
+	}
+	
+	/**
+	 * Tries to write some data that is already framed (length + id + data) to the SocketChannel immediatly, if
+	 * possible. If it's not possible, writes it to the Writer's internal storage. The buffer isn't copied, so it must
+	 * not be modified until the sending is completed.
+	 * 
+	 * @param framedData the data to send
+	 * @param lane the lane of the data, used if it can't be written immediately
+	 * @param barrier true if the data must not be reordered with the data of the other lanes, see
+	 *        {@link SendablePacket#isBarrier()}
+	 * @param onSendingComplete the runnable to run just after the data's sending is completed, may be null. It is
+	 *        run by the Writer even if this method throws an exception.
+	 * @return true if the data was completely written to the SocketChannel, false otherwise
+	 */
+	public abstract boolean writeNow(ByteBuffer framedData, PacketLane lane, boolean barrier, Runnable onSendingComplete)
+			throws Exception;
+	
 	/**
 	 * Flushes the data stored by the Writer. This method MAY not flush everything in a row, in which case it returns
 	 * false. If the channel is closed, it returns false too.
@@ -79,4 +154,94 @@ public abstract class PacketWriter {
 	 */
 	public abstract boolean flush() throws IOException;
 	
+	/**
+	 * Writes some data that is already framed to the Writer's internal storage. If some pending data, that hasn't
+	 * started to be written and has been queued after the last barrier, has the same coalescing key, it is discarded.
+	 * The new data is always queued after all the pending data.
+	 *
+	 * @param framedData the data to send
+	 * @param lane the lane of the data
+	 * @param onSendingComplete the runnable to run just after the data's sending is completed, or replaced, may be null
+	 * @param coalescingKey the key of the data, see {@link SendablePacket#coalescingKey()}
+	 */
+	public abstract void writeCoalescing(ByteBuffer framedData, PacketLane lane, Runnable onSendingComplete, long coalescingKey)
+			throws Exception;
+	
+	/**
+	 * Gets the number of bytes waiting to be sent.
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes;
+	}
+	
+	/**
+	 * Checks if this Writer is congested, because its client is too slow. See {@link Backpressure}.
+	 */
+	public boolean isCongested() {
+		return congested;
+	}
+	
+	/**
+	 * Gets the time, given by {@link System#nanoTime()}, at which this Writer became congested.
+	 */
+	public long getCongestedSince() {
+		return congestedSince;
+	}
+	
+	/**
+	 * Updates the number of bytes waiting to be sent, and the congestion state. The implementations must call this
+	 * method each time they queue or dequeue some data, and never concurrently.
+	 *
+	 * @param delta the number of bytes added (positive) or removed (negative)
+	 */
+	protected void addQueuedBytes(long delta) {
+		final long bytes = queuedBytes + delta;
+		queuedBytes = bytes;
+		Backpressure.addTotalQueuedBytes(delta);
+		if (!congested && bytes > Backpressure.getHighWatermark()) {
+			congestedSince = System.nanoTime();
+			congested = true;
+			Backpressure.congestionStarted();
+		} else if (congested && bytes <= Backpressure.getLowWatermark()) {
+			congested = false;
+			Backpressure.congestionEnded(client);
+		}
+	}
+	
+	/**
+	 * Enables the encryption of the outgoing data. The data written after this call is encrypted when it's flushed.
+	 *
+	 * @param cipher the Cipher that encrypts the data
+	 * @throws IllegalStateException if some data is still pending
+	 * @throws UnsupportedOperationException if this Writer doesn't support the encryption
+	 */
+	public void enableEncryption(Cipher cipher) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't support the encryption");
+	}
+	
+	/**
+	 * Releases the resources held by this Writer. Called when the client is removed: the pending data is discarded.
+	 */
+	public void close() {}
+	
+	/**
+	 * Checks if this Writer is corked. A corked Writer keeps the packets in its internal storage until the end of the
+	 * current tick, except the urgent ones (see {@link SendablePacket#isUrgent()}), so that all the packets of a tick
+	 * are written at once.
+	 * 
+	 * @return true if it is corked, false otherwise
+	 */
+	public boolean isCorked() {
+		return corked;
+	}
+	
+	/**
+	 * Defines if this Writer is corked.
+	 * 
+	 * @see #isCorked()
+	 */
+	public void setCorked(boolean corked) {
+		this.corked = corked;
+	}
+	
 }
@@ -15,120 +15,136 @@
 package org.mcphoton.network;
 
 import java.io.IOException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import org.mcphoton.core.Photon;
 
 /**
- * Sends the packets to the clients.
+ * Sends the packets to the clients. The data that cannot be written immediately is flushed later by the
+ * {@link NetworkThread} that owns the client. The data of the corked clients is flushed at the end of each tick, see
+ * {@link #flushCorkedClients()}.
  *
  * @author ElectronWill
  */
 public final class PhotonPacketSender {
 	
-	private static class SenderThread extends Thread {
-		
-		public SenderThread() {
-			super("SenderThread");
-		}
-		
-		@Override
-		public void run() {
-			while (run) {
-				try {
-					synchronized (guard) {}
-					int selected = selector.select();
-					Photon.log.debug("SenderThread: selected " + selected);
-					if (selected == 0)
-						continue;
-					final Set<SelectionKey> selectedKeys = selector.selectedKeys();
-					final Iterator<SelectionKey> iterator = selectedKeys.iterator();
-					
-					try {
-						while (iterator.hasNext()) {
-							final SelectionKey key = iterator.next();
-							if (key.isWritable()) {
-								// A channel is ready to take some data
-								final SocketChannel channel = (SocketChannel) key.channel();
-								if (!channel.isOpen()) {// the connection is closed
-									key.cancel();
-									ClientInfos.remove(channel);
-								}
-								final ClientInfos client = ClientInfos.get(channel);
-								final boolean completed = client.getPacketWriter().flush();
-								if (completed) {
-									key.cancel();
-								}
-							}
-						}
-					} catch (Exception ex) {
-						Photon.log.errorFrom(ex, "SenderThread");
-					} finally {
-						selectedKeys.clear();
-					}
-				} catch (Exception e) {
-					Photon.log.error(e, "Unable to take the packet");
-				}
-			}
-			Photon.log.debug("SenderThread stopped");
-		}
-		
-	}
-	
-	private static volatile boolean run;
-	private static final Selector selector;
-	private static final SenderThread senderThread = new SenderThread();
-	private static final Object guard = new Object();
-	
-	static {
-		Selector s = null;
-		try {
-			s = Selector.open();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		selector = s;
-	}
-	
-	@Deprecated
-	public static void forciblyStop() {
-		senderThread.stop();
-		run = false;
-	}
-	
-	public static boolean isRunning() {
-		return senderThread.isAlive();
-	}
+	/**
+	 * The corked clients that have some data to flush at the end of the tick.
+	 */
+	private static final ConcurrentLinkedQueue<ClientInfos> dirtyClients = new ConcurrentLinkedQueue<>();
 	
 	static void sendData(SendablePacket packet, ClientInfos client) throws IOException {
 		sendData(packet, client, null);
 	}
 	
 	static void sendData(SendablePacket packet, ClientInfos client, Runnable onSendingComplete) throws IOException {
+		if (Backpressure.shouldDrop(client, packet)) {
+			if (onSendingComplete != null) {
+				onSendingComplete.run();
+			}
+			return;
+		}
+		if (Backpressure.shouldCoalesce(client, packet)) {// must replace the pending data: encodes the packet
+			final EncodedPacket encoded = EncodedPacket.encode(packet);
+			try {
+				sendEncoded(encoded, client, onSendingComplete);
+			} finally {
+				encoded.release();
+			}
+			return;
+		}
 		try {
 			PacketWriter pw = client.getPacketWriter();
+			if (pw.isCorked() && !packet.isUrgent()) {// keeps the packet until the end of the tick
+				pw.write(packet, onSendingComplete);
+				if (client.markDirty()) {
+					dirtyClients.offer(client);
+				}
+				return;
+			}
 			boolean fullWrite = pw.writeNow(packet, onSendingComplete);
 			if (!fullWrite) {
-				synchronized (guard) {
-					selector.wakeup();
-					client.getSocketChannel().register(selector, SelectionKey.OP_WRITE);
-				}
+				client.getConnectionHandler().requestFlush(client);
 			}
 		} catch (Throwable error) {
 			throw new IOException("Unable to send the packet", error);
 		}
 	}
 	
-	public static void start() {
-		run = true;
-		senderThread.start();
+	/**
+	 * Sends a packet that has already been serialized. A reference to the packet's data is kept until the sending is
+	 * completed.
+	 */
+	static void sendData(EncodedPacket packet, ClientInfos client) throws IOException {
+		if (Backpressure.shouldDrop(client, packet.getPacket()))
+			return;
+		sendEncoded(packet, client, null);
+	}
+	
+	private static void sendEncoded(EncodedPacket packet, ClientInfos client, Runnable onSendingComplete) throws IOException {
+		final ByteBuffer data = packet.retain(client.getCompressionThreshold());
+		PacketTelemetry.sent(client, packet.getPacket(), data.remaining(), packet.dataLength());
+		final Runnable releaser;
+		if (onSendingComplete == null) {
+			releaser = packet.releaser();
+		} else {
+			releaser = () -> {
+				packet.release();
+				onSendingComplete.run();
+			};
+		}
+		boolean handedOver = false;// true once the writer is responsible for running the releaser
+		try {
+			final PacketWriter pw = client.getPacketWriter();
+			final PacketLane lane = packet.getPacket().lane();
+			final boolean barrier = packet.getPacket().isBarrier();
+			if (Backpressure.shouldCoalesce(client, packet.getPacket())) {// replaces the pending packet with the same key
+				pw.writeCoalescing(data, lane, releaser, packet.getPacket().coalescingKey());
+				handedOver = true;
+				if (!pw.isCorked()) {
+					client.getConnectionHandler().requestFlush(client);
+				} else if (client.markDirty()) {
+					dirtyClients.offer(client);
+				}
+				return;
+			}
+			if (pw.isCorked() && !packet.getPacket().isUrgent()) {// keeps the packet until the end of the tick
+				pw.write(data, lane, barrier, releaser);
+				handedOver = true;
+				if (client.markDirty()) {
+					dirtyClients.offer(client);
+				}
+				return;
+			}
+			handedOver = true;// writeNow runs the releaser even if it fails
+			boolean fullWrite = pw.writeNow(data, lane, barrier, releaser);
+			if (!fullWrite) {
+				client.getConnectionHandler().requestFlush(client);
+			}
+		} catch (Throwable error) {
+			if (!handedOver) {// or else the writer releases it, maybe after the other recipients have sent it
+				packet.release();
+			}
+			throw new IOException("Unable to send the packet", error);
+		}
 	}
 	
-	public static void stop() {
-		run = false;
+	/**
+	 * Flushes all the corked clients that have some pending data. Each client is flushed by its NetworkThread, with
+	 * one write for all the packets of the tick. This method is called by the UpdateThreads at the end of each tick.
+	 */
+	public static void flushCorkedClients() {
+		ClientInfos client;
+		while ((client = dirtyClients.poll()) != null) {
+			client.clearDirty();// before flushing, so that no packet is forgotten
+			try {
+				client.getConnectionHandler().requestFlush(client);
+			} catch (InterruptedException ex) {
+				Photon.log.error(ex, "Interrupted while flushing the corked clients");
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
 	}
 	
 	private PhotonPacketSender() {}
@@ -14,9 +14,14 @@
  */
 package org.mcphoton.network;
 
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
-import java.nio.ByteBuffer;
-import com.electronwill.collections.IndexMap;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 import com.electronwill.streams.EasyInputStream;
 
 /**
@@ -27,24 +32,34 @@ import com.electronwill.streams.EasyInputStream;
 public abstract class ReceivablePacket extends MCPacket {
 	
 	/**
-	 * Contains the registered ReceivablePackets for state Play.
+	 * The registered ReceivablePackets of a ConnectionState. The arrays are indexed by packet id, and replaced (not
+	 * modified) when a packet is registered or unregistered, so they can be read without any lock.
 	 */
-	private static final IndexMap<Constructor<? extends ReceivablePacket>> PLAY_PACKETS = new IndexMap<>(26);
+	private static final class Registry {
+		
+		volatile PacketFactory[] factories;
+		volatile Class<?>[] classes;// the class of each packet, to unregister them
+		
+		Registry(int capacity) {
+			factories = new PacketFactory[capacity];
+			classes = new Class<?>[capacity];
+		}
+		
+	}
 	
-	/**
-	 * Contains the registered ReceivablePackets for state Init (aka "Handshake").
-	 */
-	private static final IndexMap<Constructor<? extends ReceivablePacket>> INIT_PACKETS = new IndexMap<>(1);
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
 	
 	/**
-	 * Contains the registered ReceivablePackets for state Login.
+	 * Contains the registered ReceivablePackets, indexed by {@link ConnectionState#ordinal()}.
 	 */
-	private static final IndexMap<Constructor<? extends ReceivablePacket>> LOGIN_PACKETS = new IndexMap<>(2);
+	private static final Registry[] REGISTRIES = new Registry[ConnectionState.values().length];
 	
-	/**
-	 * Contains the registered ReceivablePackets for state Status.
-	 */
-	private static final IndexMap<Constructor<? extends ReceivablePacket>> STATUS_PACKETS = new IndexMap<>(2);
+	static {
+		REGISTRIES[ConnectionState.INIT.ordinal()] = new Registry(1);
+		REGISTRIES[ConnectionState.LOGIN.ordinal()] = new Registry(2);
+		REGISTRIES[ConnectionState.STATUS.ordinal()] = new Registry(2);
+		REGISTRIES[ConnectionState.PLAY.ordinal()] = new Registry(26);
+	}
 	
 	/**
 	 * Constructs a new ReceivablePacket object corresponding to the given id.
@@ -56,25 +71,18 @@ public abstract class ReceivablePacket extends MCPacket {
 	 * @throws java.lang.Exception if a problem occured during packet creation.
 	 */
 	public static ReceivablePacket construct(ClientInfos cc, int id, EasyInputStream data) throws Exception {
-		final Constructor<? extends ReceivablePacket> constructor;
-		switch (cc.getState()) {
-			case PLAY:
-				constructor = PLAY_PACKETS.get(id);
-				break;
-			case LOGIN:
-				constructor = LOGIN_PACKETS.get(id);
-				break;
-			case STATUS:
-				constructor = STATUS_PACKETS.get(id);
-				break;
-			default:
-				constructor = INIT_PACKETS.get(id);
-				break;
-		}
-		if (constructor == null) {
+		final PacketFactory[] factories = REGISTRIES[cc.getState().ordinal()].factories;
+		final PacketFactory factory = (id >= 0 && id < factories.length) ? factories[id] : null;
+		if (factory == null) {
 			throw new IllegalArgumentException("Invalid packet's id: " + id);
 		}
-		return constructor.newInstance(cc, data);
+		try {
+			return factory.create(cc, data);
+		} catch (Exception | Error ex) {
+			throw ex;
+		} catch (Throwable t) {
+			throw new InvocationTargetException(t);
+		}
 	}
 	
 	/**
@@ -84,16 +92,18 @@ public abstract class ReceivablePacket extends MCPacket {
 	 * @return
 	 */
 	public static boolean isRegistered(ConnectionState state, int id) {
-		switch (state) {
-			case PLAY:
-				return PLAY_PACKETS.containsKey(id);
-			case LOGIN:
-				return LOGIN_PACKETS.containsKey(id);
-			case STATUS:
-				return STATUS_PACKETS.containsKey(id);
-			default:
-				return INIT_PACKETS.containsKey(id);
-		}
+		final PacketFactory[] factories = REGISTRIES[state.ordinal()].factories;
+		return id >= 0 && id < factories.length && factories[id] != null;
+	}
+	
+	/**
+	 * Gets the class of the packet registered with the given id.
+	 *
+	 * @return the packet's class, or null if there is none
+	 */
+	public static Class<?> getRegisteredClass(ConnectionState state, int id) {
+		final Class<?>[] classes = REGISTRIES[state.ordinal()].classes;
+		return (id >= 0 && id < classes.length) ? classes[id] : null;
 	}
 	
 	/**
@@ -112,7 +122,8 @@ public abstract class ReceivablePacket extends MCPacket {
 	}
 	
 	/**
-	 * Tries to register a ReceivablePacket with the given id.
+	 * Tries to register a ReceivablePacket with the given id. A {@link PacketFactory} that calls the constructor is
+	 * generated, so no reflection is used to create the packets.
 	 *
 	 * @param id packet's id
 	 * @param state
@@ -124,23 +135,69 @@ public abstract class ReceivablePacket extends MCPacket {
 		if (!org.mcphoton.core.Photon.isRegistrationPhase()) {
 			return false;
 		}
-		switch (state) {
-			case PLAY:
-				PLAY_PACKETS.put(id, constructor);
-				break;
-			case LOGIN:
-				LOGIN_PACKETS.put(id, constructor);
-				break;
-			case STATUS:
-				STATUS_PACKETS.put(id, constructor);
-				break;
-			default:
-				INIT_PACKETS.put(id, constructor);
-				break;
+		return register(createFactory(constructor), constructor.getDeclaringClass(), state, id);
+	}
+	
+	/**
+	 * Tries to register a ReceivablePacket with the given id.
+	 *
+	 * @param factory the factory that creates the packets, typically a reference to their constructor
+	 * @param packetClass packet's class
+	 * @param state
+	 * @param id packet's id
+	 * @return true if it was successfully registered
+	 */
+	public static synchronized boolean register(PacketFactory factory, Class<? extends ReceivablePacket> packetClass,
+			ConnectionState state, int id) {
+		if (!org.mcphoton.core.Photon.isRegistrationPhase()) {
+			return false;
 		}
+		final Registry registry = REGISTRIES[state.ordinal()];
+		final int length = Math.max(registry.factories.length, id + 1);
+		final PacketFactory[] factories = Arrays.copyOf(registry.factories, length);
+		final Class<?>[] classes = Arrays.copyOf(registry.classes, length);
+		factories[id] = factory;
+		classes[id] = packetClass;
+		registry.classes = classes;
+		registry.factories = factories;
 		return true;
 	}
 	
+	/**
+	 * Creates a PacketFactory that calls the given constructor. It is generated with the LambdaMetafactory, like a
+	 * constructor reference, if the packet's class is visible from this class. Otherwise (packets of the plugins), it
+	 * invokes a MethodHandle.
+	 */
+	private static PacketFactory createFactory(Constructor<? extends ReceivablePacket> constructor) throws NoSuchMethodException {
+		final Class<?> packetClass = constructor.getDeclaringClass();
+		final MethodHandle handle;
+		try {
+			handle = LOOKUP.unreflectConstructor(constructor);
+		} catch (IllegalAccessException ex) {
+			throw new NoSuchMethodException("Inaccessible constructor " + constructor);
+		}
+		if (isVisible(packetClass)) {
+			try {
+				final MethodType factoryType = MethodType.methodType(ReceivablePacket.class, ClientInfos.class, EasyInputStream.class);
+				CallSite site = LambdaMetafactory.metafactory(LOOKUP, "create", MethodType.methodType(PacketFactory.class),
+						factoryType, handle, handle.type());
+				return (PacketFactory) site.getTarget().invokeExact();
+			} catch (Throwable t) {
+				// Falls back to the MethodHandle
+			}
+		}
+		final MethodHandle generic = handle.asType(handle.type().changeReturnType(ReceivablePacket.class));
+		return (client, in) -> (ReceivablePacket) generic.invokeExact(client, in);
+	}
+	
+	private static boolean isVisible(Class<?> c) {
+		try {
+			return Class.forName(c.getName(), false, ReceivablePacket.class.getClassLoader()) == c;
+		} catch (ClassNotFoundException ex) {
+			return false;
+		}
+	}
+	
 	/**
 	 * Unregisters a custom packet previously registered with the given id, only if it is currently registered with the
 	 * given packet's class.
@@ -151,11 +208,7 @@ public abstract class ReceivablePacket extends MCPacket {
 	 * @throws java.lang.NoSuchMethodException if the packet class constructor cannot be found
 	 */
 	public static boolean unregister(Class<? extends ReceivablePacket> packetClass, int id) throws NoSuchMethodException {
-		if (!org.mcphoton.core.Photon.isRegistrationPhase()) {
-			return false;
-		}
-		Constructor<? extends ReceivablePacket> constructor = packetClass.getConstructor(ByteBuffer.class);
-		return PLAY_PACKETS.remove(id, constructor);
+		return unregister(ConnectionState.PLAY, id, packetClass);
 	}
 	
 	/**
@@ -166,10 +219,7 @@ public abstract class ReceivablePacket extends MCPacket {
 	 * @return true if it was unregistered
 	 */
 	public static boolean unregister(ConnectionState state, int id) {
-		if (!org.mcphoton.core.Photon.isRegistrationPhase()) {
-			return false;
-		}
-		return PLAY_PACKETS.remove(id) != null;
+		return unregister(state, id, null);
 	}
 	
 	/**
@@ -181,10 +231,31 @@ public abstract class ReceivablePacket extends MCPacket {
 	 * @return true if it was unregistered
 	 */
 	public static boolean unregister(Constructor<? extends ReceivablePacket> constructor, int id) {
+		return unregister(ConnectionState.PLAY, id, constructor.getDeclaringClass());
+	}
+	
+	/**
+	 * Unregisters the packet registered with the given id, only if its class is <code>packetClass</code> or if
+	 * <code>packetClass</code> is null.
+	 */
+	private static synchronized boolean unregister(ConnectionState state, int id, Class<?> packetClass) {
 		if (!org.mcphoton.core.Photon.isRegistrationPhase()) {
 			return false;
 		}
-		return PLAY_PACKETS.remove(id, constructor);
+		final Registry registry = REGISTRIES[state.ordinal()];
+		if (id < 0 || id >= registry.factories.length || registry.factories[id] == null) {
+			return false;
+		}
+		if (packetClass != null && registry.classes[id] != packetClass) {
+			return false;
+		}
+		final PacketFactory[] factories = registry.factories.clone();
+		final Class<?>[] classes = registry.classes.clone();
+		factories[id] = null;
+		classes[id] = null;
+		registry.factories = factories;
+		registry.classes = classes;
+		return true;
 	}
 	
 	protected final ClientInfos client;
@@ -201,6 +272,15 @@ public abstract class ReceivablePacket extends MCPacket {
 		this.client = client;
 	}
 	
+	/**
+	 * Creates a new ReceivablePacket that isn't read from the network, for instance to merge several packets into one.
+	 *
+	 * @param client the client that sent the packet
+	 */
+	protected ReceivablePacket(ClientInfos client) {
+		this.client = client;
+	}
+	
 	/**
 	 * Handles this packet: does what it should does when it is received. It typically creates an appropriate Event.
 	 * This method is called in the ThreadReceiver.
@@ -10,22 +10,19 @@ import java.util.Iterator;
 import java.util.Set;
 import org.mcphoton.core.Photon;
 import org.mcphoton.core.ThreadManager;
-import org.mcphoton.entity.impl.OnlinePlayer;
-import org.mcphoton.event.Events;
-import org.mcphoton.event.impl.PacketReceiveEvent;
 import com.electronwill.concurrent.Constant;
 
 /**
- * Receives the packet from the clients.
+ * Accepts the new clients and gives them to the {@link NetworkThread}s, which receive their packets.
  * 
  * @author ElectronWill
  * 		
  */
 public final class ReceiverThread implements ThreadManager {
 	
-	private class Receiver extends Thread {
+	private class Acceptor extends Thread {
 		
-		public Receiver() {
+		public Acceptor() {
 			super("ReceiverThread");
 		}
 		
@@ -47,54 +44,14 @@ public final class ReceiverThread implements ThreadManager {
 							if (key.isAcceptable()) {// a new client tries to connect
 								Photon.log.debug("ReceiverThread: NEW CLIENT -> accept");
 								final SocketChannel channel = ssc.accept();
-								channel.configureBlocking(false);
-								channel.register(selector, SelectionKey.OP_READ);
-								ClientInfos.init(ConnectionState.INIT, channel);
-							}
-							
-							if (key.isReadable()) {// a connected client sends some data
-								// Photon.log.debug("ReceiverThread: DATA RECEIVED -> read");
-								final SocketChannel channel = (SocketChannel) key.channel();
-								final ClientInfos client = ClientInfos.get(channel);
-								
-								if (!channel.isOpen()) {// channel closed
-									Photon.log.debug("ReceiverThread: CHANNEL CLOSED -> remove");
-									key.cancel();
-									ClientInfos.remove(channel);
-									OnlinePlayer p = client.getPlayer();
-									if (p != null)
-										Photon.removePlayer(p);
-								}
-								
-								final PacketReader packetReader = client.getPacketReader();
-								
-								// Reads and processes all the received packets:
-								PacketReceiveEvent event;
-								while ((event = packetReader.readNextEvent()) != null) {
-									try {
-										Events.notifyListeners(event);// notifies the listeners (they may change the
-																		// packet)
-									} catch (Throwable error) {
-										Photon.log.error(error, "Error while notifying event's listeners");
-									}
-									try {
-										// Photon.log.debug("ReceiverThread: Handling packet");
-										event.getPacket().handle();// reacts to the packet
-									} catch (Throwable error) {
-										Photon.log.error(error, "Error while handling the received packet: " + event.getPacket());
-									}
+								if (channel == null || !ConnectionAdmission.admit(channel))// nothing to accept, or rejected
+									continue;
+								if (virtualThreads) {// one BlockingConnection per client
+									BlockingConnection.start(channel);
+								} else {
+									channel.configureBlocking(false);
+									leastLoadedThread().assign(channel);
 								}
-								
-								if (packetReader.isEndOfStream()) {// end of stream reached
-									Photon.log.debug("ReceiverThread: END OF STREAM  (" + client.getAddress() + ") -> remove");
-									channel.close();
-									key.cancel();
-									ClientInfos.remove(channel);
-									OnlinePlayer p = client.getPlayer();
-									if (p != null)
-										Photon.removePlayer(p);
-								}
-								
 							}
 							
 						} // end of while(iterator.hasNext())
@@ -114,12 +71,44 @@ public final class ReceiverThread implements ThreadManager {
 	
 	private static final Constant<ReceiverThread> instance = new Constant<>();
 	
+	/**
+	 * Creates the ReceiverThread with one NetworkThread per available processor.
+	 */
 	public static ReceiverThread createInstance(final InetSocketAddress bindAddress) throws Exception {
-		ReceiverThread t = new ReceiverThread(bindAddress);
+		return createInstance(bindAddress, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Creates the ReceiverThread with the given number of NetworkThreads.
+	 * 
+	 * @param bindAddress the address to listen to
+	 * @param networkThreads the number of NetworkThreads that read the clients' packets
+	 */
+	public static ReceiverThread createInstance(final InetSocketAddress bindAddress, final int networkThreads) throws Exception {
+		ReceiverThread t = new ReceiverThread(bindAddress, networkThreads, false);
 		instance.init(t);
 		return t;
 	}
 	
+	/**
+	 * Creates the ReceiverThread that serves each client with blocking I/O on its own threads, see
+	 * {@link BlockingConnection}. There is no NetworkThread in this mode.
+	 * 
+	 * @param bindAddress the address to listen to
+	 */
+	public static ReceiverThread createVirtualThreadsInstance(final InetSocketAddress bindAddress) throws Exception {
+		ReceiverThread t = new ReceiverThread(bindAddress, 0, true);
+		instance.init(t);
+		return t;
+	}
+	
+	/**
+	 * Checks if the JVM supports the virtual threads, used by {@link #createVirtualThreadsInstance(InetSocketAddress)}.
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		return BlockingConnection.isVirtualThreadsSupported();
+	}
+	
 	static ReceiverThread instance() {
 		return instance.get();
 	}
@@ -128,25 +117,60 @@ public final class ReceiverThread implements ThreadManager {
 	
 	private final Selector selector;
 	private final ServerSocketChannel ssc;
-	private final Thread t = new Receiver();
+	private final Thread t = new Acceptor();
+	private final NetworkThread[] networkThreads;
+	private final boolean virtualThreads;
 	
-	private ReceiverThread(InetSocketAddress bindAddress) throws Exception {
+	private ReceiverThread(InetSocketAddress bindAddress, int nThreads, boolean virtualThreads) throws Exception {
+		if (nThreads < 1 && !virtualThreads)
+			throw new IllegalArgumentException("Invalid number of NetworkThreads: " + nThreads);
+		this.virtualThreads = virtualThreads;
 		ssc = ServerSocketChannel.open();
 		ssc.configureBlocking(false);
 		ssc.bind(bindAddress);
 		selector = Selector.open();
+		networkThreads = new NetworkThread[nThreads];
+		for (int i = 0; i < nThreads; i++) {
+			networkThreads[i] = new NetworkThread(i);
+		}
+	}
+	
+	/**
+	 * Gets the NetworkThread that currently owns the fewest clients.
+	 */
+	private NetworkThread leastLoadedThread() {
+		NetworkThread best = networkThreads[0];
+		int bestCount = best.clientCount();
+		for (int i = 1; i < networkThreads.length; i++) {
+			NetworkThread nt = networkThreads[i];
+			int count = nt.clientCount();
+			if (count < bestCount) {
+				best = nt;
+				bestCount = count;
+			}
+		}
+		return best;
 	}
 	
 	@Deprecated
 	@Override
 	public void forciblyStop() {
 		t.stop();
+		for (NetworkThread nt : networkThreads) {
+			nt.forciblyStop();
+		}
 		run = false;
 	}
 	
 	@Override
 	public boolean isRunning() {
-		return t.isAlive();
+		if (t.isAlive())
+			return true;
+		for (NetworkThread nt : networkThreads) {
+			if (nt.isRunning())
+				return true;
+		}
+		return false;
 	}
 	
 	@Override
@@ -157,6 +181,9 @@ public final class ReceiverThread implements ThreadManager {
 	@Override
 	public void start() throws ClosedChannelException {
 		run = true;
+		for (NetworkThread nt : networkThreads) {
+			nt.start();
+		}
 		ssc.register(selector, SelectionKey.OP_ACCEPT);
 		t.start();
 	}
@@ -164,6 +191,10 @@ public final class ReceiverThread implements ThreadManager {
 	@Override
 	public void stop() {
 		run = false;
+		selector.wakeup();
+		for (NetworkThread nt : networkThreads) {
+			nt.stop();
+		}
 	}
 	
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import com.electronwill.streams.EasyInputStream;
+
+/**
+ * A ReceivablePacket that can be filled again with the data of a new packet. The high-frequency packets, like the
+ * movements, implement this interface so that each client reuses the same packet object instead of creating a new one
+ * for each packet. See {@link ReusedPackets}.
+ * <p>
+ * A reused packet object is only modified when its previous data has been handled, but the objects that listen to it
+ * must not keep a reference to it.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public interface ReusablePacket {
+	
+	/**
+	 * Reads the packet's data, replacing the previous data.
+	 */
+	void read(EasyInputStream in) throws Throwable;
+	
+}
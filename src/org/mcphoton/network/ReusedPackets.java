@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import org.mcphoton.event.impl.PacketReceiveEvent;
+import com.electronwill.streams.EasyInputStream;
+
+/**
+ * The packet objects reused to decode the {@link ReusablePacket}s of a client in the PLAY state. Decoding such a packet
+ * allocates nothing, unless its previous object hasn't been handled yet: in that case a new object is created, so that
+ * the pending data isn't modified. The {@link PacketReceiveEvent} of a reused packet is reused too.
+ * <p>
+ * The slots are filled by the client's NetworkThread, and freed by the Thread that handles the packets.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+final class ReusedPackets {
+	
+	/**
+	 * The maximum id of the reused packets, plus one.
+	 */
+	private static final int MAX_ID = 32;
+	
+	private static final class Slot {
+		
+		final ReceivablePacket packet;
+		volatile boolean inUse = true;// written by the NetworkThread when true, by the handling Thread when false
+		PacketReceiveEvent event;// created when first needed, used by the handling Thread only
+		
+		Slot(ReceivablePacket packet) {
+			this.packet = packet;
+		}
+		
+	}
+	
+	private final ClientInfos client;
+	private final Slot[] slots = new Slot[MAX_ID];
+	
+	ReusedPackets(ClientInfos client) {
+		this.client = client;
+	}
+	
+	/**
+	 * Decodes a packet of the PLAY state, reusing the packet object if possible.
+	 */
+	ReceivablePacket decode(int id, EasyInputStream in) throws Exception {
+		if (id < 0 || id >= MAX_ID)
+			return ReceivablePacket.construct(client, id, in);
+		final Slot slot = slots[id];
+		if (slot != null && !slot.inUse && ReceivablePacket.getRegisteredClass(ConnectionState.PLAY, id) == slot.packet.getClass()) {
+			try {
+				((ReusablePacket) slot.packet).read(in);
+			} catch (Exception | Error ex) {
+				throw ex;
+			} catch (Throwable t) {
+				throw new Exception(t);
+			}
+			slot.inUse = true;
+			return slot.packet;
+		}
+		final ReceivablePacket packet = ReceivablePacket.construct(client, id, in);
+		if (packet instanceof ReusablePacket && (slot == null || slot.packet.getClass() != packet.getClass())) {
+			slots[id] = new Slot(packet);// used from now on
+		}
+		return packet;
+	}
+	
+	/**
+	 * Gets the event to notify before handling a packet. The event of a reused packet is reused too. Called by the
+	 * Thread that handles the packets.
+	 */
+	PacketReceiveEvent receiveEvent(ReceivablePacket packet) {
+		if (packet instanceof ReusablePacket) {
+			for (Slot slot : slots) {
+				if (slot != null && slot.packet == packet) {
+					if (slot.event == null) {
+						slot.event = new PacketReceiveEvent(packet, client);
+					} else {
+						slot.event.setPacket(packet);// a listener may have replaced it
+					}
+					return slot.event;
+				}
+			}
+		}
+		return new PacketReceiveEvent(packet, client);
+	}
+	
+	/**
+	 * Called when a packet has been handled. If the packet is reused, it becomes available for the next packet.
+	 */
+	void handled(ReceivablePacket packet) {
+		if (!(packet instanceof ReusablePacket))
+			return;
+		for (Slot slot : slots) {
+			if (slot != null && slot.packet == packet) {
+				slot.inUse = false;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Called by the NetworkThread to use again a packet that has been marked as handled, but hasn't been reused since.
+	 */
+	void retain(ReceivablePacket packet) {
+		if (!(packet instanceof ReusablePacket))
+			return;
+		for (Slot slot : slots) {
+			if (slot != null && slot.packet == packet) {
+				slot.inUse = true;
+				return;
+			}
+		}
+	}
+	
+}
@@ -15,7 +15,7 @@
 package org.mcphoton.network;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.Collection;
 import org.mcphoton.entity.impl.OnlinePlayer;
 import org.mcphoton.event.Events;
 import org.mcphoton.event.impl.PacketSendEvent;
@@ -29,13 +29,99 @@ import com.electronwill.streams.EasyOutputStream;
  */
 public abstract class SendablePacket extends MCPacket {
 	
+	/**
+	 * Tells if some listeners are registered for the PacketSendEvent. If there is none, the packets are sent without
+	 * creating an event.
+	 */
+	private static final Events.ListenerFlag sendListeners = Events.listenerFlag(PacketSendEvent.class);
+	
+	private PacketLane lane;// null to use the default lane
+	
 	/**
 	 * Returns the highest possible size of the packet's data. If the maximum is unkown, returns
 	 * <code>Integer.MAX_VALUE</code>
 	 */
 	public abstract int maxDataSize();
 	
+	/**
+	 * Checks if this packet must be sent immediately, even if the client's PacketWriter is corked. Returns false by
+	 * default.
+	 */
+	public boolean isUrgent() {
+		return false;
+	}
+	
+	/**
+	 * Checks if this packet may be dropped when the client is too slow, because the game stays playable without it.
+	 * The packets that the next ones depend on, like the relative moves of an entity, must not be dropped. Returns
+	 * false by default.
+	 *
+	 * @see Backpressure
+	 */
+	public boolean isDroppable() {
+		return false;
+	}
+	
+	/**
+	 * Gets the key of this packet, for the coalescing: when the client is too slow, a pending packet may be replaced by
+	 * a newer one with the same key, for instance the teleportations of the same entity. Returns -1 by default, which
+	 * means that the packet never replaces another one.
+	 *
+	 * @see Backpressure
+	 */
+	public long coalescingKey() {
+		return -1;
+	}
+	
+	/**
+	 * Checks if this packet must keep its place among all the packets sent to the client, whatever their lanes: it is
+	 * sent after all the packets written before it, and before all the packets written after it. The packets that
+	 * change the client's state (login, join, respawn, teleportation) are barriers, because they don't commute with the
+	 * others. Returns false by default.
+	 *
+	 * @see PacketLane
+	 */
+	public boolean isBarrier() {
+		return false;
+	}
+	
+	/**
+	 * Gets the lane in which this packet is sent by default. Returns INTERACTIVE by default.
+	 */
+	protected PacketLane defaultLane() {
+		return PacketLane.INTERACTIVE;
+	}
+	
+	/**
+	 * Gets the lane in which this packet is sent.
+	 */
+	public final PacketLane lane() {
+		return lane == null ? defaultLane() : lane;
+	}
+	
+	/**
+	 * Sets the lane in which this packet is sent, instead of its default lane.
+	 *
+	 * @param lane the lane, or null to use the default lane
+	 * @return this packet
+	 */
+	public final SendablePacket setLane(PacketLane lane) {
+		this.lane = lane;
+		return this;
+	}
+	
+	/**
+	 * Builds a coalescing key from the packet's id and an entity id.
+	 */
+	protected final long coalescingKey(int entityId) {
+		return ((long) id() << 32) | (entityId & 0xFFFFFFFFL);
+	}
+	
 	public final void sendTo(ClientInfos client) throws IOException {
+		if (!sendListeners.isSet()) {
+			PhotonPacketSender.sendData(this, client);
+			return;
+		}
 		PacketSendEvent event = new PacketSendEvent(this, client);
 		Events.notifyListeners(event);
 		if (!event.isCancelled()) {
@@ -44,6 +130,10 @@ public abstract class SendablePacket extends MCPacket {
 	}
 	
 	public final void sendTo(ClientInfos client, Runnable onSendingComplete) throws IOException {
+		if (!sendListeners.isSet()) {
+			PhotonPacketSender.sendData(this, client, onSendingComplete);
+			return;
+		}
 		PacketSendEvent event = new PacketSendEvent(this, client);
 		Events.notifyListeners(event);
 		if (!event.isCancelled()) {
@@ -51,9 +141,36 @@ public abstract class SendablePacket extends MCPacket {
 		}
 	}
 	
-	public final void sendTo(List<ClientInfos> clients) throws IOException {
-		for (ClientInfos client : clients) {
-			sendTo(client);
+	/**
+	 * Sends this packet to several clients. The packet is serialized only once, and only if it is sent to at least one
+	 * client. A {@link PacketSendEvent} is fired for each client: if a listener cancels it, or replaces the packet, that
+	 * client only is affected.
+	 */
+	public final void sendTo(Collection<ClientInfos> clients) throws IOException {
+		final boolean fireEvents = sendListeners.isSet();
+		EncodedPacket encoded = null;
+		try {
+			for (ClientInfos client : clients) {
+				if (fireEvents) {
+					PacketSendEvent event = new PacketSendEvent(this, client);
+					Events.notifyListeners(event);
+					if (event.isCancelled()) {
+						continue;
+					}
+					if (event.getPacket() != this) {// the packet has been replaced for this client
+						PhotonPacketSender.sendData(event.getPacket(), client);
+						continue;
+					}
+				}
+				if (encoded == null) {
+					encoded = EncodedPacket.encode(this);
+				}
+				PhotonPacketSender.sendData(encoded, client);
+			}
+		} finally {
+			if (encoded != null) {
+				encoded.release();
+			}
 		}
 	}
 	
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Authenticates the players in online mode. After the encryption handshake, the server asks the session service if
+ * the player has joined it, with the hash computed by {@link PacketEncryption#serverIdHash(byte[])}.
+ *
+ * @author ElectronWill
+ */
+public interface SessionService {
+	
+	/**
+	 * Checks if a player has been authenticated by the session service. This method may block while waiting for the
+	 * response of a remote server, so it shouldn't be called by a NetworkThread.
+	 *
+	 * @param playerName the player's name
+	 * @param serverHash the hash of the server id, shared secret and public key
+	 * @return the player's UUID, or null if the player isn't authenticated
+	 */
+	UUID hasJoined(String playerName, String serverHash) throws IOException;
+	
+}
@@ -3,78 +3,194 @@ package org.mcphoton.network;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import org.mcphoton.core.Photon;
+import javax.crypto.Cipher;
+import org.mcphoton.util.ProtocolData;
 import com.electronwill.streams.ByteBufferInputStream;
 
 /**
- * Reads incoming packets that are uncompressed and not encrypted.
+ * Reads incoming packets, decrypts them if the encryption is enabled, and decompresses them if the client's compression
+ * threshold is set. The data is decrypted in place, as soon as it's received. The compressed packets are inflated into
+ * a buffer owned by the reading thread. The data is stored in a buffer borrowed from the
+ * {@link BufferPool}, which is given back as soon as there is no pending data, so an idle client holds no buffer.
  * 
  * @author ElectronWill
  */
 public final class SimplePacketReader extends PacketReader {
 	
-	private ByteBuffer buffer = ByteBuffer.allocateDirect(256);
-	private ByteBufferInputStream bufferInput = new ByteBufferInputStream(buffer);
+	/**
+	 * The size of the buffer used to read the data.
+	 */
+	private static final int READ_SIZE = 4096;
+	
+	/**
+	 * The maximum length of a packet: 2^21-1 bytes, the maximum value of a 3-bytes VarInt.
+	 */
+	private static final int MAX_PACKET_LENGTH = 2097151;
+	
+	private ByteBuffer buffer;// null when there is no pending data
+	private final ByteBufferInputStream bufferInput = new ByteBufferInputStream(null);
 	private int packetLength = -1;
+	private Cipher decipher;// null if the encryption isn't enabled
 	private boolean failed;
+	private final boolean blocking;// true if the channel is in blocking mode
 	
 	public SimplePacketReader(ClientInfos client, SocketChannel channel) {
 		super(client, channel);
+		this.blocking = channel.isBlocking();
 	}
 	
 	@Override
 	public ReceivablePacket readNext() throws Exception {
-		int read = channel.read(buffer);// read some data
-		// Photon.log.debug("read " + read);
-		if (read == -1) {// end of stream reached
-			eos = true;
+		if (blocking && hasPendingData()) {// doesn't wait for more data if a packet has already been received
+			final ReceivablePacket packet = decodeNext();
+			if (packet != null)
+				return packet;
 		}
-		
+		if (buffer == null) {
+			buffer = BufferPool.acquire(READ_SIZE);
+		}
+		if (buffer.hasRemaining()) {
+			final int start = buffer.position();
+			int read = channel.read(buffer);// read some data
+			if (read == -1) {// end of stream reached
+				eos = true;
+			} else if (decipher != null) {
+				PacketEncryption.decrypt(decipher, buffer, start, buffer.position());
+			}
+		}
+		return decodeNext();
+	}
+	
+	@Override
+	public boolean hasPendingData() {
+		return buffer != null && buffer.position() > 0;
+	}
+	
+	@Override
+	public boolean hasPendingPacket() {
+		if (buffer == null)
+			return false;
+		final int available = buffer.position();// the buffer is ready to be written: the data is before its position
+		if (packetLength != -1)// the packet's length has already been read
+			return available >= packetLength;
+		int length = 0, shift = 0;
+		for (int i = 0; i < available && i < 5; i++) {// peeks the packet's length without reading it
+			final byte b = buffer.get(i);
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+			if (b >= 0)
+				return available - (i + 1) >= length;
+		}
+		return false;
+	}
+	
+	/**
+	 * Decodes the next packet from the data that has been received.
+	 *
+	 * @return the packet, or null if it hasn't been entirely received yet
+	 */
+	private ReceivablePacket decodeNext() throws Exception {
 		buffer.flip();// prepare for reading
-		// Photon.log.debug("buffer " + buffer.toString());
 		
-		// Photon.log.debug("previous packetLength " + packetLength);
 		if (packetLength == -1) {// get the packet's length if needed
 			int varInt = tryReadVarInt();
 			if (failed) {
-				buffer.position(buffer.limit());
-				buffer.limit(buffer.capacity());
+				compactOrRelease();
 				return null;
 			}
-			if (varInt < 0)
-				throw new IOException("Invalid packet's length " + packetLength);
+			if (varInt < 0 || varInt > MAX_PACKET_LENGTH)
+				throw new IOException("Invalid packet's length " + varInt);
 			packetLength = varInt;
-			// Photon.log.debug("new packetLength " + packetLength);
 			
-			if (buffer.remaining() < packetLength) {// the buffer is too small
-				ByteBuffer newBuffer = ByteBuffer.allocateDirect(packetLength);// create a bigger buffer
+			if (buffer.capacity() < packetLength) {// the buffer is too small
+				ByteBuffer newBuffer = BufferPool.acquire(packetLength);// get a bigger buffer
 				newBuffer.put(buffer);
-				read = channel.read(buffer);// read more data
-				Photon.log.debug("read " + read);
-				if (read == -1) {
-					eos = true;
-					return null;
-				}
+				newBuffer.flip();
+				BufferPool.release(buffer);
 				buffer = newBuffer;
-				bufferInput = new ByteBufferInputStream(buffer);
 			}
 		}
 		
-		// Photon.log.debug("buffer.limit() " + buffer.limit());
-		if (buffer.limit() >= packetLength) {// enough data is available
-			int pos0 = buffer.position();
-			int packetId = bufferInput.readVarInt();// read the packet's id
-			// Photon.log.debug("packetId " + packetId);
-			ReceivablePacket packet = ReceivablePacket.construct(client, packetId, bufferInput);
-			buffer.position(pos0 + packetLength);// as if the entire packet has been read, even if it's not the case
-			buffer.compact();// compact the data = shift it at the beginning of the buffer
-			packetLength = -1;// reset state so we'll read the next packet's length
+		if (buffer.remaining() >= packetLength) {// enough data is available
+			final int pos0 = buffer.position();
+			final int limit0 = buffer.limit();
+			buffer.limit(pos0 + packetLength);// the packet can't read the data of the next one
+			if (PacketCapture.isCapturing()) {
+				PacketCapture.capture(client, buffer, pos0, packetLength);
+			}
+			bufferInput.setBuffer(buffer);
+			final ReceivablePacket packet;
+			PacketCompression.Inflation inflation = null;
+			try {
+				final int threshold = client.getCompressionThreshold();
+				int dataSize = packetLength;// the size of the packet's id and data, uncompressed
+				if (threshold >= 0) {// the compression is enabled
+					int dataLength = bufferInput.readVarInt();// 0 if the data isn't compressed
+					if (dataLength != 0) {
+						inflation = PacketCompression.acquireInflation();
+						bufferInput.setBuffer(PacketCompression.decompress(buffer, dataLength, threshold, inflation));
+						dataSize = dataLength;
+					} else {
+						dataSize = packetLength - 1;
+					}
+				}
+				final boolean timed = PacketTelemetry.isEnabled();
+				final long t0 = timed ? System.nanoTime() : 0;
+				final ConnectionState state = client.getState();
+				int packetId = bufferInput.readVarInt();// read the packet's id
+				if (state == ConnectionState.PLAY) {// the frequent packets may be reused
+					packet = client.reusedPackets.decode(packetId, bufferInput);
+				} else {
+					packet = ReceivablePacket.construct(client, packetId, bufferInput);
+				}
+				if (timed) {
+					PacketTelemetry.received(client, state, packet, ProtocolData.varIntSize(packetLength) + packetLength, dataSize,
+							System.nanoTime() - t0);
+				}
+			} finally {
+				bufferInput.setBuffer(null);
+				if (inflation != null) {// the packet has been decoded: its data isn't needed anymore
+					PacketCompression.release(inflation);
+				}
+				buffer.limit(limit0);
+				buffer.position(pos0 + packetLength);// as if the entire packet has been read, even if it's not the case
+				packetLength = -1;// reset state so we'll read the next packet's length
+				compactOrRelease();
+			}
 			return packet;
 		}
-		// Photon.log.debug("return null packet (not enough data to read)");
+		buffer.compact();
 		return null;
 	}
 	
+	@Override
+	public void enableDecryption(Cipher decipher) throws IOException {
+		this.decipher = decipher;
+		if (buffer != null) {// decrypts the data that has been received but not read yet
+			PacketEncryption.decrypt(decipher, buffer, 0, buffer.position());
+		}
+	}
+	
+	@Override
+	public void close() {
+		if (buffer != null) {
+			BufferPool.release(buffer);
+			buffer = null;
+		}
+	}
+	
+	/**
+	 * Compacts the buffer, or releases it if it contains no more data.
+	 */
+	private void compactOrRelease() {
+		if (buffer.hasRemaining()) {
+			buffer.compact();// compact the data = shift it at the beginning of the buffer
+		} else {
+			BufferPool.release(buffer);
+			buffer = null;
+		}
+	}
+	
 	private int tryReadVarInt() {
 		buffer.mark();
 		int i = 0, shift = 0;
@@ -4,22 +4,102 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Queue;
+import javax.crypto.Cipher;
 import org.mcphoton.core.Photon;
-import org.mcphoton.util.ProtocolData;
 import com.electronwill.streams.ByteArrayOutputStream;
 
 /**
- * Writes outgoing packets uncompressed and not encrypted. This class is NOT Thread-safe.
+ * Writes outgoing packets, compressed if the client's compression threshold is set. Each packet is framed in a single
+ * buffer, and the pending buffers are written together with one gathering write. This class is Thread-safe: the
+ * packets may be written by any Thread while the client's NetworkThread flushes the pending data. When the channel is
+ * in blocking mode, the data is only written by the writing Thread of the client's {@link BlockingConnection}.
+ * <p>
+ * When the encryption is enabled, the pending buffers are encrypted directly into a direct buffer borrowed from the
+ * {@link BufferPool}, which is then written to the channel. The frames aren't modified, so they may be shared by
+ * several clients.
+ * </p>
+ * <p>
+ * The pending data is kept in one queue per {@link PacketLane}. The CONTROL queue is always flushed first, then the
+ * other queues are flushed in turn, each one up to the weight of its lane. A buffer that has been partially written is
+ * always completed before another buffer is written, so that the frames aren't mixed. Each data is numbered when it's
+ * queued, so that the barriers (see {@link SendablePacket#isBarrier()}) wait for all the data queued before them, and
+ * the data queued after a barrier waits for it.
+ * </p>
+ * <p>
+ * The big packets may be compressed by the compression threads (see {@link PacketCompression}). Their place in the
+ * queue is kept, so the packets are always sent in order, and the client is flushed when the compression is done.
+ * </p>
  * 
  * @author ElectronWill
  */
 public final class SimplePacketWriter extends PacketWriter {
 	
-	private final Queue<DataSending> sendingQueue = new ArrayDeque<>();
+	/**
+	 * The maximum number of buffers written at once by {@link #flush()}.
+	 */
+	private static final int MAX_GATHERING = 64;
 	
+	/**
+	 * The size of the buffer that contains the encrypted data.
+	 */
+	private static final int ENCRYPTION_BUFFER_SIZE = 65536;
+	
+	private static final PacketLane[] LANES = PacketLane.values();
+	
+	private final ArrayDeque<DataSending>[] laneQueues;
+	private DataSending current;// the data that is being written, null if there is none
+	private int currentLane = 1;// the lane that is drained after the CONTROL lane
+	private int laneCredit = LANES[1].weight;// the number of buffers that the current lane may still send
+	private long nextSequence = 0;// the sequence number of the next queued data
+	private long lastBarrier = -1;// the sequence number of the last queued barrier
+	private final Map<Long, DataSending> coalescing = new HashMap<>();// the queued data that may be replaced, by key
+	private final ByteBuffer[] gatheringArray = new ByteBuffer[MAX_GATHERING];
+	private final DataSending[] gatheringSendings = new DataSending[MAX_GATHERING];
+	
+	private Cipher cipher;// null if the encryption isn't enabled
+	private ByteBuffer encrypted;// the encrypted data not written yet, null if there is none
+	private final Queue<DataSending> encryptedSendings = new ArrayDeque<>();// completed when encrypted is written
+	private final boolean blocking;// true if the channel is in blocking mode
+	private boolean closed;// true once close() has been called: the new data is discarded immediately
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
 	public SimplePacketWriter(ClientInfos client, SocketChannel channel) {
 		super(client, channel);
+		blocking = channel.isBlocking();
+		laneQueues = new ArrayDeque[LANES.length];
+		for (int i = 0; i < LANES.length; i++) {
+			laneQueues[i] = new ArrayDeque<>();
+		}
+	}
+	
+	/**
+	 * Writes the packet's id and data to a single buffer, after some space reserved for the frame's header.
+	 *
+	 * @see PacketCompression#frame(ByteArrayOutputStream, int)
+	 */
+	static ByteArrayOutputStream serialize(SendablePacket packet) throws Exception {
+		final int reserved = PacketCompression.RESERVED_HEADER;
+		final ByteArrayOutputStream data = new ByteArrayOutputStream(Math.min(packet.maxDataSize(), 8192) + reserved);// can grow
+		data.skip(reserved);// reserves some space for the length(s)
+		final boolean timed = PacketTelemetry.isEnabled();
+		final long t0 = timed ? System.nanoTime() : 0;
+		data.writeVarInt(packet.id());// gets packet's id
+		packet.writeTo(data);// gets packet's data
+		if (timed) {
+			PacketTelemetry.serialized(packet, System.nanoTime() - t0);
+		}
+		return data;
+	}
+	
+	/**
+	 * Gets the size of the packet's id and data, written by {@link #serialize(SendablePacket)}.
+	 */
+	static int dataSize(ByteArrayOutputStream serialized) {
+		return serialized.size() - PacketCompression.RESERVED_HEADER;
 	}
 	
 	@Override
@@ -29,19 +109,184 @@ public final class SimplePacketWriter extends PacketWriter {
 	
 	@Override
 	public void write(SendablePacket packet, Runnable onSendingCompleted) throws Exception {
-		final ByteArrayOutputStream data = new ByteArrayOutputStream(Math.min(packet.maxDataSize(), 8192));// can grow
-		final ByteBuffer lengthBuff = ByteBuffer.allocate(5);
-		
-		data.writeVarInt(packet.id());// gets packet's id
-		packet.writeTo(data);// gets packet's data
-		// Photon.log.debug("SimplePacketWriter: data.size() = " + data.size());
-		ProtocolData.writeVarInt(data.size(), lengthBuff);// gets data's length
-		lengthBuff.flip();
-		
-		DataSending lengthSending = new DataSending(lengthBuff);
-		DataSending dataSending = new DataSending(data.asByteBuffer(), onSendingCompleted);
-		sendingQueue.offer(lengthSending);
-		sendingQueue.offer(dataSending);
+		final ByteArrayOutputStream data = serialize(packet);
+		final int threshold = client.getCompressionThreshold();
+		if (threshold >= 0 && PacketCompression.isAsync(data.size())) {
+			writeAsync(packet, data, threshold, onSendingCompleted);
+		} else {
+			final ByteBuffer framed = PacketCompression.frame(data, threshold);
+			PacketTelemetry.sent(client, packet, framed.remaining(), dataSize(data));
+			write(framed, packet.lane(), packet.isBarrier(), onSendingCompleted);
+		}
+	}
+	
+	/**
+	 * Queues a packet that will be compressed by the compression threads.
+	 */
+	private void writeAsync(SendablePacket packet, ByteArrayOutputStream data, int threshold, Runnable onSendingCompleted) {
+		final DataSending ds = new DataSending(null, onSendingCompleted);
+		synchronized (this) {
+			if (closed) {// the data would never be sent: no need to compress it
+				run(onSendingCompleted);
+				return;
+			}
+			enqueue(ds, packet.lane(), packet.isBarrier(), data.size());// estimated size, corrected when compressed
+		}
+		PacketCompression.submit(() -> {
+			try {
+				final ByteBuffer framed = PacketCompression.frame(data, threshold);
+				synchronized (this) {
+					if (closed)// ds has been discarded by close(), and its size isn't counted anymore
+						return;
+					PacketTelemetry.sent(client, packet, framed.remaining(), dataSize(data));
+					ds.setBuffer(framed);
+					addQueuedBytes(framed.remaining() - ds.getSize());
+					ds.setSize(framed.remaining());
+				}
+				client.getConnectionHandler().requestFlush(client);
+			} catch (Throwable error) {
+				Photon.log.errorFrom(error, Thread.currentThread().getName(), "Unable to compress a packet for " + client.getAddress());
+				client.close();// the packet can't be skipped
+			}
+		});
+	}
+	
+	@Override
+	public synchronized void write(ByteBuffer framedData, PacketLane lane, boolean barrier, Runnable onSendingCompleted) {
+		enqueue(new DataSending(framedData, onSendingCompleted), lane, barrier, framedData.remaining());
+	}
+	
+	@Override
+	public synchronized void writeCoalescing(ByteBuffer framedData, PacketLane lane, Runnable onSendingCompleted,
+			long coalescingKey) {
+		if (closed) {// the data would never be sent
+			run(onSendingCompleted);
+			return;
+		}
+		final DataSending old = coalescing.get(coalescingKey);
+		if (old != null && old.getSequence() > lastBarrier) {// not queued before the last barrier: may be discarded
+			/*
+			 * The new data is queued at the end, not in the place of the old one, because the packets queued meanwhile
+			 * may depend on the old one. For instance a relative move must not be applied after a newer teleport.
+			 */
+			final Runnable replaced = old.getOnCompletedRunnable();
+			addQueuedBytes(-old.getSize());
+			old.cancel();// stays in its queue, but is empty
+			run(replaced);
+			Backpressure.coalesced();
+		}
+		final DataSending ds = new DataSending(framedData, onSendingCompleted);
+		ds.setCoalescingKey(coalescingKey);
+		enqueue(ds, lane, false, framedData.remaining());
+		coalescing.put(coalescingKey, ds);
+	}
+	
+	/**
+	 * Adds some data to the queue of its lane, and numbers it. If the Writer is closed, the data is discarded.
+	 */
+	private void enqueue(DataSending ds, PacketLane lane, boolean barrier, int size) {
+		if (closed) {// the data would never be sent nor discarded: runs its Runnable now, and doesn't count it
+			run(ds.getOnCompletedRunnable());
+			return;
+		}
+		final long sequence = nextSequence++;
+		if (barrier) {// waits for all the data queued before
+			ds.setOrder(sequence, sequence);
+			lastBarrier = sequence;
+		} else {// waits for the last barrier only
+			ds.setOrder(sequence, lastBarrier + 1);
+		}
+		ds.setSize(size);
+		ds.setLane(lane);
+		laneQueues[lane.ordinal()].offer(ds);
+		addQueuedBytes(size);
+	}
+	
+	/**
+	 * Checks if there is no pending data.
+	 */
+	private boolean isEmpty() {
+		if (current != null)
+			return false;
+		for (ArrayDeque<DataSending> queue : laneQueues) {
+			if (!queue.isEmpty())
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Gets the sequence number of the oldest queued data. All the data queued before it has already been removed from
+	 * the queues.
+	 */
+	private long oldestQueued() {
+		long oldest = Long.MAX_VALUE;
+		for (ArrayDeque<DataSending> queue : laneQueues) {
+			final DataSending ds = queue.peek();// each queue is ordered
+			if (ds != null && ds.getSequence() < oldest) {
+				oldest = ds.getSequence();
+			}
+		}
+		return oldest;
+	}
+	
+	/**
+	 * Checks if some data may be written now: it must be ready, and all the data that must be sent before it must have
+	 * been removed from the queues.
+	 */
+	private static boolean canSend(DataSending ds, long oldestQueued) {
+		return ds != null && ds.isReady() && oldestQueued >= ds.getOrderedAfter();
+	}
+	
+	/**
+	 * Removes the next data to write from the queues: the data of the CONTROL lane, or else the data of the current
+	 * lane if it hasn't used all its credit, or else the data of the next lanes. The data that isn't ready, or that
+	 * waits for a barrier, blocks its lane only.
+	 *
+	 * @return the next data to write, or null if there is no data ready to be written
+	 */
+	private DataSending pollNext() {
+		final long oldest = oldestQueued();
+		if (canSend(laneQueues[0].peek(), oldest))
+			return taken(laneQueues[0].poll());
+		for (int i = 0; i < LANES.length; i++) {// the current lane may be checked twice, once with a new credit
+			final ArrayDeque<DataSending> queue = laneQueues[currentLane];
+			if (laneCredit > 0 && canSend(queue.peek(), oldest)) {
+				laneCredit--;
+				return taken(queue.poll());
+			}
+			currentLane = (currentLane == LANES.length - 1) ? 1 : currentLane + 1;
+			laneCredit = LANES[currentLane].weight;
+		}
+		return null;
+	}
+	
+	/**
+	 * Called when some data is removed from the queues to be written. It can't be replaced anymore.
+	 */
+	private DataSending taken(DataSending ds) {
+		if (ds.getCoalescingKey() != -1) {
+			coalescing.remove(ds.getCoalescingKey(), ds);
+		}
+		return ds;
+	}
+	
+	/**
+	 * Called when some data has been completely written.
+	 */
+	private void complete(DataSending ds) {
+		addQueuedBytes(-ds.getSize());
+		run(ds.getOnCompletedRunnable());
+	}
+	
+	private void run(Runnable onSendingCompleted) {
+		if (onSendingCompleted != null) {
+			try {
+				onSendingCompleted.run();
+			} catch (Throwable error) {
+				Photon.log.errorFrom(error, "onCompletedSending Runnable");
+			}
+		}
 	}
 	
 	@Override
@@ -51,61 +296,258 @@ public final class SimplePacketWriter extends PacketWriter {
 	
 	@Override
 	public boolean writeNow(SendablePacket packet, Runnable onSendingCompleted) throws Exception {
-		final ByteArrayOutputStream data = new ByteArrayOutputStream(Math.min(packet.maxDataSize(), 8192));// can grow
-		final ByteBuffer lengthBuff = ByteBuffer.allocate(5);
-		
-		data.writeVarInt(packet.id());// gets packet's id
-		packet.writeTo(data);// gets packet's data
-		// Photon.log.debug("SimplePacketWriter: data.size() = " + data.size());
-		ProtocolData.writeVarInt(data.size(), lengthBuff);// gets data's length
-		lengthBuff.flip();
-		final ByteBuffer dataBuff = data.asByteBuffer();
-		
-		if (!sendingQueue.isEmpty()) {// we cannot write our packet now: must write those in the queue first
-			sendingQueue.offer(new DataSending(lengthBuff));
-			sendingQueue.offer(new DataSending(dataBuff, onSendingCompleted));
+		final ByteArrayOutputStream data = serialize(packet);
+		final int threshold = client.getCompressionThreshold();
+		if (threshold >= 0 && PacketCompression.isAsync(data.size())) {
+			writeAsync(packet, data, threshold, onSendingCompleted);
 			return false;
 		}
-		
-		// Tries to write lengthBuff immediately:
-		channel.write(lengthBuff);
-		if (lengthBuff.hasRemaining()) {// incomplete write
-			sendingQueue.offer(new DataSending(lengthBuff));
-			sendingQueue.offer(new DataSending(dataBuff, onSendingCompleted));
+		final ByteBuffer framed = PacketCompression.frame(data, threshold);
+		PacketTelemetry.sent(client, packet, framed.remaining(), dataSize(data));
+		return writeNow(framed, packet.lane(), packet.isBarrier(), onSendingCompleted);
+	}
+	
+	@Override
+	public synchronized boolean writeNow(ByteBuffer buff, PacketLane lane, boolean barrier, Runnable onSendingCompleted)
+			throws IOException {
+		if (blocking) {// written by the connection's own Thread, never by the caller
+			enqueue(new DataSending(buff, onSendingCompleted), lane, barrier, buff.remaining());
+			return false;
+		}
+		if (cipher != null) {// the data must be encrypted in order
+			enqueue(new DataSending(buff, onSendingCompleted), lane, barrier, buff.remaining());
+			return flush();
+		}
+		if (!isEmpty()) {// we cannot write our packet now: must write those in the queue first
+			enqueue(new DataSending(buff, onSendingCompleted), lane, barrier, buff.remaining());
 			return false;
 		}
-		// Tries to write dataBuff immediately:
-		channel.write(dataBuff);
-		if (dataBuff.hasRemaining()) {// incomplete write
-			// at this point, lengthBuff has already been written, so no need to add it to the queue
-			sendingQueue.offer(new DataSending(dataBuff, onSendingCompleted));
+		
+		// Tries to write the packet immediately:
+		try {
+			channel.write(buff);
+		} catch (IOException ex) {// the data is discarded, like by close()
+			run(onSendingCompleted);
+			throw ex;
+		}
+		if (buff.hasRemaining()) {// incomplete write
+			final DataSending ds = new DataSending(buff, onSendingCompleted);
+			ds.setSize(buff.remaining());
+			ds.setLane(lane);
+			addQueuedBytes(buff.remaining());
+			current = ds;// must be completed before any other data
 			return false;
 		}
+		if (onSendingCompleted != null) {
+			onSendingCompleted.run();
+		}
 		return true;
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * When the channel is in blocking mode, this method must only be called by the connection's writing Thread. The
+	 * lock isn't held while the data is written, so the other Threads can queue some data meanwhile.
+	 * </p>
+	 */
 	@Override
 	public boolean flush() throws IOException {
+		if (blocking) {
+			return flushBlocking();
+		}
+		synchronized (this) {
+			if (cipher != null) {
+				return flushEncrypted();
+			}
+			while (true) {
+				if (!channel.isOpen())// channel closed
+					return false;
+				final int count = gather();
+				if (count == 0)// nothing to write, or the next packets are being compressed and will be flushed later
+					return true;
+				try {
+					channel.write(gatheringArray, 0, count);
+				} finally {
+					Arrays.fill(gatheringArray, 0, count, null);
+				}
+				if (!completeGathered(count))// incomplete write
+					return false;
+			}
+		}
+	}
+	
+	/**
+	 * Puts as many pending buffers as possible in the gathering array, starting with the one that is partially
+	 * written.
+	 *
+	 * @return the number of buffers
+	 */
+	private int gather() {
+		int count = 0;
+		DataSending ds = current;
+		current = null;
+		if (ds == null) {
+			ds = pollNext();
+		}
+		while (ds != null) {
+			gatheringSendings[count] = ds;
+			gatheringArray[count++] = ds.getBuffer();
+			if (count == MAX_GATHERING)
+				break;
+			ds = pollNext();
+		}
+		return count;
+	}
+	
+	/**
+	 * Removes the gathered sendings that have been written.
+	 *
+	 * @return true if they have all been written, false if a write was incomplete
+	 */
+	private boolean completeGathered(int count) {
+		try {
+			for (int i = 0; i < count; i++) {
+				final DataSending ds = gatheringSendings[i];
+				if (ds.getBuffer().hasRemaining()) {// incomplete write
+					current = ds;
+					for (int j = count - 1; j > i; j--) {// puts back the data that hasn't been written at all
+						final DataSending unwritten = gatheringSendings[j];
+						laneQueues[unwritten.getLane().ordinal()].offerFirst(unwritten);
+					}
+					return false;
+				}
+				complete(ds);
+			}
+			return true;
+		} finally {
+			Arrays.fill(gatheringSendings, 0, count, null);
+		}
+	}
+	
+	/**
+	 * Encrypts and writes the pending data.
+	 */
+	private boolean flushEncrypted() throws IOException {
 		while (true) {
-			final DataSending ds = sendingQueue.peek();
-			if (ds == null)// empty queue
-				return true;
 			if (!channel.isOpen())// channel closed
 				return false;
-			final ByteBuffer buff = ds.getBuffer();
-			channel.write(buff);
-			if (buff.hasRemaining()) { // incomplete write
-				return false;
+			if (encrypted != null && encrypted.hasRemaining()) {// writes the data that is already encrypted
+				channel.write(encrypted);
+				if (encrypted.hasRemaining()) {// incomplete write
+					return false;
+				}
+			}
+			if (!encryptPending())// nothing to write for now
+				return true;
+		}
+	}
+	
+	/**
+	 * Completes the sendings whose encrypted data has been written, and encrypts as many pending buffers as possible,
+	 * starting with the one that is partially encrypted. The encrypted data must have been entirely written.
+	 *
+	 * @return true if some data has been encrypted, false if there is nothing to write
+	 */
+	private boolean encryptPending() throws IOException {
+		DataSending completed;
+		while ((completed = encryptedSendings.poll()) != null) {
+			complete(completed);
+		}
+		if (encrypted == null) {
+			encrypted = BufferPool.acquire(ENCRYPTION_BUFFER_SIZE);
+		}
+		encrypted.clear();
+		while (encrypted.hasRemaining()) {
+			final DataSending ds = (current != null) ? current : pollNext();
+			if (ds == null)
+				break;
+			final ByteBuffer data = ds.getBuffer();
+			if (data.remaining() > encrypted.remaining()) {// encrypts only the beginning of the data
+				final ByteBuffer part = data.duplicate();
+				part.limit(part.position() + encrypted.remaining());
+				PacketEncryption.encrypt(cipher, part, encrypted);
+				data.position(part.position());
+				current = ds;
+			} else {
+				PacketEncryption.encrypt(cipher, data, encrypted);
+				current = null;
+				encryptedSendings.offer(ds);
+			}
+		}
+		encrypted.flip();
+		if (!encrypted.hasRemaining()) {
+			BufferPool.release(encrypted);
+			encrypted = null;
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes the pending data to a channel in blocking mode. The data is taken from the queues with the lock held, but
+	 * written without it. A blocking channel writes all the data at once, so there is no incomplete write.
+	 */
+	private boolean flushBlocking() throws IOException {
+		while (true) {
+			final boolean encrypting;
+			final int count;
+			synchronized (this) {
+				if (!channel.isOpen())// channel closed
+					return false;
+				encrypting = (cipher != null);
+				if (encrypting) {
+					count = encryptPending() ? 1 : 0;
+				} else {
+					count = gather();
+				}
+			}
+			if (count == 0)// nothing to write
+				return true;
+			if (encrypting) {
+				channel.write(encrypted);// the buffer is only modified by this Thread
 			} else {
-				sendingQueue.remove();
 				try {
-					ds.onCompleted();
-				} catch (Throwable error) {
-					Photon.log.errorFrom(error, "onCompletedSending Runnable");
-					// Let the loop continue
+					channel.write(gatheringArray, 0, count);
+				} finally {
+					Arrays.fill(gatheringArray, 0, count, null);
+					synchronized (this) {
+						completeGathered(count);// if the write failed, the unwritten data is discarded by close()
+					}
 				}
 			}
 		}
 	}
 	
+	@Override
+	public synchronized void enableEncryption(Cipher cipher) {
+		if (!isEmpty())
+			throw new IllegalStateException("Some unencrypted data is still pending");
+		this.cipher = cipher;
+	}
+	
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (encrypted != null) {
+			BufferPool.release(encrypted);
+			encrypted = null;
+		}
+		// Discards the pending data, and runs the Runnables so that they release their resources:
+		DataSending ds;
+		while ((ds = encryptedSendings.poll()) != null) {
+			complete(ds);
+		}
+		if (current != null) {
+			complete(current);
+			current = null;
+		}
+		for (ArrayDeque<DataSending> queue : laneQueues) {
+			while ((ds = queue.poll()) != null) {
+				complete(ds);
+			}
+		}
+		coalescing.clear();
+	}
+	
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.mcphoton.core.Photon;
+import org.mcphoton.event.Events;
+import org.mcphoton.event.impl.PacketSendEvent;
+import org.mcphoton.messaging.TextChatMessage;
+import org.mcphoton.network.clientbound.status.ResponsePacket;
+
+/**
+ * Keeps the server-list status response encoded, so that a status request costs a buffer write instead of a JSON
+ * serialization. The response is rebuilt when the description, the logo, the maximum number of players or the number
+ * of online players changes, but at most once per rebuild interval: during that interval the clients may receive a
+ * slightly outdated response.
+ * <p>
+ * The cached packet is shared by all the clients, so the listeners of the {@link PacketSendEvent} must replace it
+ * instead of modifying it.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+public final class StatusResponseCache {
+	
+	/**
+	 * An encoded response, and the values used to build it.
+	 */
+	private static final class Snapshot {
+		
+		final EncodedPacket packet;
+		final TextChatMessage description;
+		final String logo;
+		final int maxPlayers, onlinePlayers;
+		final long builtAt;// System.nanoTime()
+		
+		Snapshot(EncodedPacket packet, TextChatMessage description, String logo, int maxPlayers, int onlinePlayers) {
+			this.packet = packet;
+			this.description = description;
+			this.logo = logo;
+			this.maxPlayers = maxPlayers;
+			this.onlinePlayers = onlinePlayers;
+			this.builtAt = System.nanoTime();
+		}
+		
+		boolean isOutdated() {
+			return description != Photon.getDescription() || logo != Photon.getLogoBase64()
+					|| maxPlayers != Photon.getMaxPlayers() || onlinePlayers != Photon.getPlayerCount();
+		}
+		
+	}
+	
+	private static volatile Snapshot current;
+	private static volatile boolean invalidated = false;
+	private static volatile long rebuildIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+	
+	/**
+	 * Sets the minimum time between two rebuilds of the response.
+	 */
+	public static void configure(long rebuildIntervalMillis) {
+		rebuildIntervalNanos = TimeUnit.MILLISECONDS.toNanos(rebuildIntervalMillis);
+	}
+	
+	/**
+	 * Marks the response as outdated. It's only needed when a value is modified in place, for instance when the
+	 * description object is modified: replacing a value is detected automatically.
+	 */
+	public static void invalidate() {
+		invalidated = true;
+	}
+	
+	/**
+	 * Sends the status response to a client. A {@link PacketSendEvent} is fired, like for the other packets.
+	 */
+	public static void sendTo(ClientInfos client) throws IOException {
+		final EncodedPacket encoded = acquire();
+		try {
+			if (!Events.hasListeners(PacketSendEvent.class)) {
+				PhotonPacketSender.sendData(encoded, client);
+				return;
+			}
+			final PacketSendEvent event = new PacketSendEvent(encoded.getPacket(), client);
+			Events.notifyListeners(event);
+			if (event.isCancelled())
+				return;
+			if (event.getPacket() != encoded.getPacket()) {// the packet has been replaced for this client
+				PhotonPacketSender.sendData(event.getPacket(), client);
+			} else {
+				PhotonPacketSender.sendData(encoded, client);
+			}
+		} finally {
+			encoded.release();
+		}
+	}
+	
+	/**
+	 * Gets the current response, and rebuilds it if needed.
+	 *
+	 * @return the response, with a reference owned by the caller
+	 */
+	private static EncodedPacket acquire() throws IOException {
+		while (true) {
+			Snapshot s = current;
+			if (s == null || ((invalidated || s.isOutdated()) && System.nanoTime() - s.builtAt >= rebuildIntervalNanos)) {
+				s = rebuild(s);
+			}
+			if (s.packet.tryRetain())
+				return s.packet;
+			// the snapshot has been replaced and released in the meantime: gets the new one
+		}
+	}
+	
+	private static synchronized Snapshot rebuild(Snapshot old) throws IOException {
+		if (current != old)// already rebuilt by another thread
+			return current;
+		invalidated = false;// before reading the values, so that no change is lost
+		final TextChatMessage description = Photon.getDescription();
+		final String logo = Photon.getLogoBase64();
+		final int maxPlayers = Photon.getMaxPlayers();
+		final int onlinePlayers = Photon.getPlayerCount();
+		final EncodedPacket packet = EncodedPacket.encode(new ResponsePacket());
+		final Snapshot s = new Snapshot(packet, description, logo, maxPlayers, onlinePlayers);
+		current = s;
+		if (old != null) {
+			old.packet.release();// freed when the pending sendings are completed
+		}
+		return s;
+	}
+	
+	private StatusResponseCache() {}
+	
+}
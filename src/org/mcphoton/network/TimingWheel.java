@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 ElectronWill
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.mcphoton.network;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.mcphoton.core.Photon;
+
+/**
+ * A hashed timing wheel, for the many timers of the connections: keep-alives, handshake and login deadlines, idle
+ * connections. Adding and cancelling a timer is O(1), and there is no per-timer thread or heap entry: the timers are
+ * stored in a ring of buckets, one bucket per tick, and a single Thread expires the current bucket at each tick. A
+ * timer is run with a precision of one tick.
+ * <p>
+ * The timers are added and cancelled through lock-free queues, and the buckets are only touched by the wheel's Thread.
+ * The tasks run on the wheel's Thread, so they must be short and must not block: typically, they send a packet or
+ * close a connection.
+ * </p>
+ *
+ * @author ElectronWill
+ */
+final class TimingWheel {
+	
+	private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+	
+	/**
+	 * A timer scheduled in the wheel.
+	 */
+	static final class Timeout {
+		
+		private final Runnable task;
+		private final long deadlineTick;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		private final TimingWheel wheel;
+		private long remainingRounds;// the number of full turns of the wheel before the expiration
+		private int bucket = -1;// the index of the bucket, or -1 if not in a bucket
+		private Timeout prev, next;// the neighbours in the bucket
+		
+		private Timeout(TimingWheel wheel, Runnable task, long deadlineTick) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadlineTick = deadlineTick;
+		}
+		
+		/**
+		 * Cancels this timer, if it hasn't expired yet.
+		 *
+		 * @return true if it has been cancelled by this call
+		 */
+		boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED))
+				return false;
+			wheel.cancelled.offer(this);// removed from its bucket by the wheel's Thread
+			return true;
+		}
+		
+		boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+		
+		boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+		
+	}
+	
+	private final String name;
+	private final long tickNanos;
+	private final Timeout[] buckets;// the first timer of each bucket
+	private final int mask;
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+	private final long startTime = System.nanoTime();
+	private volatile Thread thread;
+	private long tick;// the current tick, used by the wheel's Thread only
+	
+	/**
+	 * Creates a new TimingWheel. Its Thread is started with the first timer.
+	 *
+	 * @param name the name of the Thread
+	 * @param tickDuration the duration of one tick
+	 * @param unit the unit of the tickDuration
+	 * @param wheelSize the number of buckets, rounded up to a power of 2
+	 */
+	TimingWheel(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+		this.name = name;
+		this.tickNanos = unit.toNanos(tickDuration);
+		final int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+		this.buckets = new Timeout[size];
+		this.mask = size - 1;
+	}
+	
+	/**
+	 * Schedules a task to run once after the given delay.
+	 *
+	 * @return the timer, to cancel it
+	 */
+	Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (thread == null) {
+			startThread();
+		}
+		final long elapsed = System.nanoTime() - startTime;
+		final long deadlineTick = (elapsed + unit.toNanos(Math.max(delay, 0)) + tickNanos - 1) / tickNanos;// rounded up
+		final Timeout timeout = new Timeout(this, task, deadlineTick);
+		added.offer(timeout);
+		return timeout;
+	}
+	
+	private synchronized void startThread() {
+		if (thread == null) {
+			Thread t = new Thread(this::run, name);
+			t.setDaemon(true);
+			t.start();
+			thread = t;
+		}
+	}
+	
+	private void run() {
+		while (true) {
+			// Waits for the next tick:
+			final long next = startTime + (tick + 1) * tickNanos;
+			long remaining;
+			while ((remaining = next - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, remaining);
+			}
+			tick++;
+			removeCancelled();
+			transferAdded();
+			expireBucket();
+		}
+	}
+	
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state.get() != PENDING)
+				continue;
+			final long ticks = Math.max(timeout.deadlineTick, tick);// a late timer expires in the current tick
+			timeout.remainingRounds = (ticks - tick) / buckets.length;
+			link(timeout, (int) (ticks & mask));
+		}
+	}
+	
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket >= 0) {
+				unlink(timeout);
+			}
+		}
+	}
+	
+	private void expireBucket() {
+		Timeout timeout = buckets[(int) (tick & mask)];
+		while (timeout != null) {
+			final Timeout next = timeout.next;
+			if (timeout.remainingRounds <= 0) {
+				unlink(timeout);
+				if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+					try {
+						timeout.task.run();
+					} catch (Throwable t) {
+						Photon.log.errorFrom(t, name, "Error in a timer");
+					}
+				}
+			} else {
+				timeout.remainingRounds--;
+			}
+			timeout = next;
+		}
+	}
+	
+	private void link(Timeout timeout, int bucket) {
+		final Timeout head = buckets[bucket];
+		timeout.bucket = bucket;
+		timeout.prev = null;
+		timeout.next = head;
+		if (head != null) {
+			head.prev = timeout;
+		}
+		buckets[bucket] = timeout;
+	}
+	
+	private void unlink(Timeout timeout) {
+		if (timeout.prev == null) {
+			buckets[timeout.bucket] = timeout.next;
+		} else {
+			timeout.prev.next = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+	}
+	
+}
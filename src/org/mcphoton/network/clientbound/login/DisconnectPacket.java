@@ -45,4 +45,14 @@ public final class DisconnectPacket extends SendablePacket {
 		return Integer.MAX_VALUE;
 	}
 	
+	@Override
+	public boolean isUrgent() {
+		return true;
+	}
+	
+	@Override
+	public boolean isBarrier() {
+		return true;
+	}
+	
 }
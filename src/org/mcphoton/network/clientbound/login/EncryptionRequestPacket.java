@@ -49,4 +49,9 @@ public final class EncryptionRequestPacket extends SendablePacket {
 		return publicKey.length + verifyToken.length + 11;
 	}
 	
+	@Override
+	public boolean isBarrier() {
+		return true;
+	}
+	
 }
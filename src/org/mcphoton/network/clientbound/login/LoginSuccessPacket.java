@@ -53,4 +53,9 @@ public final class LoginSuccessPacket extends SendablePacket {
 																	// max 4 bytes per char, one VarInt => max 5 bytes
 	}
 	
+	@Override
+	public boolean isBarrier() {
+		return true;
+	}
+	
 }
@@ -17,6 +17,7 @@
 package org.mcphoton.network.clientbound.play;
 
 import java.io.IOException;
+import org.mcphoton.network.PacketLane;
 import org.mcphoton.network.SendablePacket;
 import org.mcphoton.util.ProtocolData;
 
@@ -62,4 +63,9 @@ public final class BlockActionPacket extends SendablePacket {
 		return 0x24;
 	}
 
+	@Override
+	protected PacketLane defaultLane() {
+		return PacketLane.BULK;// must not overtake the chunk it updates
+	}
+
 }
@@ -17,6 +17,7 @@
 package org.mcphoton.network.clientbound.play;
 
 import java.io.IOException;
+import org.mcphoton.network.PacketLane;
 import org.mcphoton.network.SendablePacket;
 import org.mcphoton.util.ProtocolData;
 
@@ -51,4 +52,9 @@ public final class BlockChangePacket extends SendablePacket {
 		return 0x23;
 	}
 
+	@Override
+	protected PacketLane defaultLane() {
+		return PacketLane.BULK;// must not overtake the chunk it updates
+	}
+
 }
@@ -15,6 +15,7 @@
 package org.mcphoton.network.clientbound.play;
 
 import java.io.IOException;
+import org.mcphoton.network.PacketLane;
 import org.mcphoton.network.SendablePacket;
 import org.mcphoton.world.Chunk;
 import com.electronwill.streams.EasyOutputStream;
@@ -54,4 +55,9 @@ public final class ChunkDataPacket extends SendablePacket {
 		return "ChunkDataPacket: x=" + chunk.x() + ", z=" + chunk.z() + ", sendBiomes=" + sendBiomes;
 	}
 	
+	@Override
+	protected PacketLane defaultLane() {
+		return PacketLane.BULK;
+	}
+	
 }
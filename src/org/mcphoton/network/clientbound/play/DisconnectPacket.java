@@ -16,6 +16,7 @@ package org.mcphoton.network.clientbound.play;
 
 import java.io.IOException;
 import org.mcphoton.messaging.ChatMessage;
+import org.mcphoton.network.PacketLane;
 import org.mcphoton.network.SendablePacket;
 
 /**
@@ -45,4 +46,14 @@ public final class DisconnectPacket extends SendablePacket {
 		return 0x40;
 	}
 	
+	@Override
+	public boolean isUrgent() {
+		return true;
+	}
+	
+	@Override
+	protected PacketLane defaultLane() {
+		return PacketLane.CONTROL;
+	}
+	
 }
@@ -50,4 +50,9 @@ public final class EntityHeadLookPacket extends SendablePacket {
 		return 0x19;
 	}
 
+	@Override
+	public long coalescingKey() {
+		return coalescingKey(entity.getEntityId());
+	}
+
 }
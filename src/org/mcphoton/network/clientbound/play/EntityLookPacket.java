@@ -55,4 +55,9 @@ public final class EntityLookPacket extends SendablePacket {
 		return 0x16;
 	}
 
+	@Override
+	public long coalescingKey() {
+		return coalescingKey(entity.getEntityId());
+	}
+
 }
@@ -65,4 +65,9 @@ public final class EntityTeleportPacket extends SendablePacket {
 		return 0x18;
 	}
 
+	@Override
+	public long coalescingKey() {
+		return coalescingKey(entity.getEntityId());
+	}
+
 }
@@ -52,4 +52,9 @@ public final class EntityVelocityPacket extends SendablePacket {
 		return 0x12;
 	}
 	
+	@Override
+	public long coalescingKey() {
+		return coalescingKey(m.getEntityId());
+	}
+	
 }
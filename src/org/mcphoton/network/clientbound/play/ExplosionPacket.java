@@ -17,6 +17,7 @@
 package org.mcphoton.network.clientbound.play;
 
 import java.io.IOException;
+import org.mcphoton.network.PacketLane;
 import org.mcphoton.network.SendablePacket;
 import com.electronwill.collections.OpenList;
 
@@ -85,4 +86,9 @@ public final class ExplosionPacket extends SendablePacket {
 		return 0x27;
 	}
 
+	@Override
+	protected PacketLane defaultLane() {
+		return PacketLane.BULK;// must not overtake the chunk it updates
+	}
+
 }
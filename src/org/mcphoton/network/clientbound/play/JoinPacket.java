@@ -83,4 +83,9 @@ public final class JoinPacket extends SendablePacket {
 	public int id() {
 		return 0x01;
 	}
+	
+	@Override
+	public boolean isBarrier() {
+		return true;
+	}
 }
@@ -18,6 +18,7 @@ package org.mcphoton.network.clientbound.play;
 
 import java.io.IOException;
 import java.util.concurrent.ThreadLocalRandom;
+import org.mcphoton.network.PacketLane;
 import org.mcphoton.network.SendablePacket;
 
 /**
@@ -51,4 +52,14 @@ public final class KeepAlivePacket extends SendablePacket {
 		return 0x00;
 	}
 
+	@Override
+	public boolean isUrgent() {
+		return true;
+	}
+
+	@Override
+	protected PacketLane defaultLane() {
+		return PacketLane.CONTROL;
+	}
+
 }
@@ -16,6 +16,7 @@ package org.mcphoton.network.clientbound.play;
 
 import java.io.IOException;
 import java.util.List;
+import org.mcphoton.network.PacketLane;
 import org.mcphoton.network.SendablePacket;
 import org.mcphoton.world.Chunk;
 import com.electronwill.collections.OpenList;
@@ -73,4 +74,9 @@ public final class MapChunkBulkPacket extends SendablePacket {
 		*/
 	}
 	
+	@Override
+	protected PacketLane defaultLane() {
+		return PacketLane.BULK;
+	}
+	
 }
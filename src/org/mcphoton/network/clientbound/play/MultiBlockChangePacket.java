@@ -15,6 +15,7 @@
 package org.mcphoton.network.clientbound.play;
 
 import java.io.IOException;
+import org.mcphoton.network.PacketLane;
 import org.mcphoton.network.SendablePacket;
 import org.mcphoton.world.BlockState;
 import com.electronwill.collections.ByteList;
@@ -97,4 +98,9 @@ public final class MultiBlockChangePacket extends SendablePacket {
 		return 0x22;
 	}
 	
+	@Override
+	protected PacketLane defaultLane() {
+		return PacketLane.BULK;// must not overtake the chunk it updates
+	}
+	
 }
@@ -114,4 +114,9 @@ public final class ParticlePacket extends SendablePacket {
 		return 39;
 	}
 
+	@Override
+	public boolean isDroppable() {
+		return true;
+	}
+
 }
@@ -78,4 +78,9 @@ public final class PlayerPositionAndLookPacket extends SendablePacket {
 		relativeFlags = (byte) (relativeFlags & (v << bit));
 	}
 
+	@Override
+	public boolean isBarrier() {
+		return true;
+	}
+
 }
@@ -66,4 +66,9 @@ public final class RespawnPacket extends SendablePacket {
 		return 6 + worldType.length() * 4;
 	}
 
+	@Override
+	public boolean isBarrier() {
+		return true;// must not overtake the chunks of the previous world, nor be overtaken by the new ones
+	}
+
 }
@@ -46,4 +46,9 @@ public final class SetCompressionPacket extends SendablePacket {
 		return 5;
 	}
 
+	@Override
+	public boolean isBarrier() {
+		return true;
+	}
+
 }
@@ -59,4 +59,9 @@ public final class SoundEffectPacket extends SendablePacket {
 		return soundName.length() + 15;
 	}
 
+	@Override
+	public boolean isDroppable() {
+		return true;
+	}
+
 }
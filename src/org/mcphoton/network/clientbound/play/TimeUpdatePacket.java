@@ -48,4 +48,9 @@ public final class TimeUpdatePacket extends SendablePacket {
 		return 16;
 	}
 
+	@Override
+	public long coalescingKey() {
+		return coalescingKey(0);
+	}
+
 }
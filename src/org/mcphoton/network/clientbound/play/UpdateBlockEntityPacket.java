@@ -18,6 +18,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Optional;
 import org.mcphoton.core.Photon;
+import org.mcphoton.network.PacketLane;
 import org.mcphoton.network.SendablePacket;
 import org.mcphoton.util.ProtocolData;
 import com.electronwill.nbt.NBT;
@@ -81,4 +82,9 @@ public final class UpdateBlockEntityPacket extends SendablePacket {
 		return Integer.MAX_VALUE;
 	}
 	
+	@Override
+	protected PacketLane defaultLane() {
+		return PacketLane.BULK;// must not overtake the chunk it updates
+	}
+	
 }
@@ -16,6 +16,7 @@ package org.mcphoton.network.clientbound.play;
 
 import java.io.IOException;
 import org.mcphoton.messaging.ChatMessage;
+import org.mcphoton.network.PacketLane;
 import org.mcphoton.network.SendablePacket;
 import org.mcphoton.util.ProtocolData;
 
@@ -63,4 +64,9 @@ public final class UpdateSignPacket extends SendablePacket {
 		return Integer.MAX_VALUE;
 	}
 	
+	@Override
+	protected PacketLane defaultLane() {
+		return PacketLane.BULK;// must not overtake the chunk it updates
+	}
+	
 }
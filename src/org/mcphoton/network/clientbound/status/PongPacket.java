@@ -49,4 +49,9 @@ public final class PongPacket extends SendablePacket {
 		return 8;
 	}
 
+	@Override
+	public boolean isUrgent() {
+		return true;
+	}
+
 }
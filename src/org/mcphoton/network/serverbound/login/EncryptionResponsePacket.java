@@ -17,8 +17,14 @@
 package org.mcphoton.network.serverbound.login;
 
 import com.electronwill.streams.EasyInputStream;
+import java.util.Arrays;
+import java.util.UUID;
+import org.mcphoton.core.Photon;
+import org.mcphoton.messaging.TextChatMessage;
 import org.mcphoton.network.ClientInfos;
+import org.mcphoton.network.PacketEncryption;
 import org.mcphoton.network.ReceivablePacket;
+import org.mcphoton.network.clientbound.login.DisconnectPacket;
 
 /**
  *
@@ -47,6 +53,56 @@ public final class EncryptionResponsePacket extends ReceivablePacket {
 
 	@Override
 	public void handle() throws Throwable {
+		final String playerName = client.getLoginName();
+		final byte[] expectedToken = client.getVerifyToken();
+		if (playerName == null || expectedToken == null) {// no EncryptionRequestPacket has been sent
+			disconnect(client, "Unexpected encryption response");
+			return;
+		}
+		client.setVerifyToken(null);
+
+		final byte[] secret = PacketEncryption.decryptWithPrivateKey(sharedSecret);
+		final byte[] token = PacketEncryption.decryptWithPrivateKey(verifyToken);
+		if (!Arrays.equals(token, expectedToken)) {
+			disconnect(client, "Invalid verify token");
+			return;
+		}
+		client.enableEncryption(secret);// all the next packets are encrypted, in both directions
+
+		// Authentication, in another thread because the session service may be slow:
+		final String serverHash = PacketEncryption.serverIdHash(secret);
+		Photon.executorService().execute(() -> {
+			final UUID uid;
+			try {
+				uid = Photon.getSessionService().hasJoined(playerName, serverHash);
+			} catch (Exception ex) {
+				Photon.log.error(ex, "Unable to authenticate the player " + playerName);
+				disconnect(client, "Authentication servers are down. Please try again later.");
+				return;
+			}
+			if (uid == null) {
+				disconnect(client, "Failed to verify username!");
+				return;
+			}
+			if (client.isClosed())// the client has left during the authentication
+				return;
+			try {
+				LoginStartPacket.login(client, uid, playerName);
+			} catch (Throwable t) {
+				Photon.log.error(t, "Unable to log the player " + playerName + " in");
+			}
+		});
+	}
+
+	/**
+	 * Sends a DisconnectPacket and closes the connection.
+	 */
+	private static void disconnect(ClientInfos client, String reason) {
+		try {
+			new DisconnectPacket(new TextChatMessage(reason)).sendTo(client, client::close);
+		} catch (Exception ex) {
+			client.close();
+		}
 	}
 
 }
@@ -14,17 +14,19 @@
  */
 package org.mcphoton.network.serverbound.login;
 
+import java.security.SecureRandom;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 import org.mcphoton.core.Photon;
 import org.mcphoton.entity.impl.OnlinePlayer;
 import org.mcphoton.network.ClientInfos;
 import org.mcphoton.network.ConnectionState;
+import org.mcphoton.network.PacketEncryption;
 import org.mcphoton.network.ReceivablePacket;
+import org.mcphoton.network.clientbound.login.EncryptionRequestPacket;
 import org.mcphoton.network.clientbound.login.LoginSuccessPacket;
+import org.mcphoton.network.clientbound.login.SetCompressionPacket;
 import org.mcphoton.network.clientbound.play.ChunkDataPacket;
 import org.mcphoton.network.clientbound.play.JoinPacket;
-import org.mcphoton.network.clientbound.play.KeepAlivePacket;
 import org.mcphoton.network.clientbound.play.PlayerAbilitiesPacket;
 import org.mcphoton.network.clientbound.play.PlayerPositionAndLookPacket;
 import org.mcphoton.network.clientbound.play.PluginMessagePacket;
@@ -46,6 +48,7 @@ import com.electronwill.streams.EasyInputStream;
 public final class LoginStartPacket extends ReceivablePacket {
 	
 	private static final AccessPermit internalPermit;
+	private static final SecureRandom random = new SecureRandom();
 	
 	static {
 		AccessPermit p = null;
@@ -71,8 +74,31 @@ public final class LoginStartPacket extends ReceivablePacket {
 	
 	@Override
 	public void handle() throws Throwable {
-		// TODO encryption + authentification (includes getting the player's UUID)
-		UUID uid = MCUtils.generateUidFromName(playerName);
+		if (Photon.isOnlineMode()) {// encryption + authentication, continued by the EncryptionResponsePacket
+			byte[] verifyToken = new byte[4];
+			random.nextBytes(verifyToken);
+			client.setLoginName(playerName);
+			client.setVerifyToken(verifyToken);
+			
+			EncryptionRequestPacket requestPacket = new EncryptionRequestPacket();
+			requestPacket.publicKey = PacketEncryption.getEncodedPublicKey();
+			requestPacket.verifyToken = verifyToken;
+			requestPacket.sendTo(client);
+		} else {
+			login(client, MCUtils.generateUidFromName(playerName), playerName);
+		}
+	}
+	
+	/**
+	 * Logs a player in, after its authentication in online mode.
+	 *
+	 * @param client the player's client
+	 * @param uid the player's UUID
+	 * @param playerName the player's name
+	 */
+	public static void login(ClientInfos client, UUID uid, String playerName) throws Throwable {
+		if (client.isClosed())// the client has left during the authentication
+			return;
 		
 		// Creates the Player object:
 		// TODO Player knownPlayer = Photon.getKnownPlayers().get(uid);
@@ -80,13 +106,25 @@ public final class LoginStartPacket extends ReceivablePacket {
 		OnlinePlayer onlinePlayer = new OnlinePlayer(client, uid, playerName, spawn.getWorld().getGamemode(), spawn, spawn);
 		
 		// TODO Photon.getKnownPlayers().put(uid, onlinePlayer);
+		client.setPlayer(onlinePlayer);// before adding it, so that the removal of the client removes it too
 		Photon.addPlayer(onlinePlayer);
+		if (client.isClosed()) {// the client may have been removed before setPlayer
+			Photon.removePlayer(onlinePlayer);
+			return;
+		}
+		
+		// Compression:
+		final int compressionThreshold = Photon.getCompressionThreshold();
+		if (compressionThreshold >= 0) {
+			SetCompressionPacket compressionPacket = new SetCompressionPacket(compressionThreshold);
+			compressionPacket.sendTo(client);// sent uncompressed
+			client.setCompressionThreshold(compressionThreshold);// the next packets are compressed
+		}
 		
 		// Login success:
 		LoginSuccessPacket loginSuccessPacket = new LoginSuccessPacket(uid.toString(), playerName);
 		loginSuccessPacket.sendTo(client);
 		client.setState(ConnectionState.PLAY);
-		client.setPlayer(onlinePlayer);
 		
 		// Spawn player entity:
 		spawn.getWorld().spawnEntity(onlinePlayer, spawn.getX(), spawn.getY(), spawn.getZ());
@@ -130,19 +168,6 @@ public final class LoginStartPacket extends ReceivablePacket {
 				chunkPacket.sendTo(client);
 			}
 		}
-		
-		// Keep Alive:
-		Runnable r = () -> {
-			KeepAlivePacket kap = new KeepAlivePacket(1);
-			try {
-				kap.sendTo(client);
-			} catch (Exception e) {
-				if (client.isClientOnline())
-					Photon.log.error(e, "Unable to send KeepAlivePacket");
-				return;
-			}
-		};
-		Photon.executorService().scheduleWithFixedDelay(r, 0, 15, TimeUnit.SECONDS);
 	}
 	
 	@Override
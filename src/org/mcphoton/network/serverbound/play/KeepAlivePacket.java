@@ -38,7 +38,7 @@ public final class KeepAlivePacket extends ReceivablePacket {
 	
 	@Override
 	public void handle() {
-		// don't drop client -> so we don't do anything.
+		client.keepAliveReceived(keepAliveId);
 	}
 	
 	@Override
@@ -31,6 +31,11 @@ public final class PlayerGroundPacket extends ReceivablePacket {
 		onGround = (in.readByte() == 1);
 	}
 	
+	public PlayerGroundPacket(ClientInfos client, boolean onGround) {
+		super(client);
+		this.onGround = onGround;
+	}
+	
 	@Override
 	public int id() {
 		return 0x03;
@@ -19,18 +19,31 @@ package org.mcphoton.network.serverbound.play;
 import com.electronwill.streams.EasyInputStream;
 import org.mcphoton.network.ClientInfos;
 import org.mcphoton.network.ReceivablePacket;
+import org.mcphoton.network.ReusablePacket;
 
 /**
  *
  * @author ElectronWill
  */
-public final class PlayerLookPacket extends ReceivablePacket {
+public final class PlayerLookPacket extends ReceivablePacket implements ReusablePacket {
 
 	public float yaw, pitch;
 	public boolean onGround;
 
 	public PlayerLookPacket(ClientInfos client, EasyInputStream in) throws Throwable {
 		super(client, in);
+		read(in);
+	}
+
+	public PlayerLookPacket(ClientInfos client, float yaw, float pitch, boolean onGround) {
+		super(client);
+		this.yaw = yaw;
+		this.pitch = pitch;
+		this.onGround = onGround;
+	}
+
+	@Override
+	public void read(EasyInputStream in) throws Throwable {
 		yaw = in.readFloat();
 		pitch = in.readFloat();
 		onGround = (in.readByte() == 1);
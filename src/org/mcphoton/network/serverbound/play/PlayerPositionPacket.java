@@ -19,19 +19,34 @@ import org.mcphoton.event.Events;
 import org.mcphoton.event.impl.PlayerMoveEvent;
 import org.mcphoton.network.ClientInfos;
 import org.mcphoton.network.ReceivablePacket;
+import org.mcphoton.network.ReusablePacket;
 import com.electronwill.streams.EasyInputStream;
 
 /**
  *
  * @author ElectronWill
  */
-public final class PlayerPositionPacket extends ReceivablePacket {
+public final class PlayerPositionPacket extends ReceivablePacket implements ReusablePacket {
 	
 	public double x, y, z;
 	public boolean onGround;
+	private PlayerMoveEvent event;// reused, like the packet
 	
 	public PlayerPositionPacket(ClientInfos client, EasyInputStream in) throws Throwable {
 		super(client, in);
+		read(in);
+	}
+	
+	public PlayerPositionPacket(ClientInfos client, double x, double y, double z, boolean onGround) {
+		super(client);
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.onGround = onGround;
+	}
+	
+	@Override
+	public void read(EasyInputStream in) throws Throwable {
 		x = in.readDouble();
 		y = in.readDouble();
 		z = in.readDouble();
@@ -46,17 +61,20 @@ public final class PlayerPositionPacket extends ReceivablePacket {
 	@Override
 	public void handle() {
 		OnlinePlayer player = client.getPlayer();
-		// TODO notify event's listeners in the executor thread?
-		
-		// Creates an event
-		PlayerMoveEvent event = new PlayerMoveEvent(player, x, y, z);
+		// Creates an event, or reuses the previous one. The PlayerMoveListener always listens to it (it sends the
+		// chunks), so reusing the event is what keeps the moves allocation-free.
+		if (event == null || event.getPlayer() != player) {
+			event = new PlayerMoveEvent(player, x, y, z);
+		} else {
+			event.reset(x, y, z, player.getYaw(), player.getPitch());
+		}
 		Events.notifyListeners(event);
 		
 		// Updates player position
 		if (!event.isCancelled()) {
 			player.setX(event.getNewX());
 			player.setY(event.getNewY());
-			player.setZ(player.getZ());
+			player.setZ(event.getNewZ());
 			player.setPitch(event.getNewPitch());
 			player.setYaw(event.getNewYaw());
 		}
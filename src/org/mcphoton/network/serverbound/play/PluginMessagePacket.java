@@ -19,6 +19,7 @@ import org.mcphoton.event.Events;
 import org.mcphoton.event.impl.PluginMessageReceiveEvent;
 import org.mcphoton.network.ClientInfos;
 import org.mcphoton.network.ReceivablePacket;
+import com.electronwill.streams.ByteArrayInputStream;
 import com.electronwill.streams.EasyInputStream;
 
 /**
@@ -36,7 +37,9 @@ public final class PluginMessagePacket extends ReceivablePacket {
 	public PluginMessagePacket(ClientInfos client, EasyInputStream in) throws Throwable {
 		super(client, in);
 		channel = in.readString();
-		data = in;// should we copy it?
+		byte[] bytes = new byte[in.available()];
+		in.read(bytes);
+		data = new ByteArrayInputStream(bytes);// copy: the stream's buffer is reused once the packet is constructed
 	}
 	
 	@Override
@@ -46,6 +49,8 @@ public final class PluginMessagePacket extends ReceivablePacket {
 	
 	@Override
 	public void handle() throws IOException {
+		if (!Events.hasListeners(PluginMessageReceiveEvent.class))// no event needed
+			return;
 		PluginMessageReceiveEvent event = new PluginMessageReceiveEvent(channel, data);
 		Events.notifyListeners(event);
 	}
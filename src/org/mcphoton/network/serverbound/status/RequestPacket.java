@@ -17,7 +17,7 @@ package org.mcphoton.network.serverbound.status;
 import java.io.IOException;
 import org.mcphoton.network.ClientInfos;
 import org.mcphoton.network.ReceivablePacket;
-import org.mcphoton.network.clientbound.status.ResponsePacket;
+import org.mcphoton.network.StatusResponseCache;
 import com.electronwill.streams.EasyInputStream;
 
 /**
@@ -38,8 +38,7 @@ public final class RequestPacket extends ReceivablePacket {
 	
 	@Override
 	public void handle() throws IOException {
-		ResponsePacket response = new ResponsePacket();
-		response.sendTo(client);
+		StatusResponseCache.sendTo(client);
 	}
 	
 }
@@ -56,6 +56,21 @@ public final class ProtocolData {
 		return count + 1;
 	}
 
+	/**
+	 * Computes the number of bytes needed to encode a signed integer with the "VarInt" format.
+	 *
+	 * @param n the int to encode
+	 * @return the size of the VarInt, maximum 5
+	 */
+	public static int varIntSize(int n) {
+		int count = 1;
+		while ((n & 0xFFFF_FF80) != 0) {//While we have more than 7 bits (0b0xxxxxxx)
+			n >>>= 7;
+			count++;
+		}
+		return count;
+	}
+
 	/**
 	 * Writes a signed integer with the "VarInt" format.
 	 *
@@ -131,6 +146,24 @@ public final class ProtocolData {
 		}
 	}
 
+	/**
+	 * Reads a VarInt from a ByteBuffer.
+	 *
+	 * @return the int value
+	 * @throws java.nio.BufferUnderflowException if the buffer doesn't contain the entire VarInt
+	 */
+	public static int readVarInt(ByteBuffer src) {
+		int shift = 0, i = 0;
+		while (true) {
+			byte b = src.get();
+			i |= (b & 0x7F) << shift;//Remove sign bit and shift to get the next 7 bits
+			shift += 7;
+			if (b >= 0) {
+				return i;
+			}
+		}
+	}
+
 	/**
 	 * Reads a VarLong.
 	 *